@@ -9,6 +9,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Java API for in-process profiling. Serves as a wrapper around
@@ -231,6 +235,113 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
         }
     }
 
+    /**
+     * Dump profile of the given time window without stopping profiling.
+     * The profiler must be started with 'history' option, e.g. "start,event=cpu,history=5m";
+     * only samples of the last 'history' seconds are available.
+     *
+     * @param fromMillis Start of the time window in milliseconds since the epoch
+     * @param toMillis   End of the time window in milliseconds since the epoch, 0 means now
+     * @param format     Output format with its options, e.g. "collapsed", "flamegraph", "traces=10"
+     * @return Textual representation of the profile
+     */
+    public String dump(long fromMillis, long toMillis, String format) {
+        if (format == null) {
+            throw new NullPointerException();
+        }
+        String window = toMillis == 0 ? ",from=" + fromMillis : ",from=" + fromMillis + ",to=" + toMillis;
+        try {
+            return execute0(format + window);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Dump profile directly to the channel, bypassing String conversion.
+     * The output is passed in chunks, so that even a large profile
+     * does not need to be kept in memory as a whole.
+     * The profile is written after the collected samples have been copied,
+     * so a slow channel does not hold up profiling or other commands.
+     *
+     * @param command Output format with its options, e.g. "collapsed,total", "flamegraph"
+     * @param out     Destination of the profile
+     * @throws IllegalArgumentException If failed to parse the command, the command requests JFR output
+     *                                  or an output file
+     * @throws IOException              If failed to write to the channel
+     */
+    public void dump(String command, WritableByteChannel out) throws IllegalArgumentException, IllegalStateException, IOException {
+        if (command == null || out == null) {
+            throw new NullPointerException();
+        }
+        execute1(command, out);
+    }
+
+    /**
+     * Dump profile directly to the stream, bypassing String conversion.
+     *
+     * @see #dump(String, WritableByteChannel)
+     */
+    public void dump(String command, OutputStream out) throws IllegalArgumentException, IllegalStateException, IOException {
+        if (command == null || out == null) {
+            throw new NullPointerException();
+        }
+        execute1(command, Channels.newChannel(out));
+    }
+
+    /**
+     * Dump profile into the buffer starting at its current position.
+     *
+     * @return Number of bytes written
+     * @throws java.nio.BufferOverflowException If the profile does not fit in the buffer
+     * @see #dump(String, WritableByteChannel)
+     */
+    public int dump(String command, final ByteBuffer buf) throws IllegalArgumentException, IllegalStateException {
+        if (command == null || buf == null) {
+            throw new NullPointerException();
+        }
+        int startPosition = buf.position();
+        try {
+            execute1(command, new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) {
+                    int bytes = src.remaining();
+                    buf.put(src);
+                    return bytes;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return buf.position() - startPosition;
+    }
+
+    /**
+     * Get the current profile as primitive arrays, without converting it to text.
+     * Only traces and frame names that have not been returned by the previous
+     * snapshots are included in full; see {@link Snapshot} for details.
+     * Counters are cumulative since the profiler start.
+     *
+     * @return Snapshot of the collected call traces
+     * @throws IllegalStateException If profiler has not started
+     */
+    public Snapshot snapshot() throws IllegalStateException {
+        Object[] data = snapshot0();
+        int[] firstNew = (int[]) data[7];
+        return new Snapshot((int[]) data[0], (long[]) data[1], (long[]) data[2],
+                firstNew[0], (int[]) data[3], (int[]) data[4],
+                firstNew[1], (String[]) data[5], (byte[]) data[6]);
+    }
+
     /**
      * Add the given thread to the set of profiled threads.
      * 'filter' option must be enabled to use this method.
@@ -271,5 +382,9 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
 
     private native String execute0(String command) throws IllegalArgumentException, IllegalStateException, IOException;
 
+    private native void execute1(String command, WritableByteChannel out) throws IllegalArgumentException, IllegalStateException, IOException;
+
+    private native Object[] snapshot0() throws IllegalStateException;
+
     private native void filterThread0(Thread thread, boolean enable);
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.profiler;
+
+/**
+ * Structured contents of the profile returned by {@link AsyncProfiler#snapshot()}.
+ * Every trace and every frame gets a dense numeric ID that stays the same
+ * in subsequent snapshots. Stack frames and frame names are included only
+ * for traces and frames not reported by the previous snapshots, so a consumer
+ * can maintain its own dictionaries and aggregate profiles incrementally.
+ * IDs start from 0 again after the profiler is restarted with reset, or when
+ * most of the reported traces have been evicted because of the tracemem limit.
+ * A snapshot with {@code firstNewTrace == 0} therefore invalidates all IDs
+ * received before, and the consumer should start its dictionaries over.
+ */
+public class Snapshot {
+    // Frame types; the values match FrameTypeId of the native profiler
+    public static final byte FRAME_INTERPRETED  = 0;
+    public static final byte FRAME_JIT_COMPILED = 1;
+    public static final byte FRAME_INLINED      = 2;
+    public static final byte FRAME_NATIVE       = 3;
+    public static final byte FRAME_CPP          = 4;
+    public static final byte FRAME_KERNEL       = 5;
+    public static final byte FRAME_C1_COMPILED  = 6;
+
+    /** IDs of all traces with at least one sample */
+    public final int[] traceIds;
+    /** Total number of samples of traceIds[i] since the profiler start */
+    public final long[] samples;
+    /** Total counter value of traceIds[i], e.g. nanoseconds or allocated bytes */
+    public final long[] counters;
+
+    /** ID of the first trace not reported before; new trace IDs are consecutive */
+    public final int firstNewTrace;
+    /** Frames of the new trace (firstNewTrace + i) are frames[frameOffsets[i]] .. frames[frameOffsets[i + 1] - 1] */
+    public final int[] frameOffsets;
+    /** Frame IDs of new traces, the top (leaf) frame first */
+    public final int[] frames;
+
+    /** ID of the first frame not reported before; new frame IDs are consecutive */
+    public final int firstNewFrame;
+    /** Name of the new frame (firstNewFrame + i) */
+    public final String[] frameNames;
+    /** Type of the new frame (firstNewFrame + i), one of FRAME_* constants */
+    public final byte[] frameTypes;
+
+    Snapshot(int[] traceIds, long[] samples, long[] counters,
+             int firstNewTrace, int[] frameOffsets, int[] frames,
+             int firstNewFrame, String[] frameNames, byte[] frameTypes) {
+        this.traceIds = traceIds;
+        this.samples = samples;
+        this.counters = counters;
+        this.firstNewTrace = firstNewTrace;
+        this.frameOffsets = frameOffsets;
+        this.frames = frames;
+        this.firstNewFrame = firstNewFrame;
+        this.frameNames = frameNames;
+        this.frameTypes = frameTypes;
+    }
+
+    public int newTraceCount() {
+        return frameOffsets.length - 1;
+    }
+
+    public int newFrameCount() {
+        return frameNames.length;
+    }
+}
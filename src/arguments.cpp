@@ -8,6 +8,7 @@
 #include <stdlib.h>
 #include <string.h>
 #include <time.h>
+#include <sys/time.h>
 #include <sys/types.h>
 #include <unistd.h>
 #include "arguments.h"
@@ -52,6 +53,7 @@ static const Multiplier UNIVERSAL[] = {{'n', 1}, {'u', 1000}, {'m', 1000000}, {'
 //     check            - check if the specified profiling event is available
 //     status           - print profiling status (inactive / running for X seconds)
 //     meminfo          - print profiler memory stats
+//     metrics          - print profiler self-metrics in OpenMetrics format
 //     list             - show the list of available profiling events
 //     version          - display the agent version
 //     event=EVENT      - which event to trace (cpu, wall, cache-misses, etc.)
@@ -59,6 +61,7 @@ static const Multiplier UNIVERSAL[] = {{'n', 1}, {'u', 1000}, {'m', 1000000}, {'
 //     live             - build allocation profile from live objects only
 //     lock[=DURATION]  - profile contended locks longer than DURATION ns
 //     wall[=NS]        - run wall clock profiling together with CPU profiling
+//     walltimers=N     - sample each thread at a fixed rate using N wall clock timer threads
 //     collapsed        - dump collapsed stacks (the format used by FlameGraph script)
 //     flamegraph       - produce Flame Graph in HTML format
 //     tree             - produce call tree in HTML format
@@ -73,6 +76,11 @@ static const Multiplier UNIVERSAL[] = {{'n', 1}, {'u', 1000}, {'m', 1000000}, {'
 //     chunktime=N      - duration of JFR chunk in seconds (default: 1 hour)
 //     timeout=TIME     - automatically stop profiler at TIME (absolute or relative)
 //     loop=TIME        - run profiler in a loop (continuous profiling)
+//     history=TIME     - keep samples of the last TIME seconds for dumping arbitrary time windows
+//     from=TIMESTAMP   - dump only samples recorded after TIMESTAMP (requires history)
+//     to=TIMESTAMP     - dump only samples recorded before TIMESTAMP (requires history)
+//     delta            - dump only traces that changed since the previous delta dump
+//     tracemem=BYTES   - limit memory of call trace storage by evicting the coldest traces
 //     interval=N       - sampling interval in ns (default: 10'000'000, i.e. 10 ms)
 //     jstackdepth=N    - maximum Java stack depth (default: 2048)
 //     signal=N         - use alternative signal for cpu or wall clock profiling
@@ -85,6 +93,7 @@ static const Multiplier UNIVERSAL[] = {{'n', 1}, {'u', 1000}, {'m', 1000000}, {'
 //     filter=FILTER    - thread filter
 //     threads          - profile different threads separately
 //     sched            - group threads by scheduling policy
+//     batch            - aggregate samples in per-stripe buffers before adding them to the shared storage
 //     cstack=MODE      - how to collect C stack frames in addition to Java stack
 //                        MODE is 'fp', 'dwarf', 'lbr', 'vm' or 'no'
 //     clock=SOURCE     - clock source for JFR timestamps: 'tsc' or 'monotonic'
@@ -150,6 +159,9 @@ Error Arguments::parse(const char* args) {
             CASE("meminfo")
                 _action = ACTION_MEMINFO;
 
+            CASE("metrics")
+                _action = ACTION_METRICS;
+
             CASE("list")
                 _action = ACTION_LIST;
 
@@ -233,12 +245,41 @@ Error Arguments::parse(const char* args) {
                     msg = "Invalid loop duration";
                 }
 
+            CASE("history")
+                if (value == NULL || (_history = parseUnits(value, SECONDS)) <= 0) {
+                    msg = "Invalid history";
+                }
+
+            CASE("from")
+                if (value == NULL || (_from = parseTimestamp(value)) <= 0) {
+                    msg = "Invalid from";
+                }
+
+            CASE("to")
+                if (value == NULL || (_to = parseTimestamp(value)) <= 0) {
+                    msg = "Invalid to";
+                }
+
+            CASE("delta")
+                _delta = true;
+
+            CASE("tracemem")
+                // Storage memory is allocated in chunks of 8 MB, smaller limits make no sense
+                if (value == NULL || (_trace_mem = parseUnits(value, BYTES)) < 32 * 1024 * 1024) {
+                    msg = "tracemem must be at least 32m";
+                }
+
             CASE("alloc")
                 _alloc = value == NULL ? 0 : parseUnits(value, BYTES);
 
             CASE("lock")
                 _lock = value == NULL ? 0 : parseUnits(value, NANOS);
 
+            CASE("walltimers")
+                if (value == NULL || (_wall_timers = atoi(value)) <= 0 || _wall_timers > MAX_WALL_TIMERS) {
+                    msg = "walltimers must be between 1 and 16";
+                }
+
             CASE("wall")
                 _wall = value == NULL ? 0 : parseUnits(value, NANOS);
 
@@ -331,6 +372,9 @@ Error Arguments::parse(const char* args) {
             CASE("sched")
                 _sched = true;
 
+            CASE("batch")
+                _batch = true;
+
             CASE("live")
                 _live = true;
 
@@ -564,6 +608,24 @@ int Arguments::parseTimeout(const char* str) {
     return 0xff000000 | hh << 16 | mm << 8 | ss;
 }
 
+// Timestamp is either the number of milliseconds since the epoch,
+// or a negative duration relative to the current time, e.g. -5m
+long long Arguments::parseTimestamp(const char* str) {
+    if (str[0] == '-') {
+        long seconds = parseUnits(str + 1, SECONDS);
+        if (seconds < 0) {
+            return -1;
+        }
+        struct timeval tv;
+        gettimeofday(&tv, NULL);
+        return (long long)tv.tv_sec * 1000 + tv.tv_usec / 1000 - seconds * 1000LL;
+    }
+
+    char* end;
+    long long result = strtoll(str, &end, 10);
+    return end == str || *end != 0 ? -1 : result;
+}
+
 Arguments::~Arguments() {
     if (!_shared) free(_buf);
 }
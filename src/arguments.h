@@ -12,6 +12,7 @@
 const long DEFAULT_INTERVAL = 10000000;      // 10 ms
 const long DEFAULT_ALLOC_INTERVAL = 524287;  // 512 KiB
 const int DEFAULT_JSTACKDEPTH = 2048;
+const int MAX_WALL_TIMERS = 16;
 
 const char* const EVENT_CPU    = "cpu";
 const char* const EVENT_ALLOC  = "alloc";
@@ -31,6 +32,7 @@ enum SHORT_ENUM Action {
     ACTION_CHECK,
     ACTION_STATUS,
     ACTION_MEMINFO,
+    ACTION_METRICS,
     ACTION_LIST,
     ACTION_VERSION
 };
@@ -153,6 +155,7 @@ class Arguments {
     static Output detectOutputFormat(const char* file);
     static long parseUnits(const char* str, const Multiplier* multipliers);
     static int parseTimeout(const char* str);
+    static long long parseTimestamp(const char* str);
 
   public:
     Action _action;
@@ -164,6 +167,7 @@ class Arguments {
     long _alloc;
     long _lock;
     long _wall;
+    int _wall_timers;
     int _jstackdepth;
     int _signal;
     const char* _file;
@@ -179,6 +183,7 @@ class Arguments {
     bool _preloaded;
     bool _threads;
     bool _sched;
+    bool _batch;
     bool _live;
     bool _fdtransfer;
     const char* _fdtransfer_path;
@@ -189,6 +194,11 @@ class Arguments {
     Output _output;
     long _chunk_size;
     long _chunk_time;
+    long _history;
+    long long _from;
+    long long _to;
+    bool _delta;
+    long _trace_mem;
     const char* _jfr_sync;
     int _jfr_options;
     int _dump_traces;
@@ -213,6 +223,7 @@ class Arguments {
         _alloc(-1),
         _lock(-1),
         _wall(-1),
+        _wall_timers(0),
         _jstackdepth(DEFAULT_JSTACKDEPTH),
         _signal(0),
         _file(NULL),
@@ -228,6 +239,7 @@ class Arguments {
         _preloaded(false),
         _threads(false),
         _sched(false),
+        _batch(false),
         _live(false),
         _fdtransfer(false),
         _fdtransfer_path(NULL),
@@ -238,6 +250,11 @@ class Arguments {
         _output(OUTPUT_NONE),
         _chunk_size(100 * 1024 * 1024),
         _chunk_time(3600),
+        _history(0),
+        _from(0),
+        _to(0),
+        _delta(false),
+        _trace_mem(0),
         _jfr_sync(NULL),
         _jfr_options(0),
         _dump_traces(0),
@@ -265,6 +282,10 @@ class Arguments {
             (_action == ACTION_STOP || _action == ACTION_DUMP ? _output != OUTPUT_JFR : _action >= ACTION_CHECK);
     }
 
+    bool hasTimeRange() const {
+        return _from != 0 || _to != 0;
+    }
+
     bool hasOption(JfrOption option) const {
         return (_jfr_options & option) != 0;
     }
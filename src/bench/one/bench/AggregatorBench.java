@@ -0,0 +1,60 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.bench;
+
+import one.jfr.JfrReader;
+import one.jfr.event.EventAggregator;
+import one.jfr.event.ExecutionSample;
+import one.jfr.event.SampleAggregator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Grouping of samples by stack trace and thread, with the input decoded in advance.
+ * EventAggregator works on Event objects, SampleAggregator on primitive fields.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggregatorBench {
+    @Param({"synthetic:1000:10000", "synthetic:10000:1000000"})
+    public String fixture;
+
+    @Param({"false", "true"})
+    public boolean threads;
+
+    private List<ExecutionSample> events;
+
+    @Setup
+    public void setup() throws IOException {
+        JfrReader jfr = new JfrReader(Fixtures.load(fixture));
+        events = jfr.readAllEvents(ExecutionSample.class);
+    }
+
+    @Benchmark
+    public EventAggregator eventAggregator() {
+        EventAggregator agg = new EventAggregator(threads, false);
+        for (ExecutionSample event : events) {
+            agg.collect(event);
+        }
+        return agg;
+    }
+
+    @Benchmark
+    public SampleAggregator sampleAggregator() {
+        SampleAggregator agg = new SampleAggregator(threads, false);
+        for (ExecutionSample event : events) {
+            agg.collect(event.tid, event.stackTraceId, 0, event.threadState, event.value());
+        }
+        return agg;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.bench;
+
+import one.convert.Arguments;
+import one.convert.JfrToFlame;
+import one.convert.JfrToPprof;
+import one.jfr.JfrReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end conversion of a recording held in memory,
+ * from parsing to the output discarded after serialization.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConvertBench {
+    @Param({"synthetic:1000:10000", "synthetic:10000:1000000"})
+    public String fixture;
+
+    private ByteBuffer recording;
+
+    @Setup
+    public void setup() throws IOException {
+        recording = Fixtures.load(fixture);
+    }
+
+    @Benchmark
+    public void jfrToFlame() throws IOException {
+        JfrToFlame converter = new JfrToFlame(new JfrReader(recording.duplicate()), new Arguments());
+        converter.convert();
+        converter.dump(NullOutputStream.INSTANCE);
+    }
+
+    @Benchmark
+    public void jfrToCollapsed() throws IOException {
+        Arguments args = new Arguments();
+        args.output = "collapsed";
+        JfrToFlame converter = new JfrToFlame(new JfrReader(recording.duplicate()), args);
+        converter.convert();
+        converter.dump(NullOutputStream.INSTANCE);
+    }
+
+    @Benchmark
+    public void jfrToPprof() throws IOException {
+        JfrToPprof converter = new JfrToPprof(new JfrReader(recording.duplicate()), new Arguments());
+        converter.convert();
+        converter.dump(NullOutputStream.INSTANCE);
+    }
+}
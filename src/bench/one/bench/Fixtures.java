@@ -0,0 +1,41 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Loads JFR recordings used as benchmark input.
+ * A fixture is either "synthetic:TRACES:SAMPLES" that is generated in memory,
+ * or a path to a recorded .jfr file, e.g. -p fixture=/tmp/app.jfr
+ */
+public class Fixtures {
+    private static final String SYNTHETIC_PREFIX = "synthetic:";
+    private static final long SEED = 42;
+
+    public static ByteBuffer load(String fixture) throws IOException {
+        if (fixture.startsWith(SYNTHETIC_PREFIX)) {
+            String[] params = fixture.substring(SYNTHETIC_PREFIX.length()).split(":");
+            int stackTraces = Integer.parseInt(params[0]);
+            int samples = Integer.parseInt(params[1]);
+            return new SyntheticJfr(stackTraces, SEED).generate(samples);
+        }
+
+        // Read the whole file to the heap, so that the benchmark does not measure I/O
+        try (FileChannel ch = FileChannel.open(Paths.get(fixture), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate((int) ch.size());
+            while (buf.hasRemaining() && ch.read(buf) >= 0) {
+                // continue
+            }
+            buf.flip();
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.bench;
+
+import one.convert.Arguments;
+import one.convert.CallStack;
+import one.convert.FlameGraph;
+import one.jfr.ClassRef;
+import one.jfr.JfrReader;
+import one.jfr.MethodRef;
+import one.jfr.StackTrace;
+import one.jfr.event.ExecutionSample;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building of the frame tree from resolved stacks (FlameGraph.addSample)
+ * and printing of the tree as HTML or collapsed stacks (FlameGraph.printFrame).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlameGraphBench {
+    @Param({"synthetic:1000:10000", "synthetic:10000:1000000"})
+    public String fixture;
+
+    @Param({"html", "collapsed"})
+    public String output;
+
+    // Method names and frame types of every sample, the root frame first
+    private String[][] sampleNames;
+    private byte[][] sampleTypes;
+    private FlameGraph flameGraph;
+
+    @Setup
+    public void setup() throws IOException {
+        JfrReader jfr = new JfrReader(Fixtures.load(fixture));
+        List<ExecutionSample> events = jfr.readAllEvents(ExecutionSample.class);
+
+        sampleNames = new String[events.size()][];
+        sampleTypes = new byte[events.size()][];
+        for (int i = 0; i < events.size(); i++) {
+            StackTrace stackTrace = jfr.stackTraces.get(events.get(i).stackTraceId);
+            long[] methods = stackTrace.methods;
+            String[] names = new String[methods.length];
+            byte[] types = new byte[methods.length];
+            for (int j = 0; j < methods.length; j++) {
+                names[j] = getMethodName(jfr, methods[methods.length - 1 - j]);
+                types[j] = stackTrace.types[methods.length - 1 - j];
+            }
+            sampleNames[i] = names;
+            sampleTypes[i] = types;
+        }
+
+        flameGraph = buildFlameGraph();
+    }
+
+    private static String getMethodName(JfrReader jfr, long methodId) {
+        MethodRef method = jfr.methods.get(methodId);
+        ClassRef cls = jfr.classes.get(method.cls);
+        String className = new String(jfr.symbols.get(cls.name), StandardCharsets.UTF_8);
+        String methodName = new String(jfr.symbols.get(method.name), StandardCharsets.UTF_8);
+        // Intern names, since the converter resolves each method only once per chunk
+        return (className.replace('/', '.') + '.' + methodName).intern();
+    }
+
+    private FlameGraph buildFlameGraph() {
+        Arguments args = new Arguments();
+        args.output = output;
+        FlameGraph fg = new FlameGraph(args);
+        CallStack stack = new CallStack();
+
+        for (int i = 0; i < sampleNames.length; i++) {
+            String[] names = sampleNames[i];
+            byte[] types = sampleTypes[i];
+            for (int j = 0; j < names.length; j++) {
+                stack.push(names[j], types[j]);
+            }
+            fg.addSample(stack, 1);
+            stack.clear();
+        }
+        return fg;
+    }
+
+    @Benchmark
+    public FlameGraph addSample() {
+        return buildFlameGraph();
+    }
+
+    @Benchmark
+    public void dump() throws IOException {
+        flameGraph.dump(NullOutputStream.INSTANCE);
+    }
+}
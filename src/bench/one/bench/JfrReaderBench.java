@@ -0,0 +1,62 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.bench;
+
+import one.jfr.JfrReader;
+import one.jfr.event.Event;
+import one.jfr.event.ExecutionSample;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JfrReader stages: parsing of metadata and constant pools when a chunk is opened,
+ * decoding of samples without creating events, and decoding into Event objects.
+ * Sample decoding is dominated by getVarint/getVarlong.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JfrReaderBench {
+    @Param({"synthetic:1000:10000", "synthetic:10000:1000000"})
+    public String fixture;
+
+    private ByteBuffer recording;
+
+    @Setup
+    public void setup() throws IOException {
+        recording = Fixtures.load(fixture);
+    }
+
+    @Benchmark
+    public JfrReader openChunk() throws IOException {
+        return new JfrReader(recording.duplicate());
+    }
+
+    @Benchmark
+    public void decodeSamples(final Blackhole bh) throws IOException {
+        JfrReader jfr = new JfrReader(recording.duplicate());
+        jfr.readEvents(ExecutionSample.class, new JfrReader.SampleVisitor() {
+            @Override
+            public void visit(long time, int tid, int stackTraceId, int classId, int extra, long value) {
+                bh.consume(stackTraceId);
+            }
+        });
+    }
+
+    @Benchmark
+    public List<Event> readAllEvents() throws IOException {
+        JfrReader jfr = new JfrReader(recording.duplicate());
+        return jfr.readAllEvents();
+    }
+}
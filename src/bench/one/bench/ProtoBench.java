@@ -0,0 +1,55 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.bench;
+
+import one.proto.Proto;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Varint encoding with Proto.writeInt. "small" values fit in one or two bytes
+ * like most IDs and counters in pprof; "large" values are spread over all lengths.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtoBench {
+    private static final int VALUES = 65536;
+
+    @Param({"small", "large"})
+    public String distribution;
+
+    private int[] values;
+    private Proto proto;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        values = new int[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            values[i] = "small".equals(distribution)
+                    ? random.nextInt(1 << 14)
+                    : random.nextInt() >>> random.nextInt(32);
+        }
+        proto = new Proto(VALUES * 5);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public int writeInt() {
+        Proto proto = this.proto;
+        proto.reset();
+        for (int value : values) {
+            proto.writeInt(value);
+        }
+        return proto.size();
+    }
+}
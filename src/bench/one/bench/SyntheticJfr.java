@@ -0,0 +1,381 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a single-chunk JFR recording of execution samples.
+ * Stack traces are random, but share prefixes like in real applications,
+ * and samples are skewed towards a small number of hot traces.
+ * The output contains only the metadata and constant pools
+ * that one.jfr.JfrReader needs to parse it.
+ */
+public class SyntheticJfr {
+    private static final int MAX_DEPTH = 128;
+    private static final int ROOT_TRACES = 8;
+    private static final int THREADS = 16;
+    private static final long TICKS_PER_SEC = 1_000_000_000L;
+    private static final long START_NANOS = 1_700_000_000_000_000_000L;
+
+    // Type IDs in the metadata
+    private static final int T_LONG = 1;
+    private static final int T_INT = 2;
+    private static final int T_STRING = 3;
+    private static final int T_THREAD = 4;
+    private static final int T_CLASS = 5;
+    private static final int T_SYMBOL = 6;
+    private static final int T_METHOD = 7;
+    private static final int T_STACK_TRACE = 8;
+    private static final int T_FRAME_TYPE = 9;
+    private static final int T_THREAD_STATE = 10;
+    private static final int T_EXECUTION_SAMPLE = 101;
+
+    private static final String[] FRAME_TYPES = {
+            "Interpreted", "JIT compiled", "Inlined", "Native", "C++", "Kernel", "C1 compiled"
+    };
+
+    private final Random random;
+    private final int methodCount;
+    private final int classCount;
+    private final int[][] stacks;
+    private final byte[][] frameTypes;
+
+    public SyntheticJfr(int stackTraces, long seed) {
+        this.random = new Random(seed);
+        this.methodCount = Math.max(64, stackTraces * 2);
+        this.classCount = Math.max(8, methodCount / 8);
+        this.stacks = new int[stackTraces][];
+        this.frameTypes = new byte[stackTraces][];
+
+        for (int i = 0; i < stackTraces; i++) {
+            // Extend a random prefix of an existing trace with a few new frames
+            int[] parent = i < ROOT_TRACES ? new int[0] : stacks[random.nextInt(i)];
+            int prefix = parent.length == 0 ? 0 : 1 + random.nextInt(parent.length);
+            int depth = parent.length == 0 ? 16 + random.nextInt(32) : Math.min(MAX_DEPTH, prefix + 1 + random.nextInt(8));
+
+            int[] stack = Arrays.copyOf(parent, depth);
+            for (int j = prefix; j < depth; j++) {
+                stack[j] = 1 + random.nextInt(methodCount);
+            }
+            stacks[i] = stack;
+            frameTypes[i] = randomFrameTypes(depth);
+        }
+    }
+
+    // Frames are ordered from the root; only the topmost frames may be native or inlined
+    private byte[] randomFrameTypes(int depth) {
+        byte[] types = new byte[depth];
+        for (int j = 0; j < depth; j++) {
+            int r = random.nextInt(100);
+            types[j] = (byte) (r < 70 ? 1 : r < 85 ? 2 : r < 95 ? 0 : 6);
+        }
+        if (random.nextInt(4) == 0) {
+            types[depth - 1] = 3;
+        }
+        return types;
+    }
+
+    public ByteBuffer generate(int samples) {
+        Output out = new Output(samples * 8 + stacks.length * 64 + methodCount * 48 + 65536);
+        out.skip(68);
+
+        long ticks = 0;
+        for (int i = 0; i < samples; i++) {
+            // Quadratic skew: the first traces are the hottest ones
+            double r = random.nextDouble();
+            int stackTrace = 1 + (int) (r * r * stacks.length);
+            ticks += 1 + random.nextInt(2_000_000);
+
+            int start = out.startEvent(T_EXECUTION_SAMPLE);
+            out.putVarlong(ticks);
+            out.putVarint(1 + random.nextInt(THREADS));
+            out.putVarint(stackTrace);
+            out.putVarint(random.nextInt(2));
+            out.endEvent(start);
+        }
+
+        int cpOffset = out.position();
+        writeConstantPool(out);
+
+        int metaOffset = out.position();
+        writeMetadata(out);
+
+        int size = out.position();
+        out.buf.putInt(0, 0x464c5200);                    // magic "FLR\0"
+        out.buf.putInt(4, 0x00020000);                    // version 2.0
+        out.buf.putLong(8, size);
+        out.buf.putLong(16, cpOffset);
+        out.buf.putLong(24, metaOffset);
+        out.buf.putLong(32, START_NANOS);
+        out.buf.putLong(40, ticks);
+        out.buf.putLong(48, 0);
+        out.buf.putLong(56, TICKS_PER_SEC);
+        out.buf.putInt(64, 1);
+
+        ByteBuffer result = out.buf;
+        result.flip();
+        return result;
+    }
+
+    private void writeConstantPool(Output out) {
+        int start = out.startEvent(1);
+        out.putVarlong(0);  // start time
+        out.putVarlong(0);  // duration
+        out.putVarlong(0);  // delta to the next pool
+        out.putVarint(1);   // flush
+        out.putVarint(7);   // pool count
+
+        out.putVarint(T_FRAME_TYPE);
+        writeEnum(out, FRAME_TYPES);
+
+        out.putVarint(T_THREAD_STATE);
+        writeEnum(out, new String[]{"STATE_RUNNABLE", "STATE_SLEEPING"});
+
+        out.putVarint(T_THREAD);
+        out.putVarint(THREADS);
+        for (int i = 1; i <= THREADS; i++) {
+            out.putVarlong(i);
+            out.putString("worker-" + i);
+            out.putVarint(1000 + i);
+            out.putString("worker-" + i);
+            out.putVarlong(100 + i);
+        }
+
+        // Symbols: class names, then method names, then the only signature
+        int signature = classCount + methodCount + 1;
+        out.putVarint(T_SYMBOL);
+        out.putVarint(signature);
+        for (int i = 1; i <= classCount; i++) {
+            out.putVarlong(i);
+            out.putString("com/example/module" + (i % 17) + "/Component" + i);
+        }
+        for (int i = 1; i <= methodCount; i++) {
+            out.putVarlong(classCount + i);
+            out.putString("method" + i);
+        }
+        out.putVarlong(signature);
+        out.putString("()V");
+
+        out.putVarint(T_CLASS);
+        out.putVarint(classCount);
+        for (int i = 1; i <= classCount; i++) {
+            out.putVarlong(i);  // id
+            out.putVarlong(0);  // class loader
+            out.putVarlong(i);  // name
+            out.putVarlong(0);  // package
+            out.putVarint(1);   // modifiers
+        }
+
+        out.putVarint(T_METHOD);
+        out.putVarint(methodCount);
+        for (int i = 1; i <= methodCount; i++) {
+            out.putVarlong(i);                   // id
+            out.putVarlong(1 + i % classCount);  // class
+            out.putVarlong(classCount + i);      // name
+            out.putVarlong(signature);           // signature
+            out.putVarint(1);                    // modifiers
+            out.putVarint(0);                    // hidden
+        }
+
+        out.putVarint(T_STACK_TRACE);
+        out.putVarint(stacks.length);
+        for (int i = 0; i < stacks.length; i++) {
+            int[] stack = stacks[i];
+            byte[] types = frameTypes[i];
+            out.putVarlong(i + 1);
+            out.putVarint(0);
+            out.putVarint(stack.length);
+            // JFR stack traces start from the top frame
+            for (int j = stack.length; --j >= 0; ) {
+                out.putVarlong(stack[j]);
+                out.putVarint(10 + stack[j] % 500);
+                out.putVarint(stack[j] % 100);
+                out.putByte(types[j]);
+            }
+        }
+
+        out.endEvent(start);
+    }
+
+    private static void writeEnum(Output out, String[] values) {
+        out.putVarint(values.length);
+        for (int i = 0; i < values.length; i++) {
+            out.putVarlong(i);
+            out.putString(values[i]);
+        }
+    }
+
+    private static void writeMetadata(Output out) {
+        List<String> strings = new ArrayList<>();
+        Element root = new Element("root")
+                .add(type(T_LONG, "long"))
+                .add(type(T_INT, "int"))
+                .add(type(T_STRING, "java.lang.String"))
+                .add(type(T_THREAD, "java.lang.Thread",
+                        "osName", T_STRING, "osThreadId", T_LONG, "javaName", T_STRING, "javaThreadId", T_LONG))
+                .add(type(T_CLASS, "java.lang.Class",
+                        "classLoader", T_LONG, "name", T_SYMBOL, "package", T_LONG, "modifiers", T_INT))
+                .add(type(T_SYMBOL, "jdk.types.Symbol", "string", T_STRING))
+                .add(type(T_METHOD, "jdk.types.Method",
+                        "type", T_CLASS, "name", T_SYMBOL, "descriptor", T_SYMBOL, "modifiers", T_INT, "hidden", T_INT))
+                .add(type(T_STACK_TRACE, "jdk.types.StackTrace", "truncated", T_INT, "frames", T_LONG))
+                .add(type(T_FRAME_TYPE, "jdk.types.FrameType", "description", T_STRING).attr("simpleType", "true"))
+                .add(type(T_THREAD_STATE, "jdk.types.ThreadState", "name", T_STRING).attr("simpleType", "true"))
+                .add(type(T_EXECUTION_SAMPLE, "jdk.ExecutionSample",
+                        "startTime", T_LONG, "sampledThread", T_THREAD, "stackTrace", T_STACK_TRACE, "state", T_THREAD_STATE));
+        root.collectStrings(strings);
+
+        int start = out.startEvent(0);
+        out.putVarlong(0);  // start time
+        out.putVarlong(0);  // duration
+        out.putVarlong(1);  // metadata ID
+        out.putVarint(strings.size());
+        for (String s : strings) {
+            out.putString(s);
+        }
+        root.write(out, strings);
+        out.endEvent(start);
+    }
+
+    private static Element type(int id, String name, Object... fields) {
+        Element type = new Element("class").attr("id", Integer.toString(id)).attr("name", name);
+        for (int i = 0; i < fields.length; i += 2) {
+            Element field = new Element("field").attr("name", (String) fields[i]).attr("class", fields[i + 1].toString());
+            if ((Integer) fields[i + 1] >= T_THREAD && (Integer) fields[i + 1] <= T_THREAD_STATE) {
+                field.attr("constantPool", "true");
+            }
+            type.add(field);
+        }
+        return type;
+    }
+
+    static class Element {
+        final String name;
+        final List<String> attributes = new ArrayList<>();
+        final List<Element> children = new ArrayList<>();
+
+        Element(String name) {
+            this.name = name;
+        }
+
+        Element attr(String key, String value) {
+            attributes.add(key);
+            attributes.add(value);
+            return this;
+        }
+
+        Element add(Element child) {
+            children.add(child);
+            return this;
+        }
+
+        void collectStrings(List<String> strings) {
+            addString(strings, name);
+            for (String s : attributes) {
+                addString(strings, s);
+            }
+            for (Element child : children) {
+                child.collectStrings(strings);
+            }
+        }
+
+        private static void addString(List<String> strings, String s) {
+            if (!strings.contains(s)) {
+                strings.add(s);
+            }
+        }
+
+        void write(Output out, List<String> strings) {
+            out.putVarint(strings.indexOf(name));
+            out.putVarint(attributes.size() / 2);
+            for (String s : attributes) {
+                out.putVarint(strings.indexOf(s));
+            }
+            out.putVarint(children.size());
+            for (Element child : children) {
+                child.write(out, strings);
+            }
+        }
+    }
+
+    static class Output {
+        ByteBuffer buf;
+
+        Output(int capacity) {
+            this.buf = ByteBuffer.allocate(capacity);
+        }
+
+        int position() {
+            return buf.position();
+        }
+
+        void skip(int bytes) {
+            ensureCapacity(bytes);
+            buf.position(buf.position() + bytes);
+        }
+
+        void putByte(byte b) {
+            ensureCapacity(1);
+            buf.put(b);
+        }
+
+        void putVarint(int n) {
+            putVarlong(n & 0xffffffffL);
+        }
+
+        void putVarlong(long n) {
+            ensureCapacity(9);
+            while ((n >>> 7) != 0) {
+                buf.put((byte) (n | 0x80));
+                n >>>= 7;
+            }
+            buf.put((byte) n);
+        }
+
+        void putString(String s) {
+            putByte((byte) 3);
+            putUtf8(s);
+        }
+
+        void putUtf8(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            putVarint(bytes.length);
+            ensureCapacity(bytes.length);
+            buf.put(bytes);
+        }
+
+        // Event size is written as a padded 4-byte varint once the event is complete
+        int startEvent(int type) {
+            int start = position();
+            skip(4);
+            putVarint(type);
+            return start;
+        }
+
+        void endEvent(int start) {
+            int size = position() - start;
+            buf.put(start, (byte) (size | 0x80));
+            buf.put(start + 1, (byte) (size >>> 7 | 0x80));
+            buf.put(start + 2, (byte) (size >>> 14 | 0x80));
+            buf.put(start + 3, (byte) (size >>> 21));
+        }
+
+        private void ensureCapacity(int bytes) {
+            if (buf.remaining() < bytes) {
+                ByteBuffer newBuf = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + bytes));
+                buf.flip();
+                newBuf.put(buf);
+                buf = newBuf;
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@
  * SPDX-License-Identifier: Apache-2.0
  */
 
+#include <algorithm>
 #include <string.h>
 #include "callTraceStorage.h"
 #include "os.h"
@@ -10,29 +11,35 @@
 
 static const u32 INITIAL_CAPACITY = 65536;
 static const u32 CALL_TRACE_CHUNK = 8 * 1024 * 1024;
+static const u32 SAMPLE_COPY_CHUNK = 1024 * 1024;
 static const u32 OVERFLOW_TRACE_ID = 0x7fffffff;
+static const u32 STAGING_MAX_PROBES = 16;
 
 
+// Call trace ID is the base ID of the table plus the slot number.
+// Every new table continues the range of IDs of the previous one.
 class LongHashTable {
   private:
     LongHashTable* _prev;
     void* _padding0;
     u32 _capacity;
-    u32 _padding1[15];
+    u32 _base;
+    u32 _padding1[14];
     volatile u32 _size;
     u32 _padding2[15];
 
+  public:
     static size_t getSize(u32 capacity) {
         size_t size = sizeof(LongHashTable) + (sizeof(u64) + sizeof(CallTraceSample)) * capacity;
         return (size + OS::page_mask) & ~OS::page_mask;
     }
 
-  public:
-    static LongHashTable* allocate(LongHashTable* prev, u32 capacity) {
+    static LongHashTable* allocate(LongHashTable* prev, u32 capacity, u32 base) {
         LongHashTable* table = (LongHashTable*)OS::safeAlloc(getSize(capacity));
         if (table != NULL) {
             table->_prev = prev;
             table->_capacity = capacity;
+            table->_base = base;
             table->_size = 0;
         }
         return table;
@@ -56,6 +63,10 @@ class LongHashTable {
         return _capacity;
     }
 
+    u32 base() {
+        return _base;
+    }
+
     u32 size() {
         return _size;
     }
@@ -72,21 +83,53 @@ class LongHashTable {
         return (CallTraceSample*)(keys() + _capacity);
     }
 
+    // Called for the only remaining table, so IDs can start over
     void clear() {
         memset(keys(), 0, (sizeof(u64) + sizeof(CallTraceSample)) * _capacity);
+        _base = 1;
         _size = 0;
     }
 };
 
 
 CallTrace CallTraceStorage::_overflow_trace = {1, {BCI_ERROR, (jmethodID)"storage_overflow"}};
+CallTrace CallTraceStorage::_evicted_trace = {1, {BCI_ERROR, (jmethodID)"storage_evicted"}};
+
+SampleCopy::SampleCopy() : _allocator(SAMPLE_COPY_CHUNK) {
+}
+
+// Replaces trace pointers of the samples with private copies; a trace shared by several samples is copied once
+bool SampleCopy::copyTraces() {
+    const size_t header_size = sizeof(CallTrace) - sizeof(ASGCT_CallFrame);
+    std::map<CallTrace*, CallTrace*> copies;
+
+    for (std::vector<CallTraceSample>::iterator it = samples.begin(); it != samples.end(); ++it) {
+        CallTrace* trace = it->trace;
+        if (trace == NULL) continue;
+
+        CallTrace*& copy = copies[trace];
+        if (copy == NULL) {
+            size_t size = header_size + trace->num_frames * sizeof(ASGCT_CallFrame);
+            if ((copy = (CallTrace*)_allocator.alloc(size)) == NULL) {
+                return false;
+            }
+            memcpy(copy, trace, size);
+        }
+        it->trace = copy;
+    }
+    return true;
+}
 
 CallTraceStorage::CallTraceStorage() : _allocator(CALL_TRACE_CHUNK) {
-    _current_table = LongHashTable::allocate(NULL, INITIAL_CAPACITY);
+    _current_table = LongHashTable::allocate(NULL, INITIAL_CAPACITY, 1);
     _overflow = 0;
+    _evicted = 0;
+    _generation = 0;
+    _dumped = NULL;
 }
 
 CallTraceStorage::~CallTraceStorage() {
+    delete _dumped;
     while (_current_table != NULL) {
         _current_table = _current_table->destroy();
     }
@@ -99,6 +142,11 @@ void CallTraceStorage::clear() {
     _current_table->clear();
     _allocator.clear();
     _overflow = 0;
+    _evicted = 0;
+    delete _dumped;
+    _dumped = NULL;
+    // IDs start over
+    __atomic_add_fetch(&_generation, 1, __ATOMIC_RELEASE);
 }
 
 size_t CallTraceStorage::usedMemory() {
@@ -121,7 +169,7 @@ void CallTraceStorage::collectTraces(std::map<u32, CallTrace*>& map) {
                 values[slot].samples = 0;
                 CallTrace* trace = values[slot].acquireTrace();
                 if (trace != NULL) {
-                    map[capacity - (INITIAL_CAPACITY - 1) + slot] = trace;
+                    map[table->base() + slot] = trace;
                 }
             }
         }
@@ -160,6 +208,34 @@ void CallTraceStorage::collectSamples(std::map<u64, CallTraceSample>& map) {
     }
 }
 
+// Collects increments of samples and counters since the previous call.
+// Previous totals are kept aside, so that the slots do not grow for sessions without delta dumps
+void CallTraceStorage::collectDelta(std::map<u64, CallTraceSample>& map) {
+    if (_dumped == NULL) {
+        _dumped = new std::map<u64, DumpedSample>();
+    }
+
+    std::map<u64, CallTraceSample> totals;
+    collectSamples(totals);
+
+    for (std::map<u64, CallTraceSample>::const_iterator it = totals.begin(); it != totals.end(); ++it) {
+        const CallTraceSample& v = it->second;
+        DumpedSample& d = (*_dumped)[it->first];
+        if (v.samples < d.samples) {
+            // Samples have been reset by collectTraces()
+            d.samples = 0;
+        }
+        if (v.samples == d.samples) continue;
+
+        CallTraceSample& s = map[it->first];
+        s.trace = v.trace;
+        s.samples = v.samples - d.samples;
+        s.counter = v.counter - d.counter;
+        d.samples = v.samples;
+        d.counter = v.counter;
+    }
+}
+
 // Adaptation of MurmurHash64A by Austin Appleby
 u64 CallTraceStorage::calcHash(int num_frames, ASGCT_CallFrame* frames) {
     const u64 M = 0xc6a4a7935bd1e995ULL;
@@ -224,7 +300,28 @@ CallTrace* CallTraceStorage::findCallTrace(LongHashTable* table, u64 hash) {
     return table->values()[slot].trace;
 }
 
-u32 CallTraceStorage::put(int num_frames, ASGCT_CallFrame* frames, u64 counter) {
+// Aggregates a sample in the staging buffer instead of updating the shared table.
+// Repeated samples of the same trace do not touch shared cache lines until the buffer is drained
+static bool stageSample(StagingBuffer* stage, CallTraceSample* target, u64 counter) {
+    u32 index = (u32)((uintptr_t)target / sizeof(CallTraceSample));
+    for (u32 step = 0; step < STAGING_MAX_PROBES; step++) {
+        StagedSample& e = stage->entries[(index + step) & (STAGING_CAPACITY - 1)];
+        if (e.target == target) {
+            e.samples++;
+            e.counter += counter;
+            return true;
+        } else if (e.target == NULL) {
+            e.target = target;
+            e.samples = 1;
+            e.counter = counter;
+            stage->size++;
+            return true;
+        }
+    }
+    return false;
+}
+
+u32 CallTraceStorage::put(int num_frames, ASGCT_CallFrame* frames, u64 counter, StagingBuffer* stage) {
     u64 hash = calcHash(num_frames, frames);
 
     LongHashTable* table = _current_table;
@@ -241,7 +338,7 @@ u32 CallTraceStorage::put(int num_frames, ASGCT_CallFrame* frames, u64 counter)
 
             // Increment the table size, and if the load factor exceeds 0.75, reserve a new table
             if (table->incSize() == capacity * 3 / 4) {
-                LongHashTable* new_table = LongHashTable::allocate(table, capacity * 2);
+                LongHashTable* new_table = LongHashTable::allocate(table, capacity * 2, table->base() + capacity);
                 if (new_table != NULL) {
                     __sync_bool_compare_and_swap(&_current_table, table, new_table);
                 }
@@ -267,11 +364,34 @@ u32 CallTraceStorage::put(int num_frames, ASGCT_CallFrame* frames, u64 counter)
 
     if (counter != 0) {
         CallTraceSample& s = table->values()[slot];
-        atomicInc(s.samples);
-        atomicInc(s.counter, counter);
+        if (stage == NULL) {
+            atomicInc(s.samples);
+            atomicInc(s.counter, counter);
+        } else if (!stageSample(stage, &s, counter)) {
+            drain(stage);
+            stageSample(stage, &s, counter);
+        }
+    }
+
+    return table->base() + slot;
+}
+
+// Adds staged samples to the shared table. Must be called by the owner of the buffer,
+// and before the tables are replaced by clear() or compact()
+void CallTraceStorage::drain(StagingBuffer* stage) {
+    if (stage->size == 0) {
+        return;
     }
 
-    return capacity - (INITIAL_CAPACITY - 1) + slot;
+    for (u32 i = 0; i < STAGING_CAPACITY; i++) {
+        StagedSample& e = stage->entries[i];
+        if (e.target != NULL) {
+            atomicInc(e.target->samples, e.samples);
+            atomicInc(e.target->counter, e.counter);
+            e.target = NULL;
+        }
+    }
+    stage->size = 0;
 }
 
 void CallTraceStorage::add(u32 call_trace_id, u64 counter) {
@@ -279,13 +399,310 @@ void CallTraceStorage::add(u32 call_trace_id, u64 counter) {
         return;
     }
 
-    call_trace_id += (INITIAL_CAPACITY - 1);
     for (LongHashTable* table = _current_table; table != NULL; table = table->prev()) {
-        if (call_trace_id >= table->capacity()) {
-            CallTraceSample& s = table->values()[call_trace_id - table->capacity()];
-            atomicInc(s.samples);
-            atomicInc(s.counter, counter);
+        if (call_trace_id >= table->base()) {
+            // The ID may be out of range if the table has been evicted by compact()
+            u32 slot = call_trace_id - table->base();
+            if (slot < table->capacity()) {
+                CallTraceSample& s = table->values()[slot];
+                atomicInc(s.samples);
+                atomicInc(s.counter, counter);
+            }
             break;
         }
     }
 }
+
+CallTrace* CallTraceStorage::findTrace(u32 call_trace_id) {
+    if (call_trace_id == OVERFLOW_TRACE_ID) {
+        return &_overflow_trace;
+    }
+
+    for (LongHashTable* table = _current_table; table != NULL; table = table->prev()) {
+        if (call_trace_id >= table->base()) {
+            u32 slot = call_trace_id - table->base();
+            return slot < table->capacity() ? table->values()[slot].acquireTrace() : NULL;
+        }
+    }
+    return NULL;
+}
+
+static bool compareHash(const TraceSlot& a, const TraceSlot& b) {
+    return a.hash < b.hash;
+}
+
+static bool compareId(const TraceSlot& a, const TraceSlot& b) {
+    return a.id < b.id;
+}
+
+static bool compareGroupHash(const TraceGroup& g, u64 hash) {
+    return g.hash < hash;
+}
+
+static bool compareCounter(const TraceGroup* a, const TraceGroup* b) {
+    return a->sample.counter > b->sample.counter ||
+           (a->sample.counter == b->sample.counter && a->sample.samples > b->sample.samples);
+}
+
+static void mergeSample(CallTraceSample& dst, const CallTraceSample& src) {
+    dst.samples += src.samples;
+    dst.counter += src.counter;
+}
+
+// Memory taken by the allocator after storing the given number of bytes:
+// partially filled last chunk, plus the reserve allocated once it is half full
+static size_t estimateMemory(size_t bytes) {
+    return (bytes / CALL_TRACE_CHUNK + (bytes % CALL_TRACE_CHUNK > CALL_TRACE_CHUNK / 2 ? 2 : 1)) * (size_t)CALL_TRACE_CHUNK;
+}
+
+// Chooses traces with the largest counters to keep, so that the storage fits in target_bytes.
+// Runs while sampling goes on; slots and samples added in the meantime are picked up by compact().
+// Must be called under the profiler state lock, which has to be held until compact().
+void CallTraceStorage::planCompaction(size_t target_bytes, CompactionPlan& plan) {
+    std::vector<TraceSlot>& slots = plan.slots;
+    std::vector<TraceGroup>& groups = plan.groups;
+    slots.clear();
+    groups.clear();
+
+    for (LongHashTable* table = _current_table; table != NULL; table = table->prev()) {
+        u64* keys = table->keys();
+        CallTraceSample* values = table->values();
+        u32 capacity = table->capacity();
+
+        for (u32 slot = 0; slot < capacity; slot++) {
+            if (keys[slot] != 0) {
+                TraceSlot s = {keys[slot], table->base() + slot, 0, &values[slot]};
+                slots.push_back(s);
+            }
+        }
+    }
+    std::sort(slots.begin(), slots.end(), compareHash);
+
+    for (size_t i = 0; i < slots.size(); i++) {
+        if (groups.empty() || groups.back().hash != slots[i].hash) {
+            TraceGroup g = {slots[i].hash, {NULL, 0, 0}, TRACE_UNKNOWN, 0, NULL};
+            groups.push_back(g);
+        }
+        TraceGroup& g = groups.back();
+        mergeSample(g.sample, *slots[i].value);
+        CallTrace* trace = slots[i].value->acquireTrace();
+        if (trace != NULL) {
+            g.sample.trace = trace;
+        }
+        slots[i].group = groups.size() - 1;
+    }
+
+    u64 evicted_hash = calcHash(_evicted_trace.num_frames, _evicted_trace.frames);
+    std::vector<TraceGroup*> candidates;
+    for (size_t i = 0; i < groups.size(); i++) {
+        if (groups[i].hash != evicted_hash && groups[i].sample.trace != NULL) {
+            candidates.push_back(&groups[i]);
+        }
+    }
+    std::sort(candidates.begin(), candidates.end(), compareCounter);
+
+    // Keep the hottest traces while they fit in the target size together with a table
+    // that has enough free space for new traces
+    const size_t header_size = sizeof(CallTrace) - sizeof(ASGCT_CallFrame);
+    size_t frame_bytes = 0;
+    u32 capacity = INITIAL_CAPACITY;
+    size_t survivors = 0;
+    for (; survivors < candidates.size(); survivors++) {
+        size_t bytes = frame_bytes + header_size + candidates[survivors]->sample.trace->num_frames * sizeof(ASGCT_CallFrame);
+        u32 new_capacity = capacity;
+        while (new_capacity < (survivors + 2) * 2) {
+            new_capacity *= 2;
+        }
+        if (estimateMemory(bytes) + LongHashTable::getSize(new_capacity) > target_bytes) {
+            break;
+        }
+        frame_bytes = bytes;
+        capacity = new_capacity;
+    }
+
+    for (size_t i = 0; i < candidates.size(); i++) {
+        candidates[i]->fate = i < survivors ? TRACE_KEEP : TRACE_EVICT;
+    }
+    plan.capacity = capacity;
+
+    // compact() looks up slots by ID
+    std::sort(slots.begin(), slots.end(), compareId);
+}
+
+// Carries out the plan: survivors are moved to a single new table with a new range of IDs, and their frames
+// are packed together; counters of evicted traces are accumulated in the storage_evicted trace.
+// Traces that have appeared since planning are kept. The work is linear in the number of slots,
+// all sorting is done beforehand by planCompaction().
+// id_map receives new IDs of all stored traces, trace_map receives new addresses of the survivors;
+// either may be NULL if not needed.
+// Must be called when no other thread accesses the storage, i.e. under Profiler::lockAll(),
+// and without releasing the profiler state lock since planCompaction().
+bool CallTraceStorage::compact(CompactionPlan& plan, std::map<u32, u32>* id_map,
+                               std::map<CallTrace*, CallTrace*>* trace_map) {
+    std::vector<TraceSlot>& slots = plan.slots;
+    std::vector<TraceGroup>& groups = plan.groups;
+    const size_t planned_slots = slots.size();
+    const size_t planned_groups = groups.size();
+    std::map<u64, u32> new_groups;
+
+    for (LongHashTable* table = _current_table; table != NULL; table = table->prev()) {
+        u64* keys = table->keys();
+        CallTraceSample* values = table->values();
+        u32 capacity = table->capacity();
+
+        for (u32 slot = 0; slot < capacity; slot++) {
+            u64 hash = keys[slot];
+            TraceSlot s = {hash, table->base() + slot, 0, &values[slot]};
+            if (hash == 0 || std::binary_search(slots.begin(), slots.begin() + planned_slots, s, compareId)) {
+                continue;
+            }
+
+            // The slot has been added after planning
+            std::vector<TraceGroup>::iterator g =
+                std::lower_bound(groups.begin(), groups.begin() + planned_groups, hash, compareGroupHash);
+            if (g != groups.begin() + planned_groups && g->hash == hash) {
+                s.group = g - groups.begin();
+            } else if (new_groups.find(hash) != new_groups.end()) {
+                s.group = new_groups[hash];
+            } else {
+                TraceGroup ng = {hash, {NULL, 0, 0}, TRACE_UNKNOWN, 0, NULL};
+                s.group = new_groups[hash] = groups.size();
+                groups.push_back(ng);
+            }
+            slots.push_back(s);
+        }
+    }
+
+    // Counters have changed since planning, so merge them again
+    for (size_t i = 0; i < groups.size(); i++) {
+        CallTrace* trace = groups[i].sample.trace;
+        CallTraceSample empty = {trace, 0, 0};
+        groups[i].sample = empty;
+    }
+    for (size_t i = 0; i < slots.size(); i++) {
+        TraceGroup& g = groups[slots[i].group];
+        mergeSample(g.sample, *slots[i].value);
+        if (slots[i].value->trace != NULL) {
+            g.sample.trace = slots[i].value->trace;
+        }
+    }
+
+    u64 evicted_hash = calcHash(_evicted_trace.num_frames, _evicted_trace.frames);
+    CallTraceSample evicted = {&_evicted_trace, 0, 0};
+    bool has_evicted = false;
+    u32 evicted_count = 0;
+    std::vector<TraceGroup*> survivors;
+    for (size_t i = 0; i < groups.size(); i++) {
+        TraceGroup& g = groups[i];
+        if (g.hash == evicted_hash) {
+            mergeSample(evicted, g.sample);
+            has_evicted = true;
+        } else if (g.fate == TRACE_EVICT) {
+            mergeSample(evicted, g.sample);
+            has_evicted = true;
+            evicted_count++;
+        } else if (g.sample.trace != NULL) {
+            survivors.push_back(&g);
+        }
+    }
+
+    u32 capacity = plan.capacity;
+    while (capacity < (survivors.size() + 2) * 2) {
+        capacity *= 2;
+    }
+
+    // Continue the range of IDs, so that a stale ID does not point to a wrong trace.
+    // When IDs are exhausted, start over and bump the generation to invalidate all previous IDs
+    u32 base = _current_table->base() + _current_table->capacity();
+    bool wrapped = (u64)base + capacity * 4ULL >= OVERFLOW_TRACE_ID;
+    if (wrapped) {
+        base = 1;
+    }
+    LongHashTable* new_table = LongHashTable::allocate(NULL, capacity, base);
+    if (new_table == NULL) {
+        return false;
+    }
+
+    _evicted += evicted_count;
+
+    // Totals of evicted traces are merged into storage_evicted, and so are their dumped values
+    if (_dumped != NULL && evicted_count > 0) {
+        DumpedSample& d = (*_dumped)[evicted_hash];
+        for (size_t i = 0; i < groups.size(); i++) {
+            std::map<u64, DumpedSample>::iterator it;
+            if (groups[i].fate == TRACE_EVICT && (it = _dumped->find(groups[i].hash)) != _dumped->end()) {
+                d.samples += it->second.samples;
+                d.counter += it->second.counter;
+                _dumped->erase(it);
+            }
+        }
+    }
+
+    // Frames of the survivors are copied to a new allocator, the old one is released at once
+    const size_t header_size = sizeof(CallTrace) - sizeof(ASGCT_CallFrame);
+    LinearAllocator allocator(CALL_TRACE_CHUNK);
+    u64* keys = new_table->keys();
+    CallTraceSample* values = new_table->values();
+    u32 evicted_id = 0;
+
+    for (size_t i = 0; i <= survivors.size(); i++) {
+        TraceGroup* g = i < survivors.size() ? survivors[i] : NULL;
+        if (g == NULL && !has_evicted) break;
+
+        u64 hash = g != NULL ? g->hash : evicted_hash;
+        u32 slot = hash & (capacity - 1);
+        for (u32 step = 1; keys[slot] != 0; step++) {
+            slot = (slot + step) & (capacity - 1);
+        }
+        keys[slot] = hash;
+        new_table->incSize();
+
+        if (g != NULL) {
+            CallTrace* trace = g->sample.trace;
+            size_t size = header_size + trace->num_frames * sizeof(ASGCT_CallFrame);
+            values[slot] = g->sample;
+            values[slot].trace = (CallTrace*)allocator.alloc(size);
+            if (values[slot].trace != NULL) {
+                memcpy(values[slot].trace, trace, size);
+            }
+            g->new_id = base + slot;
+            g->new_trace = values[slot].trace;
+        } else {
+            values[slot] = evicted;
+            evicted_id = base + slot;
+            if (trace_map != NULL) {
+                (*trace_map)[&_evicted_trace] = &_evicted_trace;
+            }
+        }
+    }
+
+    // Evicted IDs are mapped to the storage_evicted trace, so that their samples are not lost
+    for (size_t i = 0; i < slots.size() && (id_map != NULL || trace_map != NULL); i++) {
+        const TraceGroup& g = groups[slots[i].group];
+        if (g.new_id != 0) {
+            if (id_map != NULL) {
+                (*id_map)[slots[i].id] = g.new_id;
+            }
+            if (trace_map != NULL && slots[i].value->trace != NULL) {
+                (*trace_map)[slots[i].value->trace] = g.new_trace;
+            }
+        } else if (evicted_id != 0 && id_map != NULL) {
+            (*id_map)[slots[i].id] = evicted_id;
+        }
+    }
+
+    while (_current_table != NULL) {
+        _current_table = _current_table->destroy();
+    }
+    _current_table = new_table;
+    _allocator.swap(allocator);
+
+    if (wrapped) {
+        __atomic_add_fetch(&_generation, 1, __ATOMIC_RELEASE);
+    }
+
+    // The plan refers to the released tables
+    slots.clear();
+    groups.clear();
+    return true;
+}
@@ -45,13 +45,86 @@ struct CallTraceSample {
     }
 };
 
+// Totals of a call trace at the time of the last delta dump
+struct DumpedSample {
+    u64 samples;
+    u64 counter;
+};
+
+const u32 STAGING_CAPACITY = 256;
+
+struct StagedSample {
+    CallTraceSample* target;
+    u64 samples;
+    u64 counter;
+};
+
+// Samples aggregated by one lock stripe before they are added to the shared table in a batch.
+// Owned by the holder of the matching Profiler lock. A thread maps to a fixed stripe,
+// so the buffer sees repeated samples of the same threads, while the whole set of buffers
+// takes CONCURRENCY_LEVEL * 6 KB regardless of the thread count. Per-thread buffers
+// would need a lock of their own for draining, and megabytes of memory with thousands of threads.
+struct StagingBuffer {
+    u32 size;
+    StagedSample entries[STAGING_CAPACITY];
+};
+
+// Samples together with private copies of their call traces. A dump renders the copy
+// after releasing the profiler state, while the storage may be compacted or cleared.
+class SampleCopy {
+  private:
+    LinearAllocator _allocator;
+
+  public:
+    std::vector<CallTraceSample> samples;
+
+    SampleCopy();
+
+    bool copyTraces();
+};
+
+// A slot of the storage as seen by CallTraceStorage::planCompaction()
+struct TraceSlot {
+    u64 hash;
+    u32 id;
+    u32 group;
+    CallTraceSample* value;
+};
+
+enum TraceFate {
+    TRACE_UNKNOWN,
+    TRACE_KEEP,
+    TRACE_EVICT
+};
+
+// Slots of the same trace in all tables, with their counters merged
+struct TraceGroup {
+    u64 hash;
+    CallTraceSample sample;
+    TraceFate fate;
+    u32 new_id;
+    CallTrace* new_trace;
+};
+
+// Traces chosen for eviction while sampling goes on. Valid until the storage is compacted or cleared.
+struct CompactionPlan {
+    std::vector<TraceSlot> slots;    // sorted by ID
+    std::vector<TraceGroup> groups;  // sorted by hash
+    u32 capacity;
+};
+
 class CallTraceStorage {
   private:
     static CallTrace _overflow_trace;
+    static CallTrace _evicted_trace;
 
     LinearAllocator _allocator;
     LongHashTable* _current_table;
     u64 _overflow;
+    u64 _evicted;
+    u32 _generation;
+    // Keyed by call trace hash; allocated by the first delta dump
+    std::map<u64, DumpedSample>* _dumped;
 
     u64 calcHash(int num_frames, ASGCT_CallFrame* frames);
     CallTrace* storeCallTrace(int num_frames, ASGCT_CallFrame* frames);
@@ -64,12 +137,31 @@ class CallTraceStorage {
     void clear();
     size_t usedMemory();
 
+    u64 overflow() {
+        return _overflow;
+    }
+
+    u64 evicted() {
+        return _evicted;
+    }
+
+    // Changes when compaction runs out of IDs and starts over, invalidating all IDs issued before
+    u32 generation() {
+        return __atomic_load_n(&_generation, __ATOMIC_ACQUIRE);
+    }
+
     void collectTraces(std::map<u32, CallTrace*>& map);
     void collectSamples(std::vector<CallTraceSample*>& samples);
     void collectSamples(std::map<u64, CallTraceSample>& map);
+    void collectDelta(std::map<u64, CallTraceSample>& map);
 
-    u32 put(int num_frames, ASGCT_CallFrame* frames, u64 counter);
+    u32 put(int num_frames, ASGCT_CallFrame* frames, u64 counter, StagingBuffer* stage = NULL);
+    void drain(StagingBuffer* stage);
     void add(u32 call_trace_id, u64 counter);
+    CallTrace* findTrace(u32 call_trace_id);
+
+    void planCompaction(size_t target_bytes, CompactionPlan& plan);
+    bool compact(CompactionPlan& plan, std::map<u32, u32>* id_map, std::map<CallTrace*, CallTrace*>* trace_map);
 };
 
 #endif // _CALLTRACESTORAGE
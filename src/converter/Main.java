@@ -6,8 +6,8 @@
 import one.convert.*;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.List;
 
 public class Main {
 
@@ -35,9 +35,42 @@ public class Main {
             }
         }
 
+        if (args.diff) {
+            if (fileCount != 2) {
+                throw new IllegalArgumentException("--diff requires baseline and target inputs");
+            }
+            String output = isDirectory ? new File(lastFile, "diff." + args.output).getPath() : lastFile;
+
+            System.out.print("Comparing " + getFileName(args.files.get(0)) + " and " + getFileName(args.files.get(1)) +
+                    " -> " + getFileName(output) + " ");
+            System.out.flush();
+
+            long startTime = System.nanoTime();
+            convertDiff(args.files.get(0), args.files.get(1), output, args);
+            long endTime = System.nanoTime();
+
+            System.out.print("# " + (endTime - startTime) / 1000000 / 1000.0 + " s\n");
+            return;
+        }
+
+        if (args.merge) {
+            List<String> inputs = args.files.subList(0, fileCount);
+            String output = isDirectory ? new File(lastFile, "merged." + args.output).getPath() : lastFile;
+
+            System.out.print("Merging " + fileCount + " files -> " + getFileName(output) + " ");
+            System.out.flush();
+
+            long startTime = System.nanoTime();
+            convertMerged(inputs, output, args);
+            long endTime = System.nanoTime();
+
+            System.out.print("# " + (endTime - startTime) / 1000000 / 1000.0 + " s\n");
+            return;
+        }
+
         for (int i = 0; i < fileCount; i++) {
             String input = args.files.get(i);
-            String output = isDirectory ? new File(lastFile, replaceExt(input, args.output)).getPath() : lastFile;
+            String output = isDirectory ? new File(lastFile, replaceExt(input, getExt(args.output))).getPath() : lastFile;
 
             System.out.print("Converting " + getFileName(input) + " -> " + getFileName(output) + " ");
             System.out.flush();
@@ -51,46 +84,67 @@ public class Main {
     }
 
     public static void convert(String input, String output, Arguments args) throws IOException {
-        if (isJfr(input)) {
+        if (JfrConverter.isJfr(input)) {
             if ("html".equals(args.output)) {
                 JfrToFlame.convert(input, output, args);
+            } else if ("heatmap".equals(args.output)) {
+                JfrToHeatmap.convert(input, output, args);
             } else if ("pprof".equals(args.output) || "pb".equals(args.output) || args.output.endsWith("gz")) {
                 JfrToPprof.convert(input, output, args);
             } else {
                 throw new IllegalArgumentException("Unrecognized output format: " + args.output);
             }
+        } else if (PprofToFlame.isPprof(input)) {
+            PprofToFlame.convert(input, output, args);
         } else {
             FlameGraph.convert(input, output, args);
         }
     }
 
+    public static void convertMerged(List<String> inputs, String output, Arguments args) throws IOException {
+        if ("pprof".equals(args.output) || "pb".equals(args.output) || args.output.endsWith("gz")) {
+            for (String input : inputs) {
+                if (!JfrConverter.isJfr(input)) {
+                    throw new IllegalArgumentException("Only JFR recordings can be merged into pprof: " + input);
+                }
+            }
+            JfrToPprof.convertMerged(inputs, output, args);
+        } else if ("html".equals(args.output) || "collapsed".equals(args.output)) {
+            FlameGraphMerger.convert(inputs, output, args);
+        } else {
+            throw new IllegalArgumentException("Unrecognized output format: " + args.output);
+        }
+    }
+
+    public static void convertDiff(String baseline, String target, String output, Arguments args) throws IOException {
+        if ("html".equals(args.output) || "collapsed".equals(args.output)) {
+            FlameGraphMerger.convertDiff(baseline, target, output, args);
+        } else {
+            throw new IllegalArgumentException("Unsupported output format for diff: " + args.output);
+        }
+    }
+
     private static String getFileName(String fileName) {
         return fileName.substring(fileName.lastIndexOf(File.separatorChar) + 1);
     }
 
+    private static String getExt(String format) {
+        return "heatmap".equals(format) ? "html" : format;
+    }
+
     private static String replaceExt(String fileName, String ext) {
         int slash = fileName.lastIndexOf(File.separatorChar);
         int dot = fileName.lastIndexOf('.');
         return dot > slash ? fileName.substring(slash + 1, dot + 1) + ext : fileName.substring(slash + 1) + '.' + ext;
     }
 
-    private static boolean isJfr(String fileName) throws IOException {
-        if (fileName.endsWith(".jfr")) {
-            return true;
-        } else if (fileName.endsWith(".collapsed") || fileName.endsWith(".txt") || fileName.endsWith(".csv")) {
-            return false;
-        }
-        byte[] buf = new byte[4];
-        try (FileInputStream fis = new FileInputStream(fileName)) {
-            return fis.read(buf) == 4 && buf[0] == 'F' && buf[1] == 'L' && buf[2] == 'R' && buf[3] == 0;
-        }
-    }
-
     private static void usage() {
         System.out.print("Usage: jfrconv [options] <input> [<input>...] <output>\n" +
                 "\n" +
                 "Conversion options:\n" +
-                "  -o --output FORMAT    Output format: html, collapsed, pprof, pb.gz\n" +
+                "  -o --output FORMAT    Output format: html, collapsed, pprof, pb.gz, heatmap\n" +
+                "     --merge            Merge all inputs into a single output\n" +
+                "     --diff             Differential Flame Graph of <baseline> <target>\n" +
                 "\n" +
                 "JFR options:\n" +
                 "     --cpu              CPU profile\n" +
@@ -109,6 +163,10 @@ public class Main {
                 "     --dot              Dotted class names\n" +
                 "     --from TIME        Start time in ms (absolute or relative)\n" +
                 "     --to TIME          End time in ms (absolute or relative)\n" +
+                "     --bucket MS        Heatmap time bucket in ms (default 100)\n" +
+                "     --mmap             Memory-map input file instead of buffered reading\n" +
+                "     --parallel         Convert JFR chunks in parallel\n" +
+                "     --index            Create or reuse chunk index <input>.idx for --from/--to\n" +
                 "\n" +
                 "Flame Graph options:\n" +
                 "     --title STRING     Flame Graph title\n" +
@@ -19,6 +19,7 @@ public class Arguments {
     public Pattern exclude;
     public double minwidth;
     public int skip;
+    public int bucket = 100;
     public boolean help;
     public boolean reverse;
     public boolean cpu;
@@ -34,6 +35,11 @@ public class Arguments {
     public boolean simple;
     public boolean norm;
     public boolean dot;
+    public boolean mmap;
+    public boolean parallel;
+    public boolean merge;
+    public boolean diff;
+    public boolean index;
     public long from;
     public long to;
     public final List<String> files = new ArrayList<>();
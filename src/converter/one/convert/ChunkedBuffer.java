@@ -0,0 +1,57 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.convert;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory output stream that grows by appending fixed-size blocks
+ * instead of copying its contents into a twice larger array.
+ */
+class ChunkedBuffer extends OutputStream {
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    private final List<byte[]> blocks = new ArrayList<>();
+    private byte[] current;
+    private int pos = BLOCK_SIZE;
+
+    @Override
+    public void write(int b) {
+        if (pos == BLOCK_SIZE) {
+            addBlock();
+        }
+        current[pos++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (pos == BLOCK_SIZE) {
+                addBlock();
+            }
+            int n = Math.min(len, BLOCK_SIZE - pos);
+            System.arraycopy(b, off, current, pos, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        for (int i = 0; i < blocks.size(); i++) {
+            byte[] block = blocks.get(i);
+            out.write(block, 0, i == blocks.size() - 1 ? pos : BLOCK_SIZE);
+        }
+    }
+
+    private void addBlock() {
+        blocks.add(current = new byte[BLOCK_SIZE]);
+        pos = 0;
+    }
+}
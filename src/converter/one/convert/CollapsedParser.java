@@ -0,0 +1,257 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.convert;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses collapsed stacks in parallel. The input file is memory-mapped and split
+ * into line-aligned segments. Each worker parses segments into its own Flame Graph;
+ * frame names are looked up by their bytes, so that a String is created only once
+ * per distinct name rather than per frame occurrence. Partial graphs are merged at the end.
+ * Input that is not a regular file, such as a pipe, is parsed sequentially as a stream.
+ */
+public class CollapsedParser {
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final long MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+    private final FlameGraph fg;
+    private final CallStack stack = new CallStack();
+    private final NameTable names = new NameTable();
+
+    private CollapsedParser(Arguments args) {
+        this.fg = new FlameGraph(args);
+    }
+
+    public static FlameGraph parse(String fileName, Arguments args) throws IOException {
+        Path path = Paths.get(fileName);
+        if (!Files.isRegularFile(path) || Files.size(path) == 0) {
+            // Pipes and devices cannot be mapped, and their size is reported as 0
+            FlameGraph fg = new FlameGraph(args);
+            try (InputStreamReader in = new InputStreamReader(new FileInputStream(fileName), StandardCharsets.UTF_8)) {
+                fg.parseCollapsed(in);
+            }
+            return fg;
+        }
+
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            List<long[]> segments = split(ch);
+
+            ForkJoinPool pool = ForkJoinPool.commonPool();
+            int workers = Math.max(Math.min(pool.getParallelism(), segments.size()), 1);
+            AtomicInteger nextSegment = new AtomicInteger();
+
+            List<Callable<FlameGraph>> tasks = new ArrayList<>(workers);
+            for (int i = 0; i < workers; i++) {
+                tasks.add(() -> {
+                    CollapsedParser parser = new CollapsedParser(args);
+                    for (int n; (n = nextSegment.getAndIncrement()) < segments.size(); ) {
+                        long[] segment = segments.get(n);
+                        parser.parseSegment(ch.map(FileChannel.MapMode.READ_ONLY, segment[0], segment[1]));
+                    }
+                    return parser.fg;
+                });
+            }
+
+            List<FlameGraph> partials = JfrToFlame.getAll(pool.invokeAll(tasks));
+            FlameGraph fg = partials.get(0);
+            for (int i = 1; i < partials.size(); i++) {
+                fg.merge(partials.get(i));
+                partials.set(i, null);
+            }
+            return fg;
+        }
+    }
+
+    // Returns (offset, length) pairs of segments that start at the beginning of a line
+    private static List<long[]> split(FileChannel ch) throws IOException {
+        long fileSize = ch.size();
+        long parallelism = ForkJoinPool.commonPool().getParallelism();
+        long segmentSize = Math.min(Math.max(fileSize / (parallelism * 4), MIN_SEGMENT_SIZE), MAX_SEGMENT_SIZE);
+
+        List<long[]> segments = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        for (long start = 0; start < fileSize; ) {
+            long end = start + segmentSize;
+            if (end >= fileSize) {
+                end = fileSize;
+            } else {
+                end = findLineEnd(ch, buf, end, fileSize);
+            }
+            segments.add(new long[]{start, end - start});
+            start = end;
+        }
+        return segments;
+    }
+
+    // Position after the next '\n' at or after pos
+    private static long findLineEnd(FileChannel ch, ByteBuffer buf, long pos, long fileSize) throws IOException {
+        while (pos < fileSize) {
+            buf.clear();
+            int n = ch.read(buf, pos);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+        return fileSize;
+    }
+
+    private void parseSegment(ByteBuffer buf) {
+        int limit = buf.limit();
+        for (int lineStart = 0; lineStart < limit; ) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && buf.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            parseLine(buf, lineStart, lineEnd > lineStart && buf.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd);
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    private void parseLine(ByteBuffer buf, int from, int to) {
+        int space = to;
+        while (--space >= from && buf.get(space) != ' ') {
+            // find the last space
+        }
+        if (space <= from) {
+            return;
+        }
+
+        long ticks = parseLong(buf, space + 1, to);
+
+        for (int start = from, end; start < space; start = end + 1) {
+            for (end = start; end < space && buf.get(end) != ';'; end++) {
+                // find the end of frame
+            }
+            int index = names.index(buf, start, end);
+            stack.push(names.names[index], names.types[index]);
+        }
+
+        fg.addSample(stack, ticks);
+        stack.clear();
+    }
+
+    private static long parseLong(ByteBuffer buf, int from, int to) {
+        long result = 0;
+        boolean negative = from < to && buf.get(from) == '-';
+        for (int i = negative ? from + 1 : from; i < to; i++) {
+            int digit = buf.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid sample count at line ending " + to);
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Frame names keyed by their UTF-8 bytes. Also caches the frame type
+     * detected from the name suffix, with the suffix removed from the name.
+     */
+    static class NameTable {
+        private int[] table = new int[1024];
+        private byte[][] keys = new byte[512][];
+        private int[] hashes = new int[512];
+        String[] names = new String[512];
+        byte[] types = new byte[512];
+        private int size = 1;
+
+        int index(ByteBuffer buf, int from, int to) {
+            int hash = 0;
+            for (int i = from; i < to; i++) {
+                hash = hash * 31 + buf.get(i);
+            }
+
+            int mask = table.length - 1;
+            for (int i = (hash * 0x9e3779b9) >>> 8 & mask; ; i = (i + 1) & mask) {
+                int index = table[i];
+                if (index == 0) {
+                    return table[i] = add(buf, from, to, hash);
+                } else if (hashes[index] == hash && equals(keys[index], buf, from, to)) {
+                    return index;
+                }
+            }
+        }
+
+        private int add(ByteBuffer buf, int from, int to, int hash) {
+            int index = size++;
+            if (index == keys.length) {
+                keys = Arrays.copyOf(keys, index * 2);
+                hashes = Arrays.copyOf(hashes, index * 2);
+                names = Arrays.copyOf(names, index * 2);
+                types = Arrays.copyOf(types, index * 2);
+            }
+
+            byte[] key = new byte[to - from];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = buf.get(from + i);
+            }
+
+            String name = new String(key, StandardCharsets.UTF_8);
+            byte type = FlameGraph.detectType(name);
+            if ((type & FlameGraph.HAS_SUFFIX) != 0) {
+                name = name.substring(0, name.length() - 4);
+                type ^= FlameGraph.HAS_SUFFIX;
+            }
+
+            keys[index] = key;
+            hashes[index] = hash;
+            names[index] = name;
+            types[index] = type;
+
+            if (size * 2 > table.length) {
+                rehash(table.length * 2);
+            }
+            return index;
+        }
+
+        private void rehash(int newCapacity) {
+            int[] newTable = new int[newCapacity];
+            int mask = newCapacity - 1;
+            for (int index = 1; index < size; index++) {
+                int i = (hashes[index] * 0x9e3779b9) >>> 8 & mask;
+                while (newTable[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                newTable[i] = index;
+            }
+            table = newTable;
+        }
+
+        private static boolean equals(byte[] key, ByteBuffer buf, int from, int to) {
+            if (key.length != to - from) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != buf.get(from + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -8,28 +8,28 @@ package one.convert;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.StringTokenizer;
 import java.util.regex.Pattern;
 
 import static one.convert.Frame.*;
 
-public class FlameGraph implements Comparator<Frame> {
-    private static final Frame[] EMPTY_FRAME_ARRAY = {};
+public class FlameGraph {
     private static final String[] FRAME_SUFFIX = {"_[0]", "_[j]", "_[i]", "", "", "_[k]", "_[1]"};
-    private static final byte HAS_SUFFIX = (byte) 0x80;
-    private static final int FLUSH_THRESHOLD = 15000;
+    private static final byte[][] FRAME_SUFFIX_BYTES = encodeStrings(FRAME_SUFFIX);
+    static final byte HAS_SUFFIX = (byte) 0x80;
 
     private final Arguments args;
     private final Index<String> cpool = new Index<>(String.class, "");
-    private final Frame root = new Frame(0, TYPE_NATIVE);
-    private final StringBuilder outbuf = new StringBuilder(FLUSH_THRESHOLD + 1000);
+    private final FrameTree tree = new FrameTree();
+    private byte[] prefix = new byte[256];
     private int[] order;
     private int depth;
     private int lastLevel;
     private long lastX;
     private long lastTotal;
     private long mintotal;
+    private boolean diff;
+    private double baselineScale;
 
     public FlameGraph(Arguments args) {
         this.args = args;
@@ -63,10 +63,11 @@ public class FlameGraph implements Comparator<Frame> {
     }
 
     public void parseHtml(Reader in) throws IOException {
-        Frame[] levels = new Frame[128];
+        int[] levels = new int[128];
         int level = 0;
         long total = 0;
         boolean needRebuild = args.reverse || args.include != null || args.exclude != null;
+        FrameTree tree = needRebuild ? new FrameTree() : this.tree;
 
         try (BufferedReader br = new BufferedReader(in)) {
             while (!br.readLine().startsWith("const cpool")) ;
@@ -105,16 +106,14 @@ public class FlameGraph implements Comparator<Frame> {
                     type = TYPE_JIT_COMPILED;
                 }
 
-                Frame f = level > 0 || needRebuild ? new Frame(titleIndex, type) : root;
-                f.self = f.total = total;
-                if (st.hasMoreTokens()) f.inlined = Long.parseLong(st.nextToken());
-                if (st.hasMoreTokens()) f.c1 = Long.parseLong(st.nextToken());
-                if (st.hasMoreTokens()) f.interpreted = Long.parseLong(st.nextToken());
+                int f = level > 0 ? tree.getChild(levels[level - 1], titleIndex, type) : FrameTree.ROOT;
+                tree.self[f] = tree.total[f] = total;
+                if (st.hasMoreTokens()) tree.inlined[f] = Long.parseLong(st.nextToken());
+                if (st.hasMoreTokens()) tree.c1[f] = Long.parseLong(st.nextToken());
+                if (st.hasMoreTokens()) tree.interpreted[f] = Long.parseLong(st.nextToken());
 
                 if (level > 0) {
-                    Frame parent = levels[level - 1];
-                    parent.put(f.key, f);
-                    parent.self -= total;
+                    tree.self[levels[level - 1]] -= total;
                     depth = Math.max(depth, level);
                 }
                 if (level >= levels.length) {
@@ -125,20 +124,18 @@ public class FlameGraph implements Comparator<Frame> {
         }
 
         if (needRebuild) {
-            rebuild(levels[0], new CallStack(), cpool.keys());
+            rebuild(tree, FrameTree.ROOT, new CallStack(), cpool.keys());
         }
     }
 
-    private void rebuild(Frame frame, CallStack stack, String[] strings) {
-        if (frame.self > 0) {
-            addSample(stack, frame.self);
+    private void rebuild(FrameTree tree, int frame, CallStack stack, String[] strings) {
+        if (tree.self[frame] > 0) {
+            addSample(stack, tree.self[frame]);
         }
-        if (!frame.isEmpty()) {
-            for (Frame child : frame.values()) {
-                stack.push(strings[child.getTitleIndex()], child.getType());
-                rebuild(child, stack, strings);
-                stack.pop();
-            }
+        for (int child = tree.firstChild(frame); child != 0; child = tree.nextSibling(child)) {
+            stack.push(strings[tree.getTitleIndex(child)], tree.getType(child));
+            rebuild(tree, child, stack, strings);
+            stack.pop();
         }
     }
 
@@ -147,7 +144,7 @@ public class FlameGraph implements Comparator<Frame> {
             return;
         }
 
-        Frame frame = root;
+        int frame = FrameTree.ROOT;
         if (args.reverse) {
             for (int i = stack.size; --i >= args.skip; ) {
                 frame = addChild(frame, stack.names[i], stack.types[i], ticks);
@@ -157,75 +154,161 @@ public class FlameGraph implements Comparator<Frame> {
                 frame = addChild(frame, stack.names[i], stack.types[i], ticks);
             }
         }
-        frame.total += ticks;
-        frame.self += ticks;
+        tree.total[frame] += ticks;
+        tree.self[frame] += ticks;
 
         depth = Math.max(depth, stack.size);
     }
 
+    // Adds all samples of another Flame Graph built with the same arguments
+    public void merge(FlameGraph other) {
+        mergeFrame(FrameTree.ROOT, other.tree, FrameTree.ROOT, other.cpool.keys());
+        depth = Math.max(depth, other.depth);
+    }
+
+    private void mergeFrame(int frame, FrameTree otherTree, int other, String[] strings) {
+        tree.addCounters(frame, otherTree, other);
+        for (int child = otherTree.firstChild(other); child != 0; child = otherTree.nextSibling(child)) {
+            int titleIndex = cpool.index(strings[otherTree.getTitleIndex(child)]);
+            int newChild = tree.getChild(frame, titleIndex, otherTree.getOriginalType(child));
+            mergeFrame(newChild, otherTree, child, strings);
+        }
+    }
+
+    /**
+     * Turns this graph into a differential one: every frame gets the counters of the matching
+     * frame in the baseline profile. Baseline counters are normalized to the total of this profile.
+     */
+    public void diff(FlameGraph baseline) {
+        tree.enableBaseline();
+        diffFrame(FrameTree.ROOT, baseline.tree, FrameTree.ROOT, baseline.cpool.keys());
+        depth = Math.max(depth, baseline.depth);
+
+        long baselineTotal = baseline.tree.total[FrameTree.ROOT];
+        baselineScale = baselineTotal == 0 ? 0 : (double) tree.total[FrameTree.ROOT] / baselineTotal;
+        diff = true;
+    }
+
+    private void diffFrame(int frame, FrameTree baselineTree, int baseline, String[] strings) {
+        tree.addBaseline(frame, baselineTree, baseline);
+        for (int child = baselineTree.firstChild(baseline); child != 0; child = baselineTree.nextSibling(child)) {
+            int titleIndex = cpool.index(strings[baselineTree.getTitleIndex(child)]);
+            int newChild = tree.getChild(frame, titleIndex, baselineTree.getOriginalType(child));
+            diffFrame(newChild, baselineTree, child, strings);
+        }
+    }
+
     public void dump(PrintStream out) {
-        mintotal = (long) (root.total * args.minwidth / 100);
+        try {
+            dump((OutputStream) out);
+        } catch (IOException e) {
+            // PrintStream does not throw IOException; errors are reported by out.checkError()
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void dump(OutputStream stream) throws IOException {
+        TextOutput out = new TextOutput(stream);
+        mintotal = (long) (tree.total[FrameTree.ROOT] * args.minwidth / 100);
 
         if ("collapsed".equals(args.output)) {
-            printFrameCollapsed(out, root, cpool.keys());
+            printFrameCollapsed(out, FrameTree.ROOT, encodeStrings(cpool.keys()), 0);
+            out.flush();
             return;
         }
 
-        String tail = getResource("/flame.html");
+        byte[] template = getResource("/flame.html");
 
-        tail = printTill(out, tail, "/*height:*/300");
-        int depth = mintotal > 1 ? root.depth(mintotal) : this.depth + 1;
+        int tail = printTill(out, template, 0, "/*height:*/300");
+        int depth = mintotal > 1 ? tree.depth(FrameTree.ROOT, mintotal) : this.depth + 1;
         out.print(Math.min(depth * 16, 32767));
 
-        tail = printTill(out, tail, "/*title:*/");
+        tail = printTill(out, template, tail, "/*title:*/");
         out.print(args.title);
 
-        tail = printTill(out, tail, "/*reverse:*/false");
+        tail = printTill(out, template, tail, "/*reverse:*/false");
         out.print(args.reverse);
 
-        tail = printTill(out, tail, "/*depth:*/0");
+        tail = printTill(out, template, tail, "/*diff:*/false");
+        out.print(diff);
+
+        tail = printTill(out, template, tail, "/*depth:*/0");
         out.print(depth);
 
-        tail = printTill(out, tail, "/*cpool:*/");
-        printCpool(out);
+        tail = printTill(out, template, tail, "/*cpool:*/");
+        order = printCpool(out, cpool);
+
+        tail = printTill(out, template, tail, "/*frames:*/");
+        printFrame(out, FrameTree.ROOT, 0, 0);
 
-        tail = printTill(out, tail, "/*frames:*/");
-        printFrame(out, root, 0, 0);
-        out.print(outbuf);
+        tail = printTill(out, template, tail, "/*highlight:*/");
+        if (args.highlight != null) {
+            out.print('\'');
+            printEscaped(out, args.highlight, 0);
+            out.print('\'');
+        }
 
-        tail = printTill(out, tail, "/*highlight:*/");
-        out.print(args.highlight != null ? "'" + escape(args.highlight) + "'" : "");
+        out.write(template, tail, template.length - tail);
+        out.flush();
+    }
 
-        out.print(tail);
+    // Writes the template from the given position up to the marker, and returns the position after the marker
+    static int printTill(TextOutput out, byte[] template, int from, String till) throws IOException {
+        int index = indexOf(template, from, till);
+        out.write(template, from, index - from);
+        return index + till.length();
     }
 
-    private String printTill(PrintStream out, String data, String till) {
-        int index = data.indexOf(till);
-        out.print(data.substring(0, index));
-        return data.substring(index + till.length());
+    private static int indexOf(byte[] data, int from, String ascii) {
+        int last = data.length - ascii.length();
+        outer:
+        for (int i = from; i <= last; i++) {
+            for (int j = 0; j < ascii.length(); j++) {
+                if (data[i + j] != ascii.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        throw new IllegalStateException("Marker not found in template: " + ascii);
     }
 
-    private void printCpool(PrintStream out) {
+    // Prints sorted and prefix-compressed strings, and returns their order by index in the original pool
+    static int[] printCpool(TextOutput out, Index<String> cpool) throws IOException {
         String[] strings = cpool.keys();
         Arrays.sort(strings);
         out.print("'all'");
 
-        order = new int[strings.length];
+        int[] order = new int[strings.length];
         String s = "";
         for (int i = 1; i < strings.length; i++) {
             int prefixLen = Math.min(getCommonPrefix(s, s = strings[i]), 95);
-            out.print(",\n'" + escape((char) (prefixLen + ' ') + s.substring(prefixLen)) + "'");
+            // The first character encodes the length of a common prefix and may need escaping as well
+            char prefixChar = (char) (prefixLen + ' ');
+            out.print(",\n'");
+            if (prefixChar == '\\' || prefixChar == '\'') {
+                out.print('\\');
+            }
+            out.print(prefixChar);
+            printEscaped(out, s, prefixLen);
+            out.print('\'');
             order[cpool.get(s)] = i;
         }
 
         // cpool is not used beyond this point
         cpool.clear();
+        return order;
     }
 
-    private void printFrame(PrintStream out, Frame frame, int level, long x) {
-        int nameAndType = order[frame.getTitleIndex()] << 3 | frame.getType();
-        boolean hasExtraTypes = (frame.inlined | frame.c1 | frame.interpreted) != 0 &&
-                frame.inlined < frame.total && frame.interpreted < frame.total;
+    private void printFrame(TextOutput out, int frame, int level, long x) throws IOException {
+        FrameTree tree = this.tree;
+        long total = tree.total[frame];
+        long inlined = tree.inlined[frame];
+        long c1 = tree.c1[frame];
+        long interpreted = tree.interpreted[frame];
+
+        int nameAndType = order[tree.getTitleIndex(frame)] << 3 | tree.getType(frame);
+        boolean hasExtraTypes = (inlined | c1 | interpreted) != 0 && inlined < total && interpreted < total;
 
         char func = 'f';
         if (level == lastLevel + 1 && x == lastX) {
@@ -234,62 +317,89 @@ public class FlameGraph implements Comparator<Frame> {
             func = 'n';
         }
 
-        StringBuilder sb = outbuf.append(func).append('(').append(nameAndType);
+        out.print(func).print('(').print(nameAndType);
         if (func == 'f') {
-            sb.append(',').append(level).append(',').append(x - lastX);
+            out.print(',').print(level).print(',').print(x - lastX);
         }
-        if (frame.total != lastTotal || hasExtraTypes) {
-            sb.append(',').append(frame.total);
+        if (total != lastTotal || hasExtraTypes) {
+            out.print(',').print(total);
             if (hasExtraTypes) {
-                sb.append(',').append(frame.inlined).append(',').append(frame.c1).append(',').append(frame.interpreted);
+                out.print(',').print(inlined).print(',').print(c1).print(',').print(interpreted);
             }
         }
-        sb.append(")\n");
+        out.print(")\n");
 
-        if (sb.length() > FLUSH_THRESHOLD) {
-            out.print(sb);
-            sb.setLength(0);
+        if (diff) {
+            long delta = total - Math.round(tree.baselineTotal[frame] * baselineScale);
+            if (delta != 0) {
+                out.print("d(").print(delta).print(")\n");
+            }
         }
 
         lastLevel = level;
         lastX = x;
-        lastTotal = frame.total;
-
-        Frame[] children = frame.values().toArray(EMPTY_FRAME_ARRAY);
-        Arrays.sort(children, this);
+        lastTotal = total;
 
-        x += frame.self;
-        for (Frame child : children) {
-            if (child.total >= mintotal) {
+        // Sort children by title: the sort key is packed together with the node id
+        long[] children = new long[tree.childCount(frame)];
+        int count = 0;
+        for (int child = tree.firstChild(frame); child != 0; child = tree.nextSibling(child)) {
+            children[count++] = (long) order[tree.getTitleIndex(child)] << 32 | child;
+        }
+        Arrays.sort(children);
+
+        x += tree.self[frame];
+        for (long packed : children) {
+            int child = (int) packed;
+            long childTotal = tree.total[child];
+            // Frames missing in the target profile have zero width and are not shown in diff mode
+            if (childTotal >= mintotal && (childTotal > 0 || !diff)) {
                 printFrame(out, child, level + 1, x);
             }
-            x += child.total;
+            x += childTotal;
         }
     }
 
-    private void printFrameCollapsed(PrintStream out, Frame frame, String[] strings) {
-        StringBuilder sb = outbuf;
-        int prevLength = sb.length();
-
-        if (frame != root) {
-            sb.append(strings[frame.getTitleIndex()]).append(FRAME_SUFFIX[frame.getType()]);
-            if (frame.self > 0) {
-                int tmpLength = sb.length();
-                out.print(sb.append(' ').append(frame.self).append('\n'));
-                sb.setLength(tmpLength);
+    // Collapsed output repeats every frame name many times, so names are encoded to UTF-8 only once
+    private void printFrameCollapsed(TextOutput out, int frame, byte[][] names, int prefixLen) throws IOException {
+        if (frame != FrameTree.ROOT) {
+            prefixLen = appendPrefix(prefixLen, names[tree.getTitleIndex(frame)]);
+            prefixLen = appendPrefix(prefixLen, FRAME_SUFFIX_BYTES[tree.getType(frame)]);
+            long self = tree.self[frame];
+            if (diff) {
+                // Same format as difffolded.pl: stack, baseline value, target value
+                long baselineSelf = Math.round(tree.baselineSelf[frame] * baselineScale);
+                if (self > 0 || baselineSelf > 0) {
+                    out.write(prefix, 0, prefixLen).print(' ').print(baselineSelf).print(' ').print(self).print('\n');
+                }
+            } else if (self > 0) {
+                out.write(prefix, 0, prefixLen).print(' ').print(self).print('\n');
             }
-            sb.append(';');
+            prefix[prefixLen++] = ';';
         }
 
-        if (!frame.isEmpty()) {
-            for (Frame child : frame.values()) {
-                if (child.total >= mintotal) {
-                    printFrameCollapsed(out, child, strings);
-                }
+        for (int child = tree.firstChild(frame); child != 0; child = tree.nextSibling(child)) {
+            if (tree.total[child] >= mintotal || diff && tree.baselineTotal[child] > 0) {
+                printFrameCollapsed(out, child, names, prefixLen);
             }
         }
+    }
+
+    private int appendPrefix(int prefixLen, byte[] bytes) {
+        // Reserve one extra byte for the separator
+        if (prefixLen + bytes.length + 1 > prefix.length) {
+            prefix = Arrays.copyOf(prefix, Math.max(prefix.length * 2, prefixLen + bytes.length + 1));
+        }
+        System.arraycopy(bytes, 0, prefix, prefixLen, bytes.length);
+        return prefixLen + bytes.length;
+    }
 
-        sb.setLength(prevLength);
+    private static byte[][] encodeStrings(String[] strings) {
+        byte[][] result = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            result[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return result;
     }
 
     private boolean excludeStack(CallStack stack) {
@@ -312,29 +422,33 @@ public class FlameGraph implements Comparator<Frame> {
         return include != null;
     }
 
-    private Frame addChild(Frame frame, String title, byte type, long ticks) {
-        frame.total += ticks;
+    private int addChild(int frame, String title, byte type, long ticks) {
+        FrameTree tree = this.tree;
+        tree.total[frame] += ticks;
 
         int titleIndex = cpool.index(title);
 
-        Frame child;
+        int child;
         switch (type) {
             case TYPE_INTERPRETED:
-                (child = frame.getChild(titleIndex, TYPE_JIT_COMPILED)).interpreted += ticks;
+                child = tree.getChild(frame, titleIndex, TYPE_JIT_COMPILED);
+                tree.interpreted[child] += ticks;
                 break;
             case TYPE_INLINED:
-                (child = frame.getChild(titleIndex, TYPE_JIT_COMPILED)).inlined += ticks;
+                child = tree.getChild(frame, titleIndex, TYPE_JIT_COMPILED);
+                tree.inlined[child] += ticks;
                 break;
             case TYPE_C1_COMPILED:
-                (child = frame.getChild(titleIndex, TYPE_JIT_COMPILED)).c1 += ticks;
+                child = tree.getChild(frame, titleIndex, TYPE_JIT_COMPILED);
+                tree.c1[child] += ticks;
                 break;
             default:
-                child = frame.getChild(titleIndex, type);
+                child = tree.getChild(frame, titleIndex, type);
         }
         return child;
     }
 
-    private static byte detectType(String title) {
+    static byte detectType(String title) {
         if (title.endsWith("_[j]")) {
             return TYPE_JIT_COMPILED | HAS_SUFFIX;
         } else if (title.endsWith("_[i]")) {
@@ -365,10 +479,16 @@ public class FlameGraph implements Comparator<Frame> {
         return length;
     }
 
-    private static String escape(String s) {
-        if (s.indexOf('\\') >= 0) s = s.replace("\\", "\\\\");
-        if (s.indexOf('\'') >= 0) s = s.replace("'", "\\'");
-        return s;
+    // Escapes backslashes and quotes for a JavaScript string literal
+    static void printEscaped(TextOutput out, String s, int from) throws IOException {
+        for (int i = from; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' || c == '\'') {
+                out.print(s, from, i).print('\\');
+                from = i;
+            }
+        }
+        out.print(s, from, s.length());
     }
 
     private static String unescape(String s) {
@@ -377,7 +497,7 @@ public class FlameGraph implements Comparator<Frame> {
         return s;
     }
 
-    private static String getResource(String name) {
+    static byte[] getResource(String name) {
         try (InputStream stream = FlameGraph.class.getResourceAsStream(name)) {
             if (stream == null) {
                 throw new IOException("No resource found");
@@ -388,28 +508,28 @@ public class FlameGraph implements Comparator<Frame> {
             for (int length; (length = stream.read(buffer)) != -1; ) {
                 result.write(buffer, 0, length);
             }
-            return result.toString("UTF-8");
+            return result.toByteArray();
         } catch (IOException e) {
             throw new IllegalStateException("Can't load resource with name " + name);
         }
     }
 
-    @Override
-    public int compare(Frame f1, Frame f2) {
-        return order[f1.getTitleIndex()] - order[f2.getTitleIndex()];
+    public static void convert(String input, String output, Arguments args) throws IOException {
+        FlameGraph fg = parse(input, args);
+        try (FileOutputStream out = new FileOutputStream(output)) {
+            fg.dump(out);
+        }
     }
 
-    public static void convert(String input, String output, Arguments args) throws IOException {
+    public static FlameGraph parse(String input, Arguments args) throws IOException {
+        if (!input.endsWith(".html")) {
+            return CollapsedParser.parse(input, args);
+        }
+
         FlameGraph fg = new FlameGraph(args);
         try (InputStreamReader in = new InputStreamReader(new FileInputStream(input), StandardCharsets.UTF_8)) {
-            if (input.endsWith(".html")) {
-                fg.parseHtml(in);
-            } else {
-                fg.parseCollapsed(in);
-            }
-        }
-        try (PrintStream out = new PrintStream(output, "UTF-8")) {
-            fg.dump(out);
+            fg.parseHtml(in);
         }
+        return fg;
     }
 }
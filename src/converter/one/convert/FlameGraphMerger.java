@@ -0,0 +1,76 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.convert;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Aggregates multiple recordings (.jfr, pprof, .collapsed or .html) into one Flame Graph.
+ * Each worker converts the next available input and merges it into its own partial
+ * Flame Graph, so that no more than one graph per worker is retained at a time.
+ * Also builds differential Flame Graphs of two recordings.
+ */
+public class FlameGraphMerger {
+
+    public static void convert(List<String> inputs, String output, Arguments args) throws IOException {
+        FlameGraph fg = merge(inputs, args);
+        try (FileOutputStream out = new FileOutputStream(output)) {
+            fg.dump(out);
+        }
+    }
+
+    public static FlameGraph merge(List<String> inputs, Arguments args) throws IOException {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int workers = Math.min(pool.getParallelism(), inputs.size());
+        AtomicInteger nextInput = new AtomicInteger();
+
+        List<Callable<FlameGraph>> tasks = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            tasks.add(() -> {
+                FlameGraph partial = new FlameGraph(args);
+                for (int n; (n = nextInput.getAndIncrement()) < inputs.size(); ) {
+                    partial.merge(parse(inputs.get(n), args));
+                }
+                return partial;
+            });
+        }
+
+        List<FlameGraph> partials = JfrToFlame.getAll(pool.invokeAll(tasks));
+        FlameGraph fg = partials.get(0);
+        for (int i = 1; i < partials.size(); i++) {
+            fg.merge(partials.get(i));
+            partials.set(i, null);
+        }
+        return fg;
+    }
+
+    public static void convertDiff(String baseline, String target, String output, Arguments args) throws IOException {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        Future<FlameGraph> baselineResult = pool.submit(() -> parse(baseline, args));
+        FlameGraph fg = parse(target, args);
+        fg.diff(JfrToFlame.getResult(baselineResult));
+
+        try (FileOutputStream out = new FileOutputStream(output)) {
+            fg.dump(out);
+        }
+    }
+
+    private static FlameGraph parse(String input, Arguments args) throws IOException {
+        if (JfrConverter.isJfr(input)) {
+            return JfrToFlame.convertToFlameGraph(input, args);
+        } else if (PprofToFlame.isPprof(input)) {
+            return PprofToFlame.parse(input, args);
+        }
+        return FlameGraph.parse(input, args);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.convert;
+
+import java.util.Arrays;
+
+import static one.convert.Frame.*;
+
+/**
+ * Compact call tree. Nodes are identified by int ids, and node attributes are kept
+ * in parallel arrays indexed by id. Children of a node form a singly linked list;
+ * a child is looked up by (parent, title, type) in an open-addressing hash table.
+ * Counter arrays are reallocated as the tree grows, so they should not be cached.
+ */
+class FrameTree {
+    static final int ROOT = 0;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int TYPE_SHIFT = 28;
+
+    private int[] keys;
+    private int[] parents;
+    private int[] firstChild;
+    private int[] nextSibling;
+    long[] total;
+    long[] self;
+    long[] inlined;
+    long[] c1;
+    long[] interpreted;
+    // Counters of the baseline profile in diff mode, null otherwise
+    long[] baselineTotal;
+    long[] baselineSelf;
+    private int size;
+
+    // Node ids keyed by (parent, key). Zero denotes an empty slot, since root is never a child
+    private int[] table;
+
+    FrameTree() {
+        keys = new int[INITIAL_CAPACITY];
+        parents = new int[INITIAL_CAPACITY];
+        firstChild = new int[INITIAL_CAPACITY];
+        nextSibling = new int[INITIAL_CAPACITY];
+        total = new long[INITIAL_CAPACITY];
+        self = new long[INITIAL_CAPACITY];
+        inlined = new long[INITIAL_CAPACITY];
+        c1 = new long[INITIAL_CAPACITY];
+        interpreted = new long[INITIAL_CAPACITY];
+        table = new int[INITIAL_CAPACITY * 2];
+
+        keys[ROOT] = TYPE_NATIVE << TYPE_SHIFT;
+        size = 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getChild(int parent, int titleIndex, byte type) {
+        int key = titleIndex | type << TYPE_SHIFT;
+        int mask = table.length - 1;
+        for (int i = hashCode(parent, key) & mask; ; i = (i + 1) & mask) {
+            int node = table[i];
+            if (node == 0) {
+                table[i] = node = addNode(parent, key);
+                if (size * 2 > table.length) {
+                    rehash(table.length * 2);
+                }
+                return node;
+            } else if (keys[node] == key && parents[node] == parent) {
+                return node;
+            }
+        }
+    }
+
+    // Returns 0 if the node has no children
+    int firstChild(int node) {
+        return firstChild[node];
+    }
+
+    // Returns 0 after the last child
+    int nextSibling(int node) {
+        return nextSibling[node];
+    }
+
+    int childCount(int node) {
+        int count = 0;
+        for (int child = firstChild[node]; child != 0; child = nextSibling[child]) {
+            count++;
+        }
+        return count;
+    }
+
+    int getParent(int node) {
+        return parents[node];
+    }
+
+    int getTitleIndex(int node) {
+        return keys[node] & ((1 << TYPE_SHIFT) - 1);
+    }
+
+    byte getType(int node) {
+        long total = this.total[node];
+        if (total == 0) {
+            // The node exists only in the baseline profile
+            return getOriginalType(node);
+        } else if (inlined[node] * 3 >= total) {
+            return TYPE_INLINED;
+        } else if (c1[node] * 2 >= total) {
+            return TYPE_C1_COMPILED;
+        } else if (interpreted[node] * 2 >= total) {
+            return TYPE_INTERPRETED;
+        } else {
+            return getOriginalType(node);
+        }
+    }
+
+    // Type the node was created with, regardless of inlined/c1/interpreted ratios
+    byte getOriginalType(int node) {
+        return (byte) (keys[node] >>> TYPE_SHIFT);
+    }
+
+    void addCounters(int node, FrameTree other, int otherNode) {
+        total[node] += other.total[otherNode];
+        self[node] += other.self[otherNode];
+        inlined[node] += other.inlined[otherNode];
+        c1[node] += other.c1[otherNode];
+        interpreted[node] += other.interpreted[otherNode];
+    }
+
+    void enableBaseline() {
+        if (baselineTotal == null) {
+            baselineTotal = new long[keys.length];
+            baselineSelf = new long[keys.length];
+        }
+    }
+
+    void addBaseline(int node, FrameTree baseline, int baselineNode) {
+        baselineTotal[node] += baseline.total[baselineNode];
+        baselineSelf[node] += baseline.self[baselineNode];
+    }
+
+    int depth(int node, long cutoff) {
+        int depth = 0;
+        for (int child = firstChild[node]; child != 0; child = nextSibling[child]) {
+            if (total[child] >= cutoff) {
+                depth = Math.max(depth, depth(child, cutoff));
+            }
+        }
+        return depth + 1;
+    }
+
+    private int addNode(int parent, int key) {
+        if (size == keys.length) {
+            grow(size * 2);
+        }
+
+        int node = size++;
+        keys[node] = key;
+        parents[node] = parent;
+        nextSibling[node] = firstChild[parent];
+        firstChild[parent] = node;
+        return node;
+    }
+
+    private void grow(int newCapacity) {
+        keys = Arrays.copyOf(keys, newCapacity);
+        parents = Arrays.copyOf(parents, newCapacity);
+        firstChild = Arrays.copyOf(firstChild, newCapacity);
+        nextSibling = Arrays.copyOf(nextSibling, newCapacity);
+        total = Arrays.copyOf(total, newCapacity);
+        self = Arrays.copyOf(self, newCapacity);
+        inlined = Arrays.copyOf(inlined, newCapacity);
+        c1 = Arrays.copyOf(c1, newCapacity);
+        interpreted = Arrays.copyOf(interpreted, newCapacity);
+        if (baselineTotal != null) {
+            baselineTotal = Arrays.copyOf(baselineTotal, newCapacity);
+            baselineSelf = Arrays.copyOf(baselineSelf, newCapacity);
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        int[] newTable = new int[newCapacity];
+        int mask = newCapacity - 1;
+        for (int node = 1; node < size; node++) {
+            int i = hashCode(parents[node], keys[node]) & mask;
+            while (newTable[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            newTable[i] = node;
+        }
+        table = newTable;
+    }
+
+    private static int hashCode(int parent, int key) {
+        long h = ((long) parent << 32 | (key & 0xffffffffL)) * 0xc6a4a7935bd1e995L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -7,12 +7,16 @@ package one.convert;
 
 import one.jfr.ClassRef;
 import one.jfr.Dictionary;
+import one.jfr.JfrIndex;
 import one.jfr.JfrReader;
 import one.jfr.MethodRef;
 import one.jfr.event.*;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.BitSet;
 import java.util.Map;
 
@@ -73,6 +77,55 @@ public abstract class JfrConverter extends Classifier {
         return agg;
     }
 
+    // Same as collectEvents, but decodes samples without allocating an Event per record
+    protected SampleAggregator collectSamples() throws IOException {
+        SampleAggregator agg = new SampleAggregator(args.threads, args.total);
+        readSamples(new JfrReader.SampleVisitor() {
+            @Override
+            public void visit(long time, int tid, int stackTraceId, int classId, int extra, long value) {
+                agg.collect(tid, stackTraceId, classId, extra, value);
+            }
+        });
+        return agg;
+    }
+
+    // Reads samples of the selected event type within the time window and thread states.
+    // extra is passed through only for allocation samples, where it denotes allocation outside TLAB
+    protected void readSamples(JfrReader.SampleVisitor visitor) throws IOException {
+        Class<? extends Event> eventClass =
+                args.live ? LiveObject.class :
+                        args.alloc ? AllocationSample.class :
+                                args.lock ? ContendedLock.class : ExecutionSample.class;
+
+        BitSet threadStates = null;
+        if (args.state != null) {
+            threadStates = new BitSet();
+            for (String state : args.state.toUpperCase().split(",")) {
+                threadStates.set(toThreadState(state));
+            }
+        } else if (args.cpu) {
+            threadStates = getThreadStates(true);
+        } else if (args.wall) {
+            threadStates = getThreadStates(false);
+        }
+
+        long startTicks = args.from != 0 ? toTicks(args.from) : Long.MIN_VALUE;
+        long endTicks = args.to != 0 ? toTicks(args.to) : Long.MAX_VALUE;
+
+        // For execution samples, extra is a thread state, which is used for filtering, but not for grouping
+        boolean groupByExtra = eventClass == AllocationSample.class;
+        BitSet states = eventClass == ExecutionSample.class ? threadStates : null;
+
+        jfr.readEvents(eventClass, new JfrReader.SampleVisitor() {
+            @Override
+            public void visit(long time, int tid, int stackTraceId, int classId, int extra, long value) {
+                if (time >= startTicks && time <= endTicks && (states == null || states.get(extra))) {
+                    visitor.visit(time, tid, stackTraceId, classId, groupByExtra ? extra : 0, value);
+                }
+            }
+        });
+    }
+
     protected int toThreadState(String name) {
         Map<Integer, String> threadStates = jfr.enums.get("jdk.types.ThreadState");
         if (threadStates != null) {
@@ -96,15 +149,49 @@ public abstract class JfrConverter extends Classifier {
         return set;
     }
 
-    // millis can be an absolute timestamp or an offset from the beginning/end of the recording
     protected long toTicks(long millis) {
+        long nanos = toNanos(millis, jfr.startNanos, jfr.endNanos);
+        return (long) ((nanos - jfr.chunkStartNanos) * (jfr.ticksPerSec / 1e9)) + jfr.chunkStartTicks;
+    }
+
+    // millis can be an absolute timestamp or an offset from the beginning/end of the recording
+    static long toNanos(long millis, long startNanos, long endNanos) {
         long nanos = millis * 1_000_000;
         if (millis < 0) {
-            nanos += jfr.endNanos;
+            nanos += endNanos;
         } else if (millis < 1500000000000L) {
-            nanos += jfr.startNanos;
+            nanos += startNanos;
         }
-        return (long) ((nanos - jfr.chunkStartNanos) * (jfr.ticksPerSec / 1e9)) + jfr.chunkStartTicks;
+        return nanos;
+    }
+
+    /**
+     * Opens a recording for conversion. With --from/--to, chunks outside the time window
+     * are skipped using the chunk index; --index keeps the index next to the recording
+     * for subsequent runs.
+     */
+    public static JfrReader openReader(String input, Arguments args) throws IOException {
+        if (args.from == 0 && args.to == 0 && !args.index) {
+            return new JfrReader(input, args.mmap);
+        }
+        JfrIndex index = getIndex(input, args);
+        return new JfrReader(input, args.mmap, index, getFromNanos(index, args), getToNanos(index, args));
+    }
+
+    static JfrIndex getIndex(String input, Arguments args) throws IOException {
+        JfrIndex index = args.index ? JfrIndex.getOrCreate(input) : JfrIndex.build(input);
+        if (index.chunkCount() == 0) {
+            throw new IOException("Incomplete JFR file");
+        }
+        return index;
+    }
+
+    static long getFromNanos(JfrIndex index, Arguments args) {
+        return args.from != 0 ? toNanos(args.from, index.startNanos(), index.endNanos()) : Long.MIN_VALUE;
+    }
+
+    static long getToNanos(JfrIndex index, Arguments args) {
+        return args.to != 0 ? toNanos(args.to, index.startNanos(), index.endNanos()) : Long.MAX_VALUE;
     }
 
     @Override
@@ -218,6 +305,21 @@ public abstract class JfrConverter extends Classifier {
         return dotted ? s.replace('/', '.') : s;
     }
 
+    public static boolean isJfr(String fileName) throws IOException {
+        if (fileName.endsWith(".jfr")) {
+            return true;
+        } else if (fileName.endsWith(".collapsed") || fileName.endsWith(".txt") || fileName.endsWith(".csv")) {
+            return false;
+        } else if (!Files.isRegularFile(Paths.get(fileName))) {
+            // Probing would consume the beginning of a pipe, which can only be streamed as collapsed stacks
+            return false;
+        }
+        byte[] buf = new byte[4];
+        try (FileInputStream fis = new FileInputStream(fileName)) {
+            return fis.read(buf) == 4 && buf[0] == 'F' && buf[1] == 'L' && buf[2] == 'R' && buf[3] == 0;
+        }
+    }
+
     protected boolean isNativeFrame(byte methodType) {
         // In JDK Flight Recorder, TYPE_NATIVE denotes Java native methods,
         // while in async-profiler, TYPE_NATIVE is for C methods
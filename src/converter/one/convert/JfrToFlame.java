@@ -5,16 +5,22 @@
 
 package one.convert;
 
+import one.jfr.JfrIndex;
 import one.jfr.JfrReader;
 import one.jfr.StackTrace;
-import one.jfr.event.AllocationSample;
-import one.jfr.event.Event;
-import one.jfr.event.EventAggregator;
+import one.jfr.event.SampleAggregator;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static one.convert.Frame.*;
 
@@ -25,20 +31,24 @@ public class JfrToFlame extends JfrConverter {
     private final FlameGraph fg;
 
     public JfrToFlame(JfrReader jfr, Arguments args) {
+        this(jfr, args, new FlameGraph(args));
+    }
+
+    private JfrToFlame(JfrReader jfr, Arguments args, FlameGraph fg) {
         super(jfr, args);
-        this.fg = new FlameGraph(args);
+        this.fg = fg;
     }
 
     @Override
     protected void convertChunk() throws IOException {
-        collectEvents().forEach(new EventAggregator.Visitor() {
+        collectSamples().forEach(new SampleAggregator.Visitor() {
             final CallStack stack = new CallStack();
             final double ticksToNanos = 1e9 / jfr.ticksPerSec;
             final boolean scale = args.total && args.lock && ticksToNanos != 1.0;
 
             @Override
-            public void visit(Event event, long value) {
-                StackTrace stackTrace = jfr.stackTraces.get(event.stackTraceId);
+            public void visit(int tid, int stackTraceId, int classId, int extra, long value) {
+                StackTrace stackTrace = jfr.stackTraces.get(stackTraceId);
                 if (stackTrace != null) {
                     Arguments args = JfrToFlame.this.args;
                     long[] methods = stackTrace.methods;
@@ -46,7 +56,7 @@ public class JfrToFlame extends JfrConverter {
                     int[] locations = stackTrace.locations;
 
                     if (args.threads) {
-                        stack.push(getThreadName(event.tid), TYPE_NATIVE);
+                        stack.push(getThreadName(tid), TYPE_NATIVE);
                     }
                     if (args.classify) {
                         Classifier.Category category = getCategory(stackTrace);
@@ -62,10 +72,9 @@ public class JfrToFlame extends JfrConverter {
                         }
                         stack.push(methodName, types[i]);
                     }
-                    long classId = event.classId();
                     if (classId != 0) {
-                        stack.push(getClassName(classId), (event instanceof AllocationSample)
-                                && ((AllocationSample) event).tlabSize == 0 ? TYPE_KERNEL : TYPE_INLINED);
+                        // extra != 0 denotes allocation outside TLAB
+                        stack.push(getClassName(classId), extra != 0 ? TYPE_KERNEL : TYPE_INLINED);
                     }
 
                     fg.addSample(stack, scale ? (long) (value * ticksToNanos) : value);
@@ -76,19 +85,88 @@ public class JfrToFlame extends JfrConverter {
     }
 
     public void dump(OutputStream out) throws IOException {
-        try (PrintStream ps = new PrintStream(out, false, "UTF-8")) {
-            fg.dump(ps);
-        }
+        fg.dump(out);
     }
 
     public static void convert(String input, String output, Arguments args) throws IOException {
-        JfrToFlame converter;
-        try (JfrReader jfr = new JfrReader(input)) {
-            converter = new JfrToFlame(jfr, args);
+        FlameGraph fg = args.parallel ? convertParallel(input, args) : convertToFlameGraph(input, args);
+        try (FileOutputStream out = new FileOutputStream(output)) {
+            fg.dump(out);
+        }
+    }
+
+    public static FlameGraph convertToFlameGraph(String input, Arguments args) throws IOException {
+        try (JfrReader jfr = openReader(input, args)) {
+            JfrToFlame converter = new JfrToFlame(jfr, args);
             converter.convert();
+            return converter.fg;
         }
-        try (FileOutputStream out = new FileOutputStream(output)) {
-            converter.dump(out);
+    }
+
+    // Chunks of a recording are self-contained, so they are parsed and aggregated independently
+    // on the common fork-join pool. Each worker takes the next available chunk and adds it
+    // to its own partial Flame Graph, so that constant pools of no more than one chunk
+    // per worker are retained at a time; partial graphs are then merged into one.
+    public static FlameGraph convertParallel(String input, Arguments args) throws IOException {
+        JfrIndex index = getIndex(input, args);
+        List<ByteBuffer> chunks = JfrReader.mapChunks(input, index, getFromNanos(index, args), getToNanos(index, args));
+        if (chunks.isEmpty()) {
+            return new FlameGraph(args);
+        }
+
+        // Relative --from/--to refer to the whole recording rather than to a chunk
+        long startNanos = index.startNanos();
+        long endNanos = index.endNanos();
+
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int workers = Math.min(pool.getParallelism(), chunks.size());
+        AtomicInteger nextChunk = new AtomicInteger();
+
+        List<Callable<FlameGraph>> tasks = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            tasks.add(() -> {
+                FlameGraph partial = new FlameGraph(args);
+                for (int n; (n = nextChunk.getAndIncrement()) < chunks.size(); ) {
+                    JfrReader jfr = new JfrReader(chunks.get(n));
+                    jfr.startNanos = startNanos;
+                    jfr.endNanos = endNanos;
+                    new JfrToFlame(jfr, args, partial).convert();
+                }
+                return partial;
+            });
+        }
+
+        List<FlameGraph> partials = getAll(pool.invokeAll(tasks));
+        FlameGraph fg = partials.get(0);
+        for (int i = 1; i < partials.size(); i++) {
+            fg.merge(partials.get(i));
+            partials.set(i, null);
+        }
+        return fg;
+    }
+
+    static <T> List<T> getAll(List<Future<T>> futures) throws IOException {
+        List<T> result = new ArrayList<>(futures.size());
+        for (Future<T> future : futures) {
+            result.add(getResult(future));
+        }
+        return result;
+    }
+
+    static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
         }
     }
 }
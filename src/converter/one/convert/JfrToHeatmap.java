@@ -0,0 +1,196 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.convert;
+
+import one.jfr.Dictionary;
+import one.jfr.JfrReader;
+import one.jfr.StackTrace;
+import one.jfr.event.SampleAggregator;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static one.convert.Frame.*;
+
+/**
+ * Converts .jfr output to an HTML heatmap of samples over time.
+ * Each distinct stack is stored once as a leaf node of a call tree;
+ * samples are aggregated by (time bucket, leaf node), so that a Flame Graph
+ * for an arbitrary time range can be built in the browser.
+ */
+public class JfrToHeatmap extends JfrConverter {
+    private final Index<String> cpool = new Index<>(String.class, "");
+    private final FrameTree tree = new FrameTree();
+    // tid slot holds a time bucket, stackTraceId slot holds a leaf node of the tree
+    private final SampleAggregator samples;
+    private final long bucketNanos;
+    private Dictionary<Integer> stackNodes;
+
+    public JfrToHeatmap(JfrReader jfr, Arguments args) {
+        super(jfr, args);
+        this.samples = new SampleAggregator(true, args.total);
+        this.bucketNanos = Math.max(args.bucket, 1) * 1_000_000L;
+    }
+
+    @Override
+    protected void convertChunk() throws IOException {
+        // Stack trace IDs are valid only within a chunk
+        stackNodes = new Dictionary<>();
+
+        readSamples(new JfrReader.SampleVisitor() {
+            final double ticksToNanos = 1e9 / jfr.ticksPerSec;
+            final boolean scale = args.total && args.lock && ticksToNanos != 1.0;
+            final long chunkOffset = jfr.chunkStartNanos - jfr.startNanos;
+
+            @Override
+            public void visit(long time, int tid, int stackTraceId, int classId, int extra, long value) {
+                int node = getStackNode(args.threads ? tid : 0, stackTraceId);
+                if (node < 0) {
+                    return;
+                }
+                if (classId != 0) {
+                    // extra != 0 denotes allocation outside TLAB
+                    node = addFrame(node, getClassName(classId), extra != 0 ? TYPE_KERNEL : TYPE_INLINED);
+                }
+
+                long nanos = chunkOffset + (long) ((time - jfr.chunkStartTicks) * ticksToNanos);
+                int bucket = (int) Math.max(nanos / bucketNanos, 0);
+                samples.collect(bucket, node, 0, 0, scale ? (long) (value * ticksToNanos) : value);
+            }
+        });
+    }
+
+    // Returns the leaf node for the given stack trace, or -1 if the stack trace is unknown
+    private int getStackNode(int tid, int stackTraceId) {
+        long key = (long) tid << 32 | (stackTraceId & 0xffffffffL);
+        Integer cached = key != 0 ? stackNodes.get(key) : null;
+        if (cached != null) {
+            return cached;
+        }
+
+        StackTrace stackTrace = jfr.stackTraces.get(stackTraceId);
+        if (stackTrace == null) {
+            return -1;
+        }
+
+        long[] methods = stackTrace.methods;
+        byte[] types = stackTrace.types;
+        int[] locations = stackTrace.locations;
+
+        int node = FrameTree.ROOT;
+        if (args.threads) {
+            node = addFrame(node, getThreadName(tid), TYPE_NATIVE);
+        }
+        if (args.classify) {
+            Classifier.Category category = getCategory(stackTrace);
+            node = addFrame(node, category.title, category.type);
+        }
+        for (int i = methods.length; --i >= 0; ) {
+            String methodName = getMethodName(methods[i], types[i]);
+            int location;
+            if (args.lines && (location = locations[i] >>> 16) != 0) {
+                methodName += ":" + location;
+            } else if (args.bci && (location = locations[i] & 0xffff) != 0) {
+                methodName += "@" + location;
+            }
+            node = addFrame(node, methodName, types[i]);
+        }
+
+        if (key != 0) {
+            stackNodes.put(key, node);
+        }
+        return node;
+    }
+
+    // Frame type is decided by the share of distinct stack traces rather than samples
+    private int addFrame(int parent, String title, byte type) {
+        FrameTree tree = this.tree;
+        int titleIndex = cpool.index(title);
+
+        int child;
+        switch (type) {
+            case TYPE_INTERPRETED:
+                child = tree.getChild(parent, titleIndex, TYPE_JIT_COMPILED);
+                tree.interpreted[child]++;
+                break;
+            case TYPE_INLINED:
+                child = tree.getChild(parent, titleIndex, TYPE_JIT_COMPILED);
+                tree.inlined[child]++;
+                break;
+            case TYPE_C1_COMPILED:
+                child = tree.getChild(parent, titleIndex, TYPE_JIT_COMPILED);
+                tree.c1[child]++;
+                break;
+            default:
+                child = tree.getChild(parent, titleIndex, type);
+        }
+        tree.total[child]++;
+        return child;
+    }
+
+    public void dump(OutputStream stream) throws IOException {
+        TextOutput out = new TextOutput(stream);
+        byte[] template = FlameGraph.getResource("/heatmap.html");
+
+        int tail = FlameGraph.printTill(out, template, 0, "/*title:*/");
+        out.print("Flame Graph".equals(args.title) ? "Heatmap" : args.title);
+
+        tail = FlameGraph.printTill(out, template, tail, "/*bucket:*/100");
+        out.print(bucketNanos / 1_000_000);
+
+        tail = FlameGraph.printTill(out, template, tail, "/*cpool:*/");
+        int[] order = FlameGraph.printCpool(out, cpool);
+
+        // Parent always precedes its children, since nodes are numbered in the order of creation
+        tail = FlameGraph.printTill(out, template, tail, "/*nodes:*/");
+        for (int node = 1; node < tree.size(); node++) {
+            int key = order[tree.getTitleIndex(node)] << 3 | tree.getType(node);
+            out.print(tree.getParent(node)).print(',').print(key).print(",\n");
+        }
+
+        tail = FlameGraph.printTill(out, template, tail, "/*samples:*/");
+        printSamples(out);
+
+        out.write(template, tail, template.length - tail);
+        out.flush();
+    }
+
+    private void printSamples(TextOutput out) throws IOException {
+        long[] keys = new long[samples.size()];
+        samples.forEach(new SampleAggregator.Visitor() {
+            int count;
+
+            @Override
+            public void visit(int bucket, int node, int classId, int extra, long value) {
+                keys[count++] = (long) bucket << 32 | node;
+            }
+        });
+        Arrays.sort(keys);
+
+        for (int i = 0; i < keys.length; ) {
+            int bucket = (int) (keys[i] >>> 32);
+            out.print("b(").print(bucket).print(",[");
+            for (; i < keys.length && (int) (keys[i] >>> 32) == bucket; i++) {
+                int node = (int) keys[i];
+                out.print(node).print(',').print(samples.getValue(bucket, node, 0, 0)).print(',');
+            }
+            out.print("])\n");
+        }
+    }
+
+    public static void convert(String input, String output, Arguments args) throws IOException {
+        JfrToHeatmap converter;
+        try (JfrReader jfr = openReader(input, args)) {
+            converter = new JfrToHeatmap(jfr, args);
+            converter.convert();
+        }
+        try (FileOutputStream out = new FileOutputStream(output)) {
+            converter.dump(out);
+        }
+    }
+}
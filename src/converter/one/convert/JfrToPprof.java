@@ -7,26 +7,59 @@ package one.convert;
 
 import one.jfr.JfrReader;
 import one.jfr.StackTrace;
-import one.jfr.event.Event;
-import one.jfr.event.EventAggregator;
+import one.jfr.event.SampleAggregator;
 import one.proto.Proto;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPOutputStream;
 
 /**
  * Converts .jfr output to <a href="https://github.com/google/pprof">pprof</a>.
+ * Profile fields are encoded into a small buffer, which is flushed as it fills up:
+ * samples go either straight to the output stream or to an in-memory chunked buffer,
+ * and the location, function and string tables are written by {@link #dump(OutputStream)}.
  */
 public class JfrToPprof extends JfrConverter {
-    private final Proto profile = new Proto(100000);
-    private final Index<String> strings = new Index<>(String.class, "");
-    private final Index<String> functions = new Index<>(String.class, "");
-    private final Index<Long> locations = new Index<>(Long.class, 0L);
+    private static final int FLUSH_THRESHOLD = 60000;
 
+    // Encoded fields of the Profile message that have not been flushed yet
+    private final Proto profile;
+    private final OutputStream samplesOut;
+    private final ChunkedBuffer samplesBuffer;
+    private final Index<String> strings;
+    // Function ID by the string index of its name
+    private final LongIndex functions;
+    // Location ID by (function ID << 16 | line)
+    private final LongIndex locations;
+    private long startNanos = Long.MAX_VALUE;
+    private long endNanos = Long.MIN_VALUE;
+
+    /**
+     * Keeps encoded samples in memory until {@link #dump(OutputStream)}.
+     */
     public JfrToPprof(JfrReader jfr, Arguments args) {
+        this(jfr, args, null);
+    }
+
+    /**
+     * Streams encoded samples to the given output during conversion.
+     * {@link #dump(OutputStream)} must then be called with the same stream.
+     */
+    public JfrToPprof(JfrReader jfr, Arguments args, OutputStream out) {
         super(jfr, args);
+        this.profile = new Proto(FLUSH_THRESHOLD + 4096);
+        this.samplesBuffer = out == null ? new ChunkedBuffer() : null;
+        this.samplesOut = out == null ? samplesBuffer : out;
+        this.strings = new Index<>(String.class, "");
+        this.functions = new LongIndex();
+        this.locations = new LongIndex();
 
         Proto sampleType;
         if (args.alloc || args.live) {
@@ -41,62 +74,107 @@ public class JfrToPprof extends JfrConverter {
                 .field(13, strings.index("Produced by async-profiler"));
     }
 
+    // Appends samples of another recording to the profile of the given converter
+    private JfrToPprof(JfrReader jfr, JfrToPprof base) {
+        super(jfr, base.args);
+        this.profile = base.profile;
+        this.samplesOut = base.samplesOut;
+        this.samplesBuffer = base.samplesBuffer;
+        this.strings = base.strings;
+        this.functions = base.functions;
+        this.locations = base.locations;
+    }
+
+    @Override
+    public void convert() throws IOException {
+        super.convert();
+        startNanos = Math.min(startNanos, jfr.startNanos);
+        endNanos = Math.max(endNanos, jfr.endNanos);
+    }
+
     @Override
     protected void convertChunk() throws IOException {
-        collectEvents().forEach(new EventAggregator.Visitor() {
-            final Proto s = new Proto(100);
-            final double ticksToNanos = 1e9 / jfr.ticksPerSec;
-            final boolean scale = args.total && args.lock && ticksToNanos != 1.0;
-
-            @Override
-            public void visit(Event event, long value) {
-                profile.field(2, sample(s, event, scale ? (long) (value * ticksToNanos) : value));
-                s.reset();
-            }
-        });
+        try {
+            collectSamples().forEach(new SampleAggregator.Visitor() {
+                final Proto s = new Proto(100);
+                final double ticksToNanos = 1e9 / jfr.ticksPerSec;
+                final boolean scale = args.total && args.lock && ticksToNanos != 1.0;
+
+                @Override
+                public void visit(int tid, int stackTraceId, int classId, int extra, long value) {
+                    profile.field(2, sample(s, tid, stackTraceId, classId, scale ? (long) (value * ticksToNanos) : value));
+                    s.reset();
+                    if (profile.size() >= FLUSH_THRESHOLD) {
+                        try {
+                            flush(samplesOut);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
     public void dump(OutputStream out) throws IOException {
+        flush(samplesOut);
+        if (samplesBuffer != null) {
+            samplesBuffer.writeTo(out);
+        }
+
         profile.field(3, mapping(1, 0, Long.MAX_VALUE, "async-profiler"));
 
-        Long[] locations = this.locations.keys();
-        for (int i = 1; i < locations.length; i++) {
-            profile.field(4, location(i, locations[i]));
+        for (int i = 1; i < locations.size(); i++) {
+            profile.field(4, location(i, locations.key(i)));
+            flushIfFull(out);
         }
 
-        String[] functions = this.functions.keys();
-        for (int i = 1; i < functions.length; i++) {
-            profile.field(5, function(i, functions[i]));
+        for (int i = 1; i < functions.size(); i++) {
+            profile.field(5, function(i, (int) functions.key(i)));
+            flushIfFull(out);
         }
 
         String[] strings = this.strings.keys();
         for (String string : strings) {
             profile.field(6, string);
+            flushIfFull(out);
         }
 
-        profile.field(9, jfr.startNanos)
-                .field(10, jfr.durationNanos());
+        profile.field(9, startNanos)
+                .field(10, endNanos - startNanos);
 
+        flush(out);
+    }
+
+    private void flushIfFull(OutputStream out) throws IOException {
+        if (profile.size() >= FLUSH_THRESHOLD) {
+            flush(out);
+        }
+    }
+
+    private void flush(OutputStream out) throws IOException {
         out.write(profile.buffer(), 0, profile.size());
+        profile.reset();
     }
 
-    private Proto sample(Proto s, Event event, long value) {
+    private Proto sample(Proto s, int tid, int stackTraceId, int classId, long value) {
         int packedLocations = s.startField(1);
 
-        long classId = event.classId();
         if (classId != 0) {
-            int function = functions.index(getClassName(classId));
+            int function = functions.index(strings.index(getClassName(classId)));
             s.writeInt(locations.index((long) function << 16));
         }
 
-        StackTrace stackTrace = jfr.stackTraces.get(event.stackTraceId);
+        StackTrace stackTrace = jfr.stackTraces.get(stackTraceId);
         if (stackTrace != null) {
             long[] methods = stackTrace.methods;
             byte[] types = stackTrace.types;
             int[] lines = stackTrace.locations;
             for (int i = 0; i < methods.length; i++) {
                 String methodName = getMethodName(methods[i], types[i]);
-                int function = functions.index(methodName);
+                int function = functions.index(strings.index(methodName));
                 s.writeInt(locations.index((long) function << 16 | lines[i] >>> 16));
             }
         }
@@ -104,8 +182,8 @@ public class JfrToPprof extends JfrConverter {
         s.commitField(packedLocations);
         s.field(2, value);
 
-        if (args.threads && event.tid != 0) {
-            s.field(3, label("thread", getThreadName(event.tid)));
+        if (args.threads && tid != 0) {
+            s.field(3, label("thread", getThreadName(tid)));
         }
         if (args.classify && stackTrace != null) {
             s.field(3, label("category", getCategory(stackTrace).title));
@@ -146,21 +224,51 @@ public class JfrToPprof extends JfrConverter {
                 .field(2, line);
     }
 
-    private Proto function(int id, String name) {
+    private Proto function(int id, int name) {
         return new Proto(16)
                 .field(1, id)
-                .field(2, strings.index(name));
+                .field(2, name);
     }
 
     public static void convert(String input, String output, Arguments args) throws IOException {
-        JfrToPprof converter;
-        try (JfrReader jfr = new JfrReader(input)) {
-            converter = new JfrToPprof(jfr, args);
+        try (JfrReader jfr = openReader(input, args);
+             FileOutputStream fos = new FileOutputStream(output);
+             OutputStream out = args.output.endsWith("gz") ? new GZIPOutputStream(fos, 4096) : fos) {
+            JfrToPprof converter = new JfrToPprof(jfr, args, out);
             converter.convert();
+            converter.dump(out);
         }
+    }
+
+    // Samples of all recordings go into a single profile. Encoding is sequential,
+    // but the next recording is opened and its constant pool is parsed in the background
+    public static void convertMerged(List<String> inputs, String output, Arguments args) throws IOException {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        Future<JfrReader> next = pool.submit(openTask(inputs.get(0), args));
+
         try (FileOutputStream fos = new FileOutputStream(output);
              OutputStream out = args.output.endsWith("gz") ? new GZIPOutputStream(fos, 4096) : fos) {
-            converter.dump(out);
+            JfrToPprof base = null;
+            for (int i = 0; i < inputs.size(); i++) {
+                try (JfrReader jfr = JfrToFlame.getResult(next)) {
+                    if (i + 1 < inputs.size()) {
+                        next = pool.submit(openTask(inputs.get(i + 1), args));
+                    }
+                    JfrToPprof converter = base == null ? new JfrToPprof(jfr, args, out) : new JfrToPprof(jfr, base);
+                    converter.convert();
+                    if (base == null) {
+                        base = converter;
+                    } else {
+                        base.startNanos = Math.min(base.startNanos, converter.startNanos);
+                        base.endNanos = Math.max(base.endNanos, converter.endNanos);
+                    }
+                }
+            }
+            base.dump(out);
         }
     }
+
+    private static Callable<JfrReader> openTask(String input, Arguments args) {
+        return () -> openReader(input, args);
+    }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.convert;
+
+import java.util.Arrays;
+
+/**
+ * Primitive counterpart of {@link Index} for long keys: assigns sequential
+ * indices to keys in the order of their first appearance. Key 0 has index 0.
+ */
+public class LongIndex {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private long[] keys;
+    private int[] values;
+    private long[] keysByIndex;
+    private int size;
+
+    public LongIndex() {
+        this.keys = new long[INITIAL_CAPACITY];
+        this.values = new int[INITIAL_CAPACITY];
+        this.keysByIndex = new long[INITIAL_CAPACITY / 2];
+        this.size = 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int index(long key) {
+        if (key == 0) {
+            return 0;
+        }
+
+        int mask = keys.length - 1;
+        int i = hashCode(key) & mask;
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+
+        int index = size++;
+        keys[i] = key;
+        values[i] = index;
+
+        if (index == keysByIndex.length) {
+            keysByIndex = Arrays.copyOf(keysByIndex, index * 2);
+        }
+        keysByIndex[index] = key;
+
+        if (size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        return index;
+    }
+
+    // Same as index(), but does not add a missing key
+    public int find(long key) {
+        if (key == 0) {
+            return 0;
+        }
+
+        int mask = keys.length - 1;
+        for (int i = hashCode(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return -1;
+    }
+
+    public long key(int index) {
+        return keysByIndex[index];
+    }
+
+    private void resize(int newCapacity) {
+        long[] newKeys = new long[newCapacity];
+        int[] newValues = new int[newCapacity];
+        int mask = newCapacity - 1;
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                for (int j = hashCode(keys[i]) & mask; ; j = (j + 1) & mask) {
+                    if (newKeys[j] == 0) {
+                        newKeys[j] = keys[i];
+                        newValues[j] = values[i];
+                        break;
+                    }
+                }
+            }
+        }
+
+        keys = newKeys;
+        values = newValues;
+    }
+
+    private static int hashCode(long key) {
+        key *= 0xc6a4a7935bd1e995L;
+        return (int) (key ^ (key >>> 32));
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.convert;
+
+import one.proto.ProtoReader;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import static one.convert.Frame.*;
+
+/**
+ * Converts <a href="https://github.com/google/pprof">pprof</a> profiles to Flame Graph.
+ * The profile is decoded in place with two passes: the first one indexes strings,
+ * functions and locations, the second one adds samples to the Flame Graph.
+ */
+public class PprofToFlame {
+    private static final int SAMPLE_TYPE = 1 << 3 | ProtoReader.LENGTH_DELIMITED;
+    private static final int SAMPLE = 2 << 3 | ProtoReader.LENGTH_DELIMITED;
+    private static final int LOCATION = 4 << 3 | ProtoReader.LENGTH_DELIMITED;
+    private static final int FUNCTION = 5 << 3 | ProtoReader.LENGTH_DELIMITED;
+    private static final int STRING = 6 << 3 | ProtoReader.LENGTH_DELIMITED;
+    private static final int DEFAULT_SAMPLE_TYPE = 14 << 3 | ProtoReader.VARINT;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private static final int PROBE_SIZE = 4096;
+
+    private final ProtoReader reader;
+    private final Arguments args;
+    private final FlameGraph fg;
+
+    // Positions of string table entries in the buffer; strings are decoded on demand
+    private int[] stringPositions = new int[1024];
+    private int stringCount;
+    private String[] strings;
+
+    private int[] sampleTypes = new int[4];
+    private int sampleTypeCount;
+    private long defaultSampleType;
+
+    // Functions by dense index
+    private final LongIndex functionIds = new LongIndex();
+    private int[] functionNames = new int[1024];
+    private String[] functionTitles;
+    private byte[] functionTypes;
+
+    // Locations by dense index: frames [locationStart, locationEnd), or an address if there are no frames
+    private final LongIndex locationIds = new LongIndex();
+    private int[] locationStart = new int[1024];
+    private int[] locationEnd = new int[1024];
+    private long[] locationAddress = new long[1024];
+    private int[] frameFunctions = new int[4096];
+    private int[] frameLines = new int[4096];
+    private int frameCount;
+
+    public PprofToFlame(ByteBuffer profile, Arguments args) {
+        this.reader = new ProtoReader(profile);
+        this.args = args;
+        this.fg = new FlameGraph(args);
+    }
+
+    public FlameGraph convert() {
+        int start = reader.position();
+        readTables();
+
+        strings = new String[stringCount];
+        functionTitles = new String[functionIds.size()];
+        functionTypes = new byte[functionIds.size()];
+
+        reader.position(start);
+        readSamples(getValueIndex());
+        return fg;
+    }
+
+    private void readTables() {
+        ProtoReader r = reader;
+        while (r.hasRemaining()) {
+            int tag = r.readTag();
+            if (tag == SAMPLE_TYPE) {
+                int outer = r.enter();
+                while (r.hasRemaining()) {
+                    int fieldTag = r.readTag();
+                    if (fieldTag == (1 << 3 | ProtoReader.VARINT)) {
+                        if (sampleTypeCount == sampleTypes.length) {
+                            sampleTypes = Arrays.copyOf(sampleTypes, sampleTypeCount * 2);
+                        }
+                        sampleTypes[sampleTypeCount] = r.readInt();
+                    } else {
+                        r.skip(fieldTag);
+                    }
+                }
+                r.leave(outer);
+                sampleTypeCount++;
+            } else if (tag == LOCATION) {
+                readLocation();
+            } else if (tag == FUNCTION) {
+                readFunction();
+            } else if (tag == STRING) {
+                if (stringCount == stringPositions.length) {
+                    stringPositions = Arrays.copyOf(stringPositions, stringCount * 2);
+                }
+                stringPositions[stringCount++] = r.position();
+                r.skip(tag);
+            } else if (tag == DEFAULT_SAMPLE_TYPE) {
+                defaultSampleType = r.readLong();
+            } else {
+                r.skip(tag);
+            }
+        }
+    }
+
+    private void readLocation() {
+        ProtoReader r = reader;
+        int outer = r.enter();
+        long id = 0;
+        long address = 0;
+        int start = frameCount;
+
+        while (r.hasRemaining()) {
+            int tag = r.readTag();
+            if (tag == (1 << 3 | ProtoReader.VARINT)) {
+                id = r.readLong();
+            } else if (tag == (3 << 3 | ProtoReader.VARINT)) {
+                address = r.readLong();
+            } else if (tag == (4 << 3 | ProtoReader.LENGTH_DELIMITED)) {
+                long functionId = 0;
+                long line = 0;
+                int lineOuter = r.enter();
+                while (r.hasRemaining()) {
+                    int lineTag = r.readTag();
+                    if (lineTag == (1 << 3 | ProtoReader.VARINT)) {
+                        functionId = r.readLong();
+                    } else if (lineTag == (2 << 3 | ProtoReader.VARINT)) {
+                        line = r.readLong();
+                    } else {
+                        r.skip(lineTag);
+                    }
+                }
+                r.leave(lineOuter);
+                addFrame(functionIds.index(functionId), (int) line);
+            } else {
+                r.skip(tag);
+            }
+        }
+        r.leave(outer);
+
+        int location = locationIds.index(id);
+        if (location >= locationStart.length) {
+            int newLength = Math.max(location + 1, locationStart.length * 2);
+            locationStart = Arrays.copyOf(locationStart, newLength);
+            locationEnd = Arrays.copyOf(locationEnd, newLength);
+            locationAddress = Arrays.copyOf(locationAddress, newLength);
+        }
+        locationStart[location] = start;
+        locationEnd[location] = frameCount;
+        locationAddress[location] = address;
+    }
+
+    private void addFrame(int function, int line) {
+        if (frameCount == frameFunctions.length) {
+            frameFunctions = Arrays.copyOf(frameFunctions, frameCount * 2);
+            frameLines = Arrays.copyOf(frameLines, frameCount * 2);
+        }
+        frameFunctions[frameCount] = function;
+        frameLines[frameCount] = line;
+        frameCount++;
+    }
+
+    private void readFunction() {
+        ProtoReader r = reader;
+        int outer = r.enter();
+        long id = 0;
+        int name = 0;
+
+        while (r.hasRemaining()) {
+            int tag = r.readTag();
+            if (tag == (1 << 3 | ProtoReader.VARINT)) {
+                id = r.readLong();
+            } else if (tag == (2 << 3 | ProtoReader.VARINT)) {
+                name = r.readInt();
+            } else {
+                r.skip(tag);
+            }
+        }
+        r.leave(outer);
+
+        int function = functionIds.index(id);
+        if (function >= functionNames.length) {
+            functionNames = Arrays.copyOf(functionNames, Math.max(function + 1, functionNames.length * 2));
+        }
+        functionNames[function] = name;
+    }
+
+    // Same as pprof: default_sample_type if specified, otherwise the last sample type
+    private int getValueIndex() {
+        for (int i = 0; i < sampleTypeCount; i++) {
+            if (defaultSampleType != 0 && sampleTypes[i] == defaultSampleType) {
+                return i;
+            }
+        }
+        return Math.max(sampleTypeCount - 1, 0);
+    }
+
+    private void readSamples(int valueIndex) {
+        ProtoReader r = reader;
+        CallStack stack = new CallStack();
+        long[] locations = new long[64];
+
+        while (r.hasRemaining()) {
+            int tag = r.readTag();
+            if (tag != SAMPLE) {
+                r.skip(tag);
+                continue;
+            }
+
+            int outer = r.enter();
+            int locationCount = 0;
+            int valueCount = 0;
+            long value = 0;
+            String threadName = null;
+
+            while (r.hasRemaining()) {
+                int fieldTag = r.readTag();
+                if (fieldTag == (1 << 3 | ProtoReader.LENGTH_DELIMITED)) {
+                    int packedOuter = r.enter();
+                    while (r.hasRemaining()) {
+                        if (locationCount == locations.length) {
+                            locations = Arrays.copyOf(locations, locationCount * 2);
+                        }
+                        locations[locationCount++] = r.readLong();
+                    }
+                    r.leave(packedOuter);
+                } else if (fieldTag == (1 << 3 | ProtoReader.VARINT)) {
+                    if (locationCount == locations.length) {
+                        locations = Arrays.copyOf(locations, locationCount * 2);
+                    }
+                    locations[locationCount++] = r.readLong();
+                } else if (fieldTag == (2 << 3 | ProtoReader.LENGTH_DELIMITED)) {
+                    int packedOuter = r.enter();
+                    while (r.hasRemaining()) {
+                        long v = r.readLong();
+                        if (valueCount++ == valueIndex) value = v;
+                    }
+                    r.leave(packedOuter);
+                } else if (fieldTag == (2 << 3 | ProtoReader.VARINT)) {
+                    long v = r.readLong();
+                    if (valueCount++ == valueIndex) value = v;
+                } else if (fieldTag == (3 << 3 | ProtoReader.LENGTH_DELIMITED) && args.threads) {
+                    String label = readThreadLabel();
+                    if (label != null) threadName = label;
+                } else {
+                    r.skip(fieldTag);
+                }
+            }
+            r.leave(outer);
+
+            if (value <= 0) {
+                continue;
+            }
+
+            if (threadName != null) {
+                stack.push(threadName, TYPE_NATIVE);
+            }
+            // Locations go from the leaf to the root; lines of a location go from inlined callees to the caller
+            for (int i = locationCount; --i >= 0; ) {
+                // Samples may refer to locations that are not defined in the profile
+                int location = locationIds.find(locations[i]);
+                if (location <= 0 || location >= locationStart.length) {
+                    continue;
+                }
+                int start = locationStart[location];
+                int end = locationEnd[location];
+                if (start == end) {
+                    stack.push("0x" + Long.toHexString(locationAddress[location]), TYPE_NATIVE);
+                }
+                for (int j = end; --j >= start; ) {
+                    int function = frameFunctions[j];
+                    String title = getFunctionTitle(function);
+                    byte type = functionTypes[function];
+                    if (j < end - 1 && type == TYPE_JIT_COMPILED) {
+                        type = TYPE_INLINED;
+                    }
+                    if (args.lines && frameLines[j] != 0) {
+                        title += ":" + frameLines[j];
+                    }
+                    stack.push(title, type);
+                }
+            }
+
+            fg.addSample(stack, value);
+            stack.clear();
+        }
+    }
+
+    // Returns the value of the "thread" label, or null if this is another label
+    private String readThreadLabel() {
+        ProtoReader r = reader;
+        int outer = r.enter();
+        int key = 0;
+        int str = 0;
+        while (r.hasRemaining()) {
+            int tag = r.readTag();
+            if (tag == (1 << 3 | ProtoReader.VARINT)) {
+                key = r.readInt();
+            } else if (tag == (2 << 3 | ProtoReader.VARINT)) {
+                str = r.readInt();
+            } else {
+                r.skip(tag);
+            }
+        }
+        r.leave(outer);
+        return str != 0 && "thread".equals(getString(key)) ? getString(str) : null;
+    }
+
+    private String getFunctionTitle(int function) {
+        String title = functionTitles[function];
+        if (title == null) {
+            title = function < functionNames.length ? getString(functionNames[function]) : "";
+            functionTitles[function] = title;
+            functionTypes[function] = (byte) (FlameGraph.detectType(title) & 0x7f);
+        }
+        return title;
+    }
+
+    private String getString(int index) {
+        if (index < 0 || index >= stringCount) {
+            return "";
+        }
+        String s = strings[index];
+        if (s == null) {
+            int pos = reader.position();
+            reader.position(stringPositions[index]);
+            strings[index] = s = reader.readString();
+            reader.position(pos);
+        }
+        return s;
+    }
+
+    public static boolean isPprof(String fileName) throws IOException {
+        if (fileName.endsWith(".pb") || fileName.endsWith(".pb.gz") || fileName.endsWith(".pprof")) {
+            return true;
+        } else if (!Files.isRegularFile(Paths.get(fileName))) {
+            // Do not consume the beginning of a pipe, see JfrConverter.isJfr
+            return false;
+        }
+        byte[] buf = new byte[2];
+        try (InputStream in = new FileInputStream(fileName)) {
+            if (in.read(buf) != 2 || buf[0] != (byte) 0x1f || buf[1] != (byte) 0x8b) {
+                return false;
+            }
+        }
+
+        // Any file can be gzipped, e.g. collapsed stacks; look at the decompressed contents
+        buf = new byte[PROBE_SIZE];
+        int length = 0;
+        try (InputStream in = new GZIPInputStream(new FileInputStream(fileName))) {
+            for (int n; length < buf.length && (n = in.read(buf, length, buf.length - length)) > 0; ) {
+                length += n;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return startsWithProfileFields(buf, length);
+    }
+
+    // Checks that the data begins with a sequence of top-level fields of the Profile message
+    private static boolean startsWithProfileFields(byte[] data, int length) {
+        ProtoReader r = new ProtoReader(ByteBuffer.wrap(data, 0, length));
+        int fields = 0;
+        try {
+            while (r.hasRemaining()) {
+                int pos = r.position();
+                int tag = r.readTag();
+                if (!isProfileField(tag)) {
+                    return false;
+                }
+                fields++;
+                r.skip(tag);
+                if (r.position() <= pos) {
+                    return false;
+                }
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            // The probe ends in the middle of a field
+        }
+        return fields > 0;
+    }
+
+    private static boolean isProfileField(int tag) {
+        int wireType = tag & 7;
+        switch (tag >>> 3) {
+            case 1: case 2: case 3: case 4: case 5: case 6: case 11:
+                return wireType == ProtoReader.LENGTH_DELIMITED;
+            case 7: case 8: case 9: case 10: case 12: case 14:
+                return wireType == ProtoReader.VARINT;
+            case 13:
+                return wireType == ProtoReader.VARINT || wireType == ProtoReader.LENGTH_DELIMITED;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Maps an uncompressed profile into memory, or inflates a gzipped one
+     * into a single array sized after the length recorded in the gzip trailer.
+     */
+    public static ByteBuffer readProfile(String fileName) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long fileSize = ch.size();
+            ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            ch.read(header, 0);
+            if (header.position() < 2 || header.get(0) != (byte) 0x1f || header.get(1) != (byte) 0x8b) {
+                if (fileSize > Integer.MAX_VALUE) {
+                    throw new IOException("Profile is too large: " + fileSize);
+                }
+                return ch.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            }
+
+            header.clear();
+            ch.read(header, Math.max(fileSize - 4, 0));
+            int sizeHint = header.position() == 4 ? header.getInt(0) : 0;
+
+            byte[] data = new byte[sizeHint > 0 ? sizeHint : 1024 * 1024];
+            int size = 0;
+            try (InputStream in = new GZIPInputStream(Channels.newInputStream(ch.position(0)), 65536)) {
+                while (true) {
+                    if (size == data.length) {
+                        // The hint is exact unless the profile exceeds 4 GB or consists of multiple gzip members
+                        int b = in.read();
+                        if (b < 0) {
+                            break;
+                        } else if (size >= MAX_ARRAY_SIZE) {
+                            throw new IOException("Profile is too large");
+                        }
+                        data = Arrays.copyOf(data, (int) Math.min(size * 2L, MAX_ARRAY_SIZE));
+                        data[size++] = (byte) b;
+                    }
+
+                    int n = in.read(data, size, data.length - size);
+                    if (n < 0) {
+                        break;
+                    }
+                    size += n;
+                }
+            }
+            return ByteBuffer.wrap(data, 0, size);
+        }
+    }
+
+    public static FlameGraph parse(String input, Arguments args) throws IOException {
+        return new PprofToFlame(readProfile(input), args).convert();
+    }
+
+    public static void convert(String input, String output, Arguments args) throws IOException {
+        FlameGraph fg = parse(input, args);
+        try (FileOutputStream out = new FileOutputStream(output)) {
+            fg.dump(out);
+        }
+    }
+}
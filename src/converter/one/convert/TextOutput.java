@@ -0,0 +1,138 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.convert;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered text writer that encodes characters and numbers as UTF-8
+ * straight into a byte buffer, without intermediate String objects.
+ */
+public class TextOutput implements Closeable {
+    private static final int BUFFER_SIZE = 65536;
+
+    private final OutputStream out;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos;
+
+    public TextOutput(OutputStream out) {
+        this.out = out;
+    }
+
+    public TextOutput write(byte[] b, int offset, int length) throws IOException {
+        if (length > buf.length - pos) {
+            flushBuffer();
+            if (length > buf.length) {
+                out.write(b, offset, length);
+                return this;
+            }
+        }
+        System.arraycopy(b, offset, buf, pos, length);
+        pos += length;
+        return this;
+    }
+
+    public TextOutput print(char c) throws IOException {
+        if (c < 0x80) {
+            if (pos == buf.length) {
+                flushBuffer();
+            }
+            buf[pos++] = (byte) c;
+        } else {
+            print(String.valueOf(c));
+        }
+        return this;
+    }
+
+    public TextOutput print(String s) throws IOException {
+        return print(s, 0, s.length());
+    }
+
+    public TextOutput print(String s, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            if (buf.length - pos < 4) {
+                flushBuffer();
+            }
+
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | c >>> 6);
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xf0 | cp >>> 18);
+                buf[pos++] = (byte) (0x80 | ((cp >>> 12) & 0x3f));
+                buf[pos++] = (byte) (0x80 | ((cp >>> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate is replaced the same way as String.getBytes() does
+                buf[pos++] = '?';
+            } else {
+                buf[pos++] = (byte) (0xe0 | c >>> 12);
+                buf[pos++] = (byte) (0x80 | ((c >>> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return this;
+    }
+
+    public TextOutput print(long n) throws IOException {
+        if (buf.length - pos < 20) {
+            flushBuffer();
+        }
+
+        if (n < 0) {
+            if (n == Long.MIN_VALUE) {
+                return print(Long.toString(n));
+            }
+            buf[pos++] = '-';
+            n = -n;
+        }
+
+        int start = pos;
+        do {
+            buf[pos++] = (byte) ('0' + n % 10);
+            n /= 10;
+        } while (n != 0);
+
+        // Digits were written in reverse order
+        for (int i = start, j = pos - 1; i < j; i++, j--) {
+            byte tmp = buf[i];
+            buf[i] = buf[j];
+            buf[j] = tmp;
+        }
+        return this;
+    }
+
+    public TextOutput print(boolean b) throws IOException {
+        return print(b ? "true" : "false");
+    }
+
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.jfr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Table of complete chunks of a recording: file offsets, sizes and time ranges.
+ * Built from chunk headers without parsing metadata, constant pools or events.
+ * Can be persisted next to the recording as a sidecar file, which remains valid
+ * as long as the size and the modification time of the recording do not change.
+ */
+public class JfrIndex {
+    private static final int MAGIC = 0x4a465249;  // JFRI
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+    private static final int ENTRY_SIZE = 32;
+
+    private final long fileSize;
+    private final long lastModified;
+    private final int count;
+    private final long[] offsets;
+    private final long[] sizes;
+    private final long[] startNanos;
+    private final long[] endNanos;
+
+    private JfrIndex(long fileSize, long lastModified, int count,
+                     long[] offsets, long[] sizes, long[] startNanos, long[] endNanos) {
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.count = count;
+        this.offsets = offsets;
+        this.sizes = sizes;
+        this.startNanos = startNanos;
+        this.endNanos = endNanos;
+    }
+
+    public static String getIndexFile(String fileName) {
+        return fileName + ".idx";
+    }
+
+    /**
+     * Loads the sidecar index of the given recording, if it is up to date;
+     * otherwise builds a new index and tries to save it.
+     */
+    public static JfrIndex getOrCreate(String fileName) throws IOException {
+        JfrIndex index = load(fileName);
+        if (index == null) {
+            index = build(fileName);
+            try {
+                index.save(getIndexFile(fileName));
+            } catch (IOException e) {
+                // The directory may be read-only; the index is still usable in memory
+            }
+        }
+        return index;
+    }
+
+    public static JfrIndex build(String fileName) throws IOException {
+        long lastModified = new File(fileName).lastModified();
+        try (FileChannel ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            return build(ch, lastModified);
+        }
+    }
+
+    static JfrIndex build(FileChannel ch, long lastModified) throws IOException {
+        long fileSize = ch.size();
+        int count = 0;
+        long[] offsets = new long[16];
+        long[] sizes = new long[16];
+        long[] startNanos = new long[16];
+        long[] endNanos = new long[16];
+
+        ByteBuffer header = ByteBuffer.allocate(JfrReader.CHUNK_HEADER_SIZE);
+        for (long pos = 0; ; ) {
+            // Stop at the first incomplete chunk
+            long chunkSize = readChunkHeader(ch, header, pos, fileSize);
+            if (chunkSize <= 0) {
+                break;
+            }
+
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+                startNanos = Arrays.copyOf(startNanos, count * 2);
+                endNanos = Arrays.copyOf(endNanos, count * 2);
+            }
+            offsets[count] = pos;
+            sizes[count] = chunkSize;
+            startNanos[count] = header.getLong(32);
+            endNanos[count] = header.getLong(32) + header.getLong(40);
+            count++;
+
+            pos += chunkSize;
+        }
+
+        return new JfrIndex(fileSize, lastModified, count, offsets, sizes, startNanos, endNanos);
+    }
+
+    /**
+     * Reads the header of a chunk at the given file offset into the buffer.
+     * The agent fills in the chunk size and the offsets of metadata and constant pool
+     * only after the whole chunk has been written.
+     *
+     * @return size of the chunk, or 0 if the chunk is not complete yet
+     */
+    static long readChunkHeader(FileChannel ch, ByteBuffer header, long pos, long fileSize) throws IOException {
+        if (pos + JfrReader.CHUNK_HEADER_SIZE > fileSize) {
+            return 0;
+        }
+
+        header.clear();
+        while (header.hasRemaining() && ch.read(header, pos + header.position()) > 0) {
+            // keep reading
+        }
+        if (header.hasRemaining() || header.getInt(0) != JfrReader.CHUNK_SIGNATURE) {
+            throw new IOException("Not a valid JFR file");
+        }
+
+        long chunkSize = header.getLong(8);
+        if (chunkSize <= 0 || pos + chunkSize > fileSize || header.getLong(16) == 0 || header.getLong(24) == 0) {
+            return 0;
+        }
+        return chunkSize;
+    }
+
+    // Returns null if the index does not exist, does not match the recording or cannot be read,
+    // e.g. if it has been truncated; such an index is then rebuilt
+    public static JfrIndex load(String fileName) {
+        File file = new File(fileName);
+        File indexFile = new File(getIndexFile(fileName));
+        if (!indexFile.exists()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+
+            long fileSize = in.readLong();
+            long lastModified = in.readLong();
+            if (fileSize != file.length() || lastModified != file.lastModified()) {
+                return null;
+            }
+
+            int count = in.readInt();
+            if (count < 0 || (long) count * ENTRY_SIZE != indexFile.length() - HEADER_SIZE) {
+                return null;
+            }
+
+            long[] offsets = new long[count];
+            long[] sizes = new long[count];
+            long[] startNanos = new long[count];
+            long[] endNanos = new long[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = in.readLong();
+                sizes[i] = in.readLong();
+                startNanos[i] = in.readLong();
+                endNanos[i] = in.readLong();
+            }
+            return new JfrIndex(fileSize, lastModified, count, offsets, sizes, startNanos, endNanos);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // The index is written to a temporary file first, so that a crash or a concurrent run
+    // never leaves a partially written index behind
+    public void save(String indexFile) throws IOException {
+        File target = new File(indexFile).getAbsoluteFile();
+        File tmp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(fileSize);
+                out.writeLong(lastModified);
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(offsets[i]);
+                    out.writeLong(sizes[i]);
+                    out.writeLong(startNanos[i]);
+                    out.writeLong(endNanos[i]);
+                }
+            }
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    public int chunkCount() {
+        return count;
+    }
+
+    public long chunkOffset(int chunk) {
+        return offsets[chunk];
+    }
+
+    public long chunkSize(int chunk) {
+        return sizes[chunk];
+    }
+
+    public long chunkStartNanos(int chunk) {
+        return startNanos[chunk];
+    }
+
+    public long chunkEndNanos(int chunk) {
+        return endNanos[chunk];
+    }
+
+    public long startNanos() {
+        long result = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            result = Math.min(result, startNanos[i]);
+        }
+        return result;
+    }
+
+    public long endNanos() {
+        long result = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            result = Math.max(result, endNanos[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Finds the first chunk at or after the given file offset that overlaps [fromNanos, toNanos].
+     *
+     * @return chunk number, or -1 if there is no such chunk
+     */
+    public int findChunk(long fromOffset, long fromNanos, long toNanos) {
+        for (int i = 0; i < count; i++) {
+            if (offsets[i] >= fromOffset && endNanos[i] >= fromNanos && startNanos[i] <= toNanos) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -27,8 +27,9 @@ import java.util.Map;
  */
 public class JfrReader implements Closeable {
     private static final int BUFFER_SIZE = 2 * 1024 * 1024;
-    private static final int CHUNK_HEADER_SIZE = 68;
-    private static final int CHUNK_SIGNATURE = 0x464c5200;
+    private static final long MAX_MAP_SIZE = Integer.MAX_VALUE;
+    static final int CHUNK_HEADER_SIZE = 68;
+    static final int CHUNK_SIGNATURE = 0x464c5200;
 
     private static final byte STATE_NEW_CHUNK = 0;
     private static final byte STATE_READING = 1;
@@ -36,11 +37,20 @@ public class JfrReader implements Closeable {
     private static final byte STATE_INCOMPLETE = 3;
 
     private final FileChannel ch;
+    private final boolean mmap;
     private ByteBuffer buf;
     private final long fileSize;
     private long filePosition;
     private byte state;
 
+    // In mmap mode, the window replaced by the last map() call, reused when seeking back into it
+    private ByteBuffer prevWindow;
+    private long prevWindowPosition;
+
+    private final JfrIndex index;
+    private final long fromNanos;
+    private final long toNanos;
+
     public long startNanos = Long.MAX_VALUE;
     public long endNanos = Long.MIN_VALUE;
     public long startTicks = Long.MAX_VALUE;
@@ -74,21 +84,68 @@ public class JfrReader implements Closeable {
     private int activeSetting;
 
     public JfrReader(String fileName) throws IOException {
+        this(fileName, false);
+    }
+
+    /**
+     * @param mmap if true, the file is mapped into memory in windows of up to 2 GB,
+     *             and all data is decoded directly from the mapping without copying.
+     *             Otherwise, the file is read through an intermediate buffer.
+     */
+    public JfrReader(String fileName, boolean mmap) throws IOException {
+        this(fileName, mmap, null, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads only chunks that overlap the time range [fromNanos, toNanos]; other chunks
+     * are skipped using the index without parsing their metadata, constant pools or events.
+     * {@link #startNanos} and {@link #endNanos} span the whole recording.
+     */
+    public JfrReader(String fileName, boolean mmap, JfrIndex index, long fromNanos, long toNanos) throws IOException {
         this.ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
-        this.buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.mmap = mmap;
         this.fileSize = ch.size();
+        this.index = index;
+        this.fromNanos = fromNanos;
+        this.toNanos = toNanos;
+
+        long start = 0;
+        if (index != null) {
+            startNanos = index.startNanos();
+            endNanos = index.endNanos();
+            int chunk = index.findChunk(0, fromNanos, toNanos);
+            if (chunk < 0) {
+                // No chunk overlaps the time range: position the reader at the end of file
+                state = STATE_EOF;
+                buf = ByteBuffer.allocate(0);
+                filePosition = fileSize;
+                ch.position(fileSize);
+                return;
+            }
+            start = index.chunkOffset(chunk);
+        }
 
-        buf.flip();
-        ensureBytes(CHUNK_HEADER_SIZE);
-        if (!readChunk(0)) {
+        if (mmap) {
+            map(start, CHUNK_HEADER_SIZE);
+        } else {
+            this.buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buf.flip();
+            seek(start);
+            ensureBytes(CHUNK_HEADER_SIZE);
+        }
+        if (!readChunk(0) && state == STATE_INCOMPLETE) {
             throw new IOException("Incomplete JFR file");
         }
     }
 
     public JfrReader(ByteBuffer buf) throws IOException {
         this.ch = null;
+        this.mmap = false;
         this.buf = buf;
         this.fileSize = buf.limit();
+        this.index = null;
+        this.fromNanos = Long.MIN_VALUE;
+        this.toNanos = Long.MAX_VALUE;
 
         buf.order(ByteOrder.BIG_ENDIAN);
         if (!readChunk(0)) {
@@ -96,6 +153,40 @@ public class JfrReader implements Closeable {
         }
     }
 
+    /**
+     * Maps every complete chunk of a recording into a separate buffer.
+     * Each chunk carries its own metadata and constant pools, so the buffers
+     * can be parsed independently, e.g. in parallel, with {@link #JfrReader(ByteBuffer)}.
+     */
+    public static List<ByteBuffer> mapChunks(String fileName) throws IOException {
+        return mapChunks(fileName, null, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Maps chunks that overlap the time range [fromNanos, toNanos].
+     *
+     * @param index chunk index of the recording, or null to build it from chunk headers
+     */
+    public static List<ByteBuffer> mapChunks(String fileName, JfrIndex index, long fromNanos, long toNanos)
+            throws IOException {
+        List<ByteBuffer> chunks = new ArrayList<>();
+        try (FileChannel ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            if (index == null) {
+                index = JfrIndex.build(ch, 0);
+            }
+            for (int i = 0; i < index.chunkCount(); i++) {
+                long chunkSize = index.chunkSize(i);
+                if (index.chunkEndNanos(i) < fromNanos || index.chunkStartNanos(i) > toNanos) {
+                    continue;
+                } else if (chunkSize > Integer.MAX_VALUE) {
+                    throw new IOException("JFR chunk is too large: " + chunkSize);
+                }
+                chunks.add(ch.map(FileChannel.MapMode.READ_ONLY, index.chunkOffset(i), chunkSize));
+            }
+        }
+        return chunks;
+    }
+
     @Override
     public void close() throws IOException {
         if (ch != null) {
@@ -150,7 +241,7 @@ public class JfrReader implements Closeable {
 
     @SuppressWarnings("unchecked")
     public <E extends Event> E readEvent(Class<E> cls) throws IOException {
-        while (ensureBytes(CHUNK_HEADER_SIZE)) {
+        while (nextRecord()) {
             int pos = buf.position();
             int size = getVarint();
             int type = getVarint();
@@ -199,6 +290,96 @@ public class JfrReader implements Closeable {
         return null;
     }
 
+    /**
+     * Reads stack trace samples of the given class without creating an Event per sample.
+     * Similar to {@link #readEvent(Class)}, stops at the end of file or the current chunk,
+     * if {@link #stopAtNewChunk} is set. Unlike {@link #readAllEvents(Class)}, events are not sorted.
+     *
+     * @param cls ExecutionSample, AllocationSample, LiveObject or ContendedLock
+     */
+    public void readEvents(Class<? extends Event> cls, SampleVisitor visitor) throws IOException {
+        if (cls != ExecutionSample.class && cls != AllocationSample.class &&
+                cls != LiveObject.class && cls != ContendedLock.class) {
+            throw new IllegalArgumentException("Unsupported event class: " + cls.getName());
+        }
+
+        while (nextRecord()) {
+            int pos = buf.position();
+            int size = getVarint();
+            int type = getVarint();
+
+            if (type == 'L' && buf.getInt(pos) == CHUNK_SIGNATURE) {
+                if (state != STATE_NEW_CHUNK && stopAtNewChunk) {
+                    buf.position(pos);
+                    state = STATE_NEW_CHUNK;
+                } else if (readChunk(pos)) {
+                    continue;
+                }
+                return;
+            }
+
+            if (type == executionSample || type == nativeMethodSample) {
+                if (cls == ExecutionSample.class) readExecutionSample(visitor);
+            } else if (type == allocationInNewTLAB) {
+                if (cls == AllocationSample.class) readAllocationSample(true, visitor);
+            } else if (type == allocationOutsideTLAB || type == allocationSample) {
+                if (cls == AllocationSample.class) readAllocationSample(false, visitor);
+            } else if (type == liveObject) {
+                if (cls == LiveObject.class) readLiveObject(visitor);
+            } else if (type == monitorEnter) {
+                if (cls == ContendedLock.class) readContendedLock(false, visitor);
+            } else if (type == threadPark) {
+                if (cls == ContendedLock.class) readContendedLock(true, visitor);
+            } else if (type == activeSetting) {
+                readActiveSetting();
+            }
+
+            seek(filePosition + pos + size);
+        }
+
+        state = STATE_EOF;
+    }
+
+    private void readExecutionSample(SampleVisitor visitor) {
+        long time = getVarlong();
+        int tid = getVarint();
+        int stackTraceId = getVarint();
+        int threadState = getVarint();
+        visitor.visit(time, tid, stackTraceId, 0, threadState, 1);
+    }
+
+    private void readAllocationSample(boolean tlab, SampleVisitor visitor) {
+        long time = getVarlong();
+        int tid = getVarint();
+        int stackTraceId = getVarint();
+        int classId = getVarint();
+        long allocationSize = getVarlong();
+        long tlabSize = tlab ? getVarlong() : 0;
+        if (tlabSize != 0) {
+            visitor.visit(time, tid, stackTraceId, classId, 0, tlabSize);
+        } else {
+            visitor.visit(time, tid, stackTraceId, classId, 1, allocationSize);
+        }
+    }
+
+    private void readLiveObject(SampleVisitor visitor) {
+        long time = getVarlong();
+        int tid = getVarint();
+        int stackTraceId = getVarint();
+        int classId = getVarint();
+        long allocationSize = getVarlong();
+        visitor.visit(time, tid, stackTraceId, classId, 0, allocationSize);
+    }
+
+    private void readContendedLock(boolean hasTimeout, SampleVisitor visitor) {
+        long time = getVarlong();
+        long duration = getVarlong();
+        int tid = getVarint();
+        int stackTraceId = getVarint();
+        int classId = getVarint();
+        visitor.visit(time, tid, stackTraceId, classId, 0, duration);
+    }
+
     private ExecutionSample readExecutionSample() {
         long time = getVarlong();
         int tid = getVarint();
@@ -275,6 +456,10 @@ public class JfrReader implements Closeable {
             return false;
         }
 
+        if (index != null && (buf.getLong(pos + 32) + buf.getLong(pos + 40) < fromNanos || buf.getLong(pos + 32) > toNanos)) {
+            return skipChunk(chunkStart + chunkSize);
+        }
+
         chunkStartNanos = buf.getLong(pos + 32);
         chunkEndNanos = buf.getLong(pos + 32) + buf.getLong(pos + 40);
         chunkStartTicks = buf.getLong(pos + 48);
@@ -296,6 +481,18 @@ public class JfrReader implements Closeable {
         return true;
     }
 
+    // Continues from the next chunk within the time range
+    private boolean skipChunk(long nextChunkStart) throws IOException {
+        int chunk = index.findChunk(nextChunkStart, fromNanos, toNanos);
+        if (chunk < 0) {
+            state = STATE_EOF;
+            return false;
+        }
+        seek(index.chunkOffset(chunk));
+        ensureBytes(CHUNK_HEADER_SIZE);
+        return readChunk(buf.position());
+    }
+
     private void readMeta(long metaOffset) throws IOException {
         seek(metaOffset);
         ensureBytes(5);
@@ -628,6 +825,8 @@ public class JfrReader implements Closeable {
         long bufPosition = pos - filePosition;
         if (bufPosition >= 0 && bufPosition <= buf.limit()) {
             buf.position((int) bufPosition);
+        } else if (mmap) {
+            map(pos, CHUNK_HEADER_SIZE);
         } else {
             filePosition = pos;
             ch.position(pos);
@@ -644,6 +843,14 @@ public class JfrReader implements Closeable {
             return false;
         }
 
+        if (mmap) {
+            // Slide the window only if it does not reach the end of file yet
+            if (filePosition + buf.limit() < fileSize) {
+                map(filePosition + buf.position(), needed);
+            }
+            return buf.remaining() >= needed;
+        }
+
         filePosition += buf.position();
 
         if (buf.capacity() < needed) {
@@ -658,6 +865,42 @@ public class JfrReader implements Closeable {
             // keep reading
         }
         buf.flip();
-        return buf.limit() > 0;
+        return buf.remaining() >= needed;
+    }
+
+    // Event loops continue while any data is left, since the last records of a file
+    // may be shorter than CHUNK_HEADER_SIZE
+    private boolean nextRecord() throws IOException {
+        ensureBytes(CHUNK_HEADER_SIZE);
+        return buf.hasRemaining();
+    }
+
+    private void map(long pos, int needed) throws IOException {
+        ByteBuffer window = buf;
+        long windowPosition = filePosition;
+
+        long offset = pos - prevWindowPosition;
+        if (prevWindow != null && offset >= 0 && offset <= prevWindow.limit() &&
+                (offset + needed <= prevWindow.limit() || prevWindowPosition + prevWindow.limit() == fileSize)) {
+            buf = prevWindow;
+            filePosition = prevWindowPosition;
+            buf.position((int) offset);
+        } else {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(fileSize - pos, MAX_MAP_SIZE));
+            filePosition = pos;
+        }
+
+        prevWindow = window;
+        prevWindowPosition = windowPosition;
+    }
+
+    /**
+     * Receives fields of a stack trace sample as primitives.
+     * value has the same meaning as {@link Event#value()}.
+     * extra is the thread state for ExecutionSample,
+     * 1 for AllocationSample outside TLAB, and 0 otherwise.
+     */
+    public interface SampleVisitor {
+        void visit(long time, int tid, int stackTraceId, int classId, int extra, long value);
     }
 }
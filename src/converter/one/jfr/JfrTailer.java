@@ -0,0 +1,176 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.jfr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows a recording while the profiler is still writing it, e.g. with
+ * <code>file=profile.jfr,chunktime=10s</code>. Every chunk is handed out exactly once,
+ * as soon as its header shows that the chunk is complete; the unfinished last chunk
+ * is never parsed. Each returned {@link JfrReader} covers a single chunk.
+ * <p>
+ * The file is watched with {@link WatchService} where available, and is polled
+ * otherwise. If the file is recreated by a new profiling session, i.e. it shrinks,
+ * changes its identity or starts with a different chunk, reading starts over
+ * from the beginning.
+ */
+public class JfrTailer implements Closeable {
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+    private static final int FIRST_CHUNK_START_OFFSET = 32;
+
+    private final Path path;
+    private final ByteBuffer header = ByteBuffer.allocate(JfrReader.CHUNK_HEADER_SIZE);
+    private WatchService watcher;
+    private long nextChunkOffset;
+    private Object fileKey;
+    private long firstChunkStart;
+
+    public JfrTailer(String fileName) {
+        this.path = Paths.get(fileName).toAbsolutePath();
+        try {
+            this.watcher = path.getFileSystem().newWatchService();
+            path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            // Fall back to polling
+            closeWatcher();
+        }
+    }
+
+    /**
+     * Returns the next complete chunk without waiting.
+     *
+     * @return reader of the next chunk, or null if no new chunk has been completed yet
+     */
+    public JfrReader poll() throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            Object key = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            long fileSize = ch.size();
+            if (nextChunkOffset > 0 && isRestarted(ch, fileSize, key)) {
+                nextChunkOffset = 0;
+            }
+
+            long chunkSize = JfrIndex.readChunkHeader(ch, header, nextChunkOffset, fileSize);
+            if (chunkSize <= 0) {
+                return null;
+            } else if (chunkSize > Integer.MAX_VALUE) {
+                throw new IOException("JFR chunk is too large: " + chunkSize);
+            }
+
+            if (nextChunkOffset == 0) {
+                fileKey = key;
+                firstChunkStart = header.getLong(FIRST_CHUNK_START_OFFSET);
+            }
+
+            ByteBuffer chunk = ch.map(FileChannel.MapMode.READ_ONLY, nextChunkOffset, chunkSize);
+            nextChunkOffset += chunkSize;
+            return new JfrReader(chunk);
+        } catch (NoSuchFileException e) {
+            // The recording has not been started yet
+            return null;
+        }
+    }
+
+    // A new recording may have grown past the previous offset before the next poll,
+    // so besides the size, check that the file and its first chunk are still the same
+    private boolean isRestarted(FileChannel ch, long fileSize, Object key) throws IOException {
+        if (fileSize < nextChunkOffset || (key != null && !key.equals(fileKey))) {
+            return true;
+        }
+
+        header.clear().limit(FIRST_CHUNK_START_OFFSET + 8);
+        while (header.hasRemaining() && ch.read(header, header.position()) > 0) {
+            // keep reading
+        }
+        return header.hasRemaining() || header.getInt(0) != JfrReader.CHUNK_SIGNATURE ||
+                header.getLong(FIRST_CHUNK_START_OFFSET) != firstChunkStart;
+    }
+
+    /**
+     * Waits until the next chunk is complete.
+     *
+     * @return reader of the next chunk, or null if the timeout has elapsed
+     */
+    public JfrReader take(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            JfrReader reader = poll();
+            if (reader != null) {
+                return reader;
+            }
+
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                return null;
+            }
+            await(Math.min(remainingMillis, POLL_INTERVAL_MILLIS));
+        }
+    }
+
+    /**
+     * Passes every chunk, including those completed before the call, to the visitor
+     * until the thread is interrupted or the visitor throws an exception.
+     */
+    public void follow(ChunkVisitor visitor) throws IOException, InterruptedException {
+        while (true) {
+            JfrReader reader = poll();
+            if (reader != null) {
+                visitor.visit(reader);
+            } else {
+                await(POLL_INTERVAL_MILLIS);
+            }
+        }
+    }
+
+    // Waits for a change in the directory of the recording; a timeout only bounds the latency
+    private void await(long millis) throws IOException, InterruptedException {
+        if (watcher == null) {
+            Thread.sleep(millis);
+            return;
+        }
+
+        WatchKey key = watcher.poll(millis, TimeUnit.MILLISECONDS);
+        if (key != null) {
+            key.pollEvents();
+            if (!key.reset() && Files.notExists(path.getParent())) {
+                throw new IOException("Directory of " + path + " no longer exists");
+            }
+        }
+    }
+
+    private void closeWatcher() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            watcher = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        closeWatcher();
+    }
+
+    public interface ChunkVisitor {
+        void visit(JfrReader chunk) throws IOException;
+    }
+}
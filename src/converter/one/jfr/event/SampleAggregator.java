@@ -0,0 +1,128 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.jfr.event;
+
+/**
+ * Columnar counterpart of {@link EventAggregator} that does not retain Event objects.
+ * A group key (stackTraceId, tid, classId, extra) is packed into two longs
+ * of the keys array; aggregated values are kept in a parallel array.
+ */
+public class SampleAggregator {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final boolean threads;
+    private final boolean total;
+    // keys[i * 2]     = stackTraceId << 32 | tid
+    // keys[i * 2 + 1] = classId << 32 | extra << 1 | 1, where the lowest bit marks a used slot
+    private long[] keys;
+    private long[] values;
+    private int size;
+
+    public SampleAggregator(boolean threads, boolean total) {
+        this.threads = threads;
+        this.total = total;
+        this.keys = new long[INITIAL_CAPACITY * 2];
+        this.values = new long[INITIAL_CAPACITY];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param extra distinguishes groups with the same stack trace and class,
+     *              e.g. allocations outside TLAB; must be non-negative
+     * @param value added to the group value when aggregating totals
+     */
+    public void collect(int tid, int stackTraceId, int classId, int extra, long value) {
+        long key1 = packKey1(tid, stackTraceId);
+        long key2 = packKey2(classId, extra);
+
+        int mask = values.length - 1;
+        int i = hashCode(key1, key2) & mask;
+        while (keys[i * 2 + 1] != 0) {
+            if (keys[i * 2] == key1 && keys[i * 2 + 1] == key2) {
+                values[i] += total ? value : 1;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys[i * 2] = key1;
+        keys[i * 2 + 1] = key2;
+        values[i] = total ? value : 1;
+
+        if (++size * 2 > values.length) {
+            resize(values.length * 2);
+        }
+    }
+
+    public long getValue(int tid, int stackTraceId, int classId, int extra) {
+        long key1 = packKey1(tid, stackTraceId);
+        long key2 = packKey2(classId, extra);
+
+        int mask = values.length - 1;
+        int i = hashCode(key1, key2) & mask;
+        while (keys[i * 2 + 1] != 0) {
+            if (keys[i * 2] == key1 && keys[i * 2 + 1] == key2) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return 0;
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < values.length; i++) {
+            long key2 = keys[i * 2 + 1];
+            if (key2 != 0) {
+                long key1 = keys[i * 2];
+                visitor.visit((int) key1, (int) (key1 >>> 32), (int) (key2 >>> 32), (int) key2 >>> 1, values[i]);
+            }
+        }
+    }
+
+    private long packKey1(int tid, int stackTraceId) {
+        return (long) stackTraceId << 32 | (threads ? tid & 0xffffffffL : 0);
+    }
+
+    private static long packKey2(int classId, int extra) {
+        return (long) classId << 32 | (extra & 0x7fffffffL) << 1 | 1;
+    }
+
+    private static int hashCode(long key1, long key2) {
+        long h = (key1 ^ key2 * 31) * 0xc6a4a7935bd1e995L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void resize(int newCapacity) {
+        long[] newKeys = new long[newCapacity * 2];
+        long[] newValues = new long[newCapacity];
+        int mask = newValues.length - 1;
+
+        for (int i = 0; i < values.length; i++) {
+            long key1 = keys[i * 2];
+            long key2 = keys[i * 2 + 1];
+            if (key2 != 0) {
+                for (int j = hashCode(key1, key2) & mask; ; j = (j + 1) & mask) {
+                    if (newKeys[j * 2 + 1] == 0) {
+                        newKeys[j * 2] = key1;
+                        newKeys[j * 2 + 1] = key2;
+                        newValues[j] = values[i];
+                        break;
+                    }
+                }
+            }
+        }
+
+        keys = newKeys;
+        values = newValues;
+    }
+
+    public interface Visitor {
+        void visit(int tid, int stackTraceId, int classId, int extra, long value);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package one.proto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Simplified Protobuf reader that decodes fields in place from a ByteBuffer.
+ * Embedded messages are not copied: {@link #enter()} limits reading to the message
+ * and {@link #leave(int)} restores the outer limit.
+ */
+public class ProtoReader {
+    public static final int VARINT = 0;
+    public static final int FIXED64 = 1;
+    public static final int LENGTH_DELIMITED = 2;
+    public static final int FIXED32 = 5;
+
+    private final ByteBuffer buf;
+    private int pos;
+    private int limit;
+
+    public ProtoReader(ByteBuffer buf) {
+        this.buf = buf;
+        this.pos = buf.position();
+        this.limit = buf.limit();
+    }
+
+    public int position() {
+        return pos;
+    }
+
+    public void position(int pos) {
+        this.pos = pos;
+    }
+
+    public boolean hasRemaining() {
+        return pos < limit;
+    }
+
+    /**
+     * @return field tag: field number << 3 | wire type
+     */
+    public int readTag() {
+        return readInt();
+    }
+
+    public int readInt() {
+        return (int) readLong();
+    }
+
+    public long readLong() {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get(pos++);
+            result |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint at " + (pos - 1));
+    }
+
+    public long readFixed64() {
+        long result = Long.reverseBytes(buf.getLong(pos));
+        pos += 8;
+        return result;
+    }
+
+    public double readDouble() {
+        return Double.longBitsToDouble(readFixed64());
+    }
+
+    public String readString() {
+        int length = readInt();
+        String result;
+        if (buf.hasArray()) {
+            result = new String(buf.array(), buf.arrayOffset() + pos, length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buf.get(pos + i);
+            }
+            result = new String(bytes, StandardCharsets.UTF_8);
+        }
+        pos += length;
+        return result;
+    }
+
+    /**
+     * Starts reading a length-delimited field, e.g. an embedded message or a packed array.
+     *
+     * @return outer limit to be passed to {@link #leave(int)}
+     */
+    public int enter() {
+        int length = readInt();
+        int outerLimit = limit;
+        limit = pos + length;
+        if (length < 0 || limit > outerLimit) {
+            throw new IllegalArgumentException("Malformed length at " + pos);
+        }
+        return outerLimit;
+    }
+
+    // Skips the rest of the current length-delimited field
+    public void leave(int outerLimit) {
+        pos = limit;
+        limit = outerLimit;
+    }
+
+    public void skip(int tag) {
+        switch (tag & 7) {
+            case VARINT:
+                readLong();
+                break;
+            case FIXED64:
+                pos += 8;
+                break;
+            case LENGTH_DELIMITED:
+                int length = readInt();
+                pos += length;
+                break;
+            case FIXED32:
+                pos += 4;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported wire type " + (tag & 7) + " at " + pos);
+        }
+    }
+}
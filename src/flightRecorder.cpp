@@ -421,6 +421,7 @@ class Recording {
     static char* _jvm_args;
     static char* _jvm_flags;
     static char* _java_command;
+    static u64 _buffer_flushes;
 
     RecordingBuffer _buf[CONCURRENCY_LEVEL];
     int _fd;
@@ -591,6 +592,10 @@ class Recording {
         return loadAcquire(_bytes_written) >= _chunk_size || wall_time - _start_time >= _chunk_time;
     }
 
+    static u64 bufferFlushes() {
+        return _buffer_flushes;
+    }
+
     size_t usedMemory() {
         return _method_map.usedMemory() + _thread_set.usedMemory() +
                (_memfd >= 0 ? lseek(_memfd, 0, SEEK_CUR) : 0);
@@ -722,6 +727,7 @@ class Recording {
         if (result > 0) {
             atomicInc(_bytes_written, result);
         }
+        atomicInc(_buffer_flushes);
         buf->reset();
     }
 
@@ -1288,6 +1294,7 @@ char* Recording::_agent_properties = NULL;
 char* Recording::_jvm_args = NULL;
 char* Recording::_jvm_flags = NULL;
 char* Recording::_java_command = NULL;
+u64 Recording::_buffer_flushes = 0;
 
 
 Error FlightRecorder::start(Arguments& args, bool reset) {
@@ -1349,6 +1356,10 @@ void FlightRecorder::flush() {
     }
 }
 
+u64 FlightRecorder::bufferFlushes() {
+    return Recording::bufferFlushes();
+}
+
 size_t FlightRecorder::usedMemory() {
     size_t bytes = 0;
     if (_rec != NULL) {
@@ -28,6 +28,7 @@ class FlightRecorder {
     void stop();
     void flush();
     size_t usedMemory();
+    u64 bufferFlushes();
     bool timerTick(u64 wall_time, u32 gc_id);
 
     bool active() const {
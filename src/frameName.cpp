@@ -69,9 +69,11 @@ bool Matcher::matches(const char* s) {
 }
 
 
-JMethodCache FrameName::_cache;
+JMethodCache FrameName::_saved_cache;
+Mutex FrameName::_saved_cache_lock;
 
 FrameName::FrameName(Arguments& args, int style, int epoch, Mutex& thread_names_lock, ThreadMap& thread_names) :
+    _cache(),
     _class_names(),
     _include(),
     _exclude(),
@@ -88,7 +90,16 @@ FrameName::FrameName(Arguments& args, int style, int epoch, Mutex& thread_names_
     buildFilter(_include, args._buf, args._include);
     buildFilter(_exclude, args._buf, args._exclude);
 
-    Profiler::instance()->classMap()->collect(_class_names);
+    // Keep own copies of class names: a dump may outlive the class map, which is cleared on restart
+    std::map<unsigned int, const char*> class_names;
+    Profiler::instance()->classMap()->collect(class_names);
+    for (std::map<unsigned int, const char*>::const_iterator it = class_names.begin(); it != class_names.end(); ++it) {
+        _class_names[it->first] = it->second;
+    }
+
+    // A concurrent dump may own the cache at the moment; then this one starts with an empty cache
+    MutexLocker ml(_saved_cache_lock);
+    _cache.swap(_saved_cache);
 }
 
 FrameName::~FrameName() {
@@ -105,6 +116,17 @@ FrameName::~FrameName() {
         }
     }
 
+    {
+        MutexLocker ml(_saved_cache_lock);
+        if (_cache_max_age == 0) {
+            _saved_cache.clear();
+        } else if (_saved_cache.empty()) {
+            _saved_cache.swap(_cache);
+        } else {
+            _saved_cache.insert(_cache.begin(), _cache.end());
+        }
+    }
+
     freelocale(uselocale(_saved_locale));
 }
 
@@ -263,8 +285,8 @@ const char* FrameName::name(ASGCT_CallFrame& frame, bool for_matching) {
         case BCI_ALLOC_OUTSIDE_TLAB:
         case BCI_LOCK:
         case BCI_PARK: {
-            const char* symbol = _class_names[(uintptr_t)frame.method_id];
-            javaClassName(symbol, strlen(symbol), _style | STYLE_DOTTED);
+            const std::string& symbol = _class_names[(uintptr_t)frame.method_id];
+            javaClassName(symbol.c_str(), symbol.size(), _style | STYLE_DOTTED);
             if (!for_matching && !(_style & STYLE_DOTTED)) {
                 _str += frame.bci == BCI_ALLOC_OUTSIDE_TLAB ? "_[k]" : "_[i]";
             }
@@ -22,7 +22,7 @@
 
 typedef std::map<jmethodID, std::string> JMethodCache;
 typedef std::map<int, std::string> ThreadMap;
-typedef std::map<unsigned int, const char*> ClassMap;
+typedef std::map<unsigned int, std::string> ClassMap;
 
 
 enum MatchType {
@@ -52,8 +52,12 @@ class Matcher {
 
 class FrameName {
   private:
-    static JMethodCache _cache;
+    // Method names are kept between dumps. Every dump takes the cache for itself,
+    // so that concurrent dumps do not share it, and puts it back when finished
+    static JMethodCache _saved_cache;
+    static Mutex _saved_cache_lock;
 
+    JMethodCache _cache;
     ClassMap _class_names;
     std::vector<Matcher> _include;
     std::vector<Matcher> _exclude;
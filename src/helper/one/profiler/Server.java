@@ -10,18 +10,43 @@ import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.Executor;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
-class Server extends Thread implements Executor, HttpHandler {
-    private static final String[] COMMANDS = "start,resume,stop,dump,check,status,meminfo,list,version".split(",");
+// The class is injected into the target VM as a single class file,
+// so it must not have nested or anonymous classes
+class Server extends Thread implements ThreadFactory, RejectedExecutionHandler, HttpHandler, WritableByteChannel {
+    private static final String[] COMMANDS = "start,resume,stop,dump,check,status,meminfo,metrics,list,version".split(",");
+    private static final String HTML_PREFIX = "<!DOCTYPE html>";
+    private static final String METRICS_CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private static final int MAX_THREADS = 4;
+    private static final int MAX_QUEUED_REQUESTS = 16;
+    private static final int KEEP_ALIVE_SECONDS = 5;
+    private static final int COPY_BUFFER_SIZE = 65536;
 
     private final HttpServer server;
     private final AtomicInteger threadNum = new AtomicInteger();
 
+    // Exchange being served by the current thread, and its response body once the headers are sent
+    private final ThreadLocal<HttpExchange> currentExchange = new ThreadLocal<>();
+    private final ThreadLocal<OutputStream> currentBody = new ThreadLocal<>();
+
+    // Set while a request that did not fit in the queue is being rejected
+    private final ThreadLocal<Boolean> overloaded = new ThreadLocal<>();
+
     private Server(String address) throws IOException {
         super("Async-profiler Server");
         setDaemon(true);
@@ -31,9 +56,13 @@ class Server extends Thread implements Executor, HttpHandler {
                 ? new InetSocketAddress(address.substring(0, p), Integer.parseInt(address.substring(p + 1)))
                 : new InetSocketAddress(Integer.parseInt(address));
 
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS), this, this);
+        executor.allowCoreThreadTimeOut(true);
+
         server = HttpServer.create(socketAddress, 0);
         server.createContext("/", this);
-        server.setExecutor(this);
+        server.setExecutor(executor);
     }
 
     public static void start(String address) throws IOException {
@@ -46,23 +75,40 @@ class Server extends Thread implements Executor, HttpHandler {
     }
 
     @Override
-    public void execute(Runnable command) {
-        Thread t = new Thread(command, "Async-profiler Request #" + threadNum.incrementAndGet());
+    public Thread newThread(Runnable r) {
+        // Non-daemon, so that a request in progress is not interrupted by VM exit
+        Thread t = new Thread(r, "Async-profiler Request #" + threadNum.incrementAndGet());
         t.setDaemon(false);
-        t.start();
+        return t;
+    }
+
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+        // Runs in the dispatcher thread: the request is parsed and answered with 503 without executing the command
+        overloaded.set(Boolean.TRUE);
+        try {
+            r.run();
+        } finally {
+            overloaded.remove();
+        }
     }
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
         try {
             String command = getCommand(exchange.getRequestURI());
-            if (command == null) {
+            if (overloaded.get() != null) {
+                sendResponse(exchange, 503, "Too many requests");
+            } else if (command == null) {
                 sendResponse(exchange, 404, "Unknown command");
             } else if (command.isEmpty()) {
                 sendResponse(exchange, 200, "Async-profiler server");
-            } else {
+            } else if (command.contains("file=")) {
+                // The output goes to a file; only the status is returned
                 String response = execute0(command);
                 sendResponse(exchange, 200, response);
+            } else {
+                streamResponse(exchange, command);
             }
         } catch (IllegalArgumentException e) {
             sendResponse(exchange, 400, e.getMessage());
@@ -90,13 +136,114 @@ class Server extends Thread implements Executor, HttpHandler {
     }
 
     private void sendResponse(HttpExchange exchange, int code, String body) throws IOException {
-        String contentType = body.startsWith("<!DOCTYPE html>") ? "text/html; charset=utf-8" : "text/plain";
+        String contentType = body.startsWith(HTML_PREFIX) ? "text/html; charset=utf-8" : "text/plain";
         exchange.getResponseHeaders().add("Content-Type", contentType);
 
         byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
-        exchange.sendResponseHeaders(code, bodyBytes.length);
+        exchange.sendResponseHeaders(code, bodyBytes.length == 0 ? -1 : bodyBytes.length);
         exchange.getResponseBody().write(bodyBytes);
     }
 
+    // Native output is passed to write() in chunks as it is produced.
+    // Headers are sent with the first chunk, so that a failed command still gets an error status.
+    private void streamResponse(HttpExchange exchange, String command) throws IOException {
+        currentExchange.set(exchange);
+        try {
+            execute1(command, this);
+
+            OutputStream body = currentBody.get();
+            if (body == null) {
+                sendResponse(exchange, 200, "");
+            } else {
+                body.close();
+            }
+        } catch (Exception e) {
+            if (currentBody.get() == null) {
+                throw e;
+            }
+            // Too late to change the status; the client sees an incomplete response
+        } finally {
+            currentExchange.remove();
+            currentBody.remove();
+        }
+    }
+
+    private OutputStream startResponse(HttpExchange exchange, ByteBuffer firstChunk) throws IOException {
+        String contentType = exchange.getRequestURI().getPath().startsWith("/metrics") ? METRICS_CONTENT_TYPE
+                : startsWith(firstChunk, HTML_PREFIX) ? "text/html; charset=utf-8" : "text/plain";
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+
+        boolean gzip = acceptsGzip(exchange);
+        if (gzip) {
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+
+        // Zero length means chunked transfer encoding
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream body = exchange.getResponseBody();
+        return gzip ? new GZIPOutputStream(body, COPY_BUFFER_SIZE) : body;
+    }
+
+    private static boolean acceptsGzip(HttpExchange exchange) {
+        List<String> values = exchange.getRequestHeaders().get("Accept-Encoding");
+        if (values != null) {
+            for (String value : values) {
+                for (String encoding : value.split(",")) {
+                    String[] params = encoding.split(";");
+                    if (params[0].trim().equals("gzip")) {
+                        return params.length < 2 || !params[1].trim().matches("q=0(\\.0*)?");
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(ByteBuffer buf, String prefix) {
+        if (buf.remaining() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buf.get(buf.position() + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        OutputStream body = currentBody.get();
+        if (body == null) {
+            body = startResponse(currentExchange.get(), src);
+            currentBody.set(body);
+        }
+
+        int bytes = src.remaining();
+        if (src.hasArray()) {
+            body.write(src.array(), src.arrayOffset() + src.position(), bytes);
+            src.position(src.limit());
+        } else {
+            byte[] buf = new byte[Math.min(bytes, COPY_BUFFER_SIZE)];
+            while (src.hasRemaining()) {
+                int length = Math.min(src.remaining(), buf.length);
+                src.get(buf, 0, length);
+                body.write(buf, 0, length);
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
     private native String execute0(String command) throws IllegalArgumentException, IllegalStateException, IOException;
+
+    private native void execute1(String command, WritableByteChannel out) throws IllegalArgumentException, IllegalStateException, IOException;
 }
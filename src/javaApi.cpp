@@ -4,6 +4,7 @@
  */
 
 #include <errno.h>
+#include <stdlib.h>
 #include <string.h>
 #include "asprof.h"
 #include "incbin.h"
@@ -24,6 +25,76 @@ static void throwNew(JNIEnv* env, const char* exception_class, const char* messa
 }
 
 
+// Passes output to WritableByteChannel in chunks through a direct ByteBuffer
+// that wraps the native buffer, so the output is never materialized as a whole
+class ChannelWriter : public Writer {
+  private:
+    JNIEnv* _env;
+    jobject _channel;
+    jmethodID _write;
+    jmethodID _clear;
+    jmethodID _limit;
+    jmethodID _has_remaining;
+    jobject _byte_buffer;
+    char* _buf;
+    size_t _size;
+
+    enum { BUF_SIZE = 256 * 1024 };
+
+  public:
+    ChannelWriter(JNIEnv* env, jobject channel) : _env(env), _channel(channel), _byte_buffer(NULL), _size(0) {
+        jclass channel_class = env->FindClass("java/nio/channels/WritableByteChannel");
+        jclass buffer_class = env->FindClass("java/nio/Buffer");
+        _write = env->GetMethodID(channel_class, "write", "(Ljava/nio/ByteBuffer;)I");
+        _clear = env->GetMethodID(buffer_class, "clear", "()Ljava/nio/Buffer;");
+        _limit = env->GetMethodID(buffer_class, "limit", "(I)Ljava/nio/Buffer;");
+        _has_remaining = env->GetMethodID(buffer_class, "hasRemaining", "()Z");
+
+        _buf = (char*)malloc(BUF_SIZE);
+        if (_buf != NULL && _write != NULL && _clear != NULL && _limit != NULL && _has_remaining != NULL) {
+            _byte_buffer = env->NewDirectByteBuffer(_buf, BUF_SIZE);
+        }
+        if (_byte_buffer == NULL) {
+            _err = ENOMEM;
+        }
+    }
+
+    ~ChannelWriter() {
+        free(_buf);
+    }
+
+    void flush() {
+        if (_err != 0 || _size == 0) {
+            return;
+        }
+
+        _env->CallObjectMethod(_byte_buffer, _clear);
+        _env->CallObjectMethod(_byte_buffer, _limit, (jint)_size);
+        while (!_env->ExceptionCheck() && _env->CallBooleanMethod(_byte_buffer, _has_remaining)) {
+            _env->CallIntMethod(_channel, _write, _byte_buffer);
+        }
+        if (_env->ExceptionCheck()) {
+            // Keep the pending exception and skip the rest of output
+            _err = EIO;
+        }
+        _size = 0;
+    }
+
+    virtual void write(const char* data, size_t len) {
+        while (_err == 0 && len > 0) {
+            size_t bytes = len < BUF_SIZE - _size ? len : BUF_SIZE - _size;
+            memcpy(_buf + _size, data, bytes);
+            _size += bytes;
+            data += bytes;
+            len -= bytes;
+            if (_size == BUF_SIZE) {
+                flush();
+            }
+        }
+    }
+};
+
+
 extern "C" DLLEXPORT void JNICALL
 Java_one_profiler_AsyncProfiler_start0(JNIEnv* env, jobject unused, jstring event, jlong interval, jboolean reset) {
     Arguments args;
@@ -95,6 +166,106 @@ Java_one_profiler_AsyncProfiler_execute0(JNIEnv* env, jobject unused, jstring co
     return NULL;
 }
 
+extern "C" DLLEXPORT void JNICALL
+Java_one_profiler_AsyncProfiler_execute1(JNIEnv* env, jobject unused, jstring command, jobject channel) {
+    Arguments args;
+    const char* command_str = env->GetStringUTFChars(command, NULL);
+    Error error = args.parse(command_str);
+    env->ReleaseStringUTFChars(command, command_str);
+
+    if (error) {
+        throwNew(env, "java/lang/IllegalArgumentException", error.message());
+        return;
+    } else if (args._output == OUTPUT_JFR) {
+        throwNew(env, "java/lang/IllegalArgumentException", "JFR output is written only to the recording file");
+        return;
+    } else if (args.hasOutputFile()) {
+        // file= of other actions, e.g. start, is kept for the subsequent stop
+        throwNew(env, "java/lang/IllegalArgumentException", "Output goes to the channel, file option is not allowed");
+        return;
+    }
+
+    Log::open(args);
+
+    ChannelWriter out(env, channel);
+    error = Profiler::instance()->runInternal(args, out);
+    out.flush();
+
+    if (env->ExceptionCheck()) {
+        return;
+    } else if (error) {
+        throwNew(env, "java/lang/IllegalStateException", error.message());
+    } else if (!out.good()) {
+        throwNew(env, "java/lang/OutOfMemoryError", "Failed to allocate output buffer");
+    }
+}
+
+static jintArray toIntArray(JNIEnv* env, const std::vector<jint>& v) {
+    jintArray array = env->NewIntArray(v.size());
+    if (array != NULL && !v.empty()) {
+        env->SetIntArrayRegion(array, 0, v.size(), &v[0]);
+    }
+    return array;
+}
+
+static jlongArray toLongArray(JNIEnv* env, const std::vector<jlong>& v) {
+    jlongArray array = env->NewLongArray(v.size());
+    if (array != NULL && !v.empty()) {
+        env->SetLongArrayRegion(array, 0, v.size(), &v[0]);
+    }
+    return array;
+}
+
+static jbyteArray toByteArray(JNIEnv* env, const std::vector<jbyte>& v) {
+    jbyteArray array = env->NewByteArray(v.size());
+    if (array != NULL && !v.empty()) {
+        env->SetByteArrayRegion(array, 0, v.size(), &v[0]);
+    }
+    return array;
+}
+
+static jobjectArray toStringArray(JNIEnv* env, const std::vector<std::string>& v) {
+    jobjectArray array = env->NewObjectArray(v.size(), env->FindClass("java/lang/String"), NULL);
+    for (size_t i = 0; array != NULL && i < v.size(); i++) {
+        jstring str = env->NewStringUTF(v[i].c_str());
+        if (str == NULL) {
+            return NULL;
+        }
+        env->SetObjectArrayElement(array, i, str);
+        env->DeleteLocalRef(str);
+    }
+    return array;
+}
+
+// Snapshot class is constructed on the Java side, since AsyncProfiler may be relocated;
+// the order of elements must match AsyncProfiler.snapshot()
+extern "C" DLLEXPORT jobjectArray JNICALL
+Java_one_profiler_AsyncProfiler_snapshot0(JNIEnv* env, jobject unused) {
+    SampleSnapshot snapshot;
+    Error error = Profiler::instance()->snapshot(snapshot);
+    if (error) {
+        throwNew(env, "java/lang/IllegalStateException", error.message());
+        return NULL;
+    }
+
+    std::vector<jint> first_new;
+    first_new.push_back(snapshot.first_new_trace);
+    first_new.push_back(snapshot.first_new_frame);
+
+    jobjectArray result = env->NewObjectArray(8, env->FindClass("java/lang/Object"), NULL);
+    if (result != NULL) {
+        env->SetObjectArrayElement(result, 0, toIntArray(env, snapshot.trace_ids));
+        env->SetObjectArrayElement(result, 1, toLongArray(env, snapshot.samples));
+        env->SetObjectArrayElement(result, 2, toLongArray(env, snapshot.counters));
+        env->SetObjectArrayElement(result, 3, toIntArray(env, snapshot.frame_offsets));
+        env->SetObjectArrayElement(result, 4, toIntArray(env, snapshot.frames));
+        env->SetObjectArrayElement(result, 5, toStringArray(env, snapshot.frame_names));
+        env->SetObjectArrayElement(result, 6, toByteArray(env, snapshot.frame_types));
+        env->SetObjectArrayElement(result, 7, toIntArray(env, first_new));
+    }
+    return env->ExceptionCheck() ? NULL : result;
+}
+
 extern "C" DLLEXPORT jlong JNICALL
 Java_one_profiler_AsyncProfiler_getSamples(JNIEnv* env, jobject unused) {
     return (jlong)Profiler::instance()->total_samples();
@@ -126,9 +297,15 @@ static const JNINativeMethod profiler_natives[] = {
     F(execute0,      "(Ljava/lang/String;)Ljava/lang/String;"),
     F(getSamples,    "()J"),
     F(filterThread0, "(Ljava/lang/Thread;Z)V"),
+    F(execute1,      "(Ljava/lang/String;Ljava/nio/channels/WritableByteChannel;)V"),
+    F(snapshot0,     "()[Ljava/lang/Object;"),
 };
 
-static const JNINativeMethod* execute0 = &profiler_natives[2];
+// Natives of the HTTP server helper
+static const JNINativeMethod server_natives[] = {
+    F(execute0,      "(Ljava/lang/String;)Ljava/lang/String;"),
+    F(execute1,      "(Ljava/lang/String;Ljava/nio/channels/WritableByteChannel;)V"),
+};
 
 #undef F
 
@@ -168,7 +345,7 @@ bool JavaAPI::startHttpServer(jvmtiEnv* jvmti, JNIEnv* jni, const char* address)
     jobject loader;
     if (handler != NULL && jvmti->GetClassLoader(handler, &loader) == 0) {
         jclass cls = jni->DefineClass(SERVER_NAME, loader, (const jbyte*)SERVER_CLASS, INCBIN_SIZEOF(SERVER_CLASS));
-        if (cls != NULL && jni->RegisterNatives(cls, execute0, 1) == 0) {
+        if (cls != NULL && jni->RegisterNatives(cls, server_natives, sizeof(server_natives) / sizeof(JNINativeMethod)) == 0) {
             jmethodID method = jni->GetStaticMethodID(cls, "start", "(Ljava/lang/String;)V");
             if (method != NULL) {
                 jni->CallStaticVoidMethod(cls, method, jni->NewStringUTF(address));
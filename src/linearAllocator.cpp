@@ -30,6 +30,16 @@ void LinearAllocator::clear() {
     _tail->offs = sizeof(Chunk);
 }
 
+// Exchanges chunks with another allocator of the same chunk size; not thread safe
+void LinearAllocator::swap(LinearAllocator& other) {
+    Chunk* tail = _tail;
+    Chunk* reserve = _reserve;
+    _tail = other._tail;
+    _reserve = other._reserve;
+    other._tail = tail;
+    other._reserve = reserve;
+}
+
 size_t LinearAllocator::usedMemory() {
     size_t bytes = _reserve->prev == _tail ? _chunk_size : 0;
     for (Chunk* chunk = _tail; chunk != NULL; chunk = chunk->prev) {
@@ -32,6 +32,7 @@ class LinearAllocator {
     ~LinearAllocator();
 
     void clear();
+    void swap(LinearAllocator& other);
     size_t usedMemory();
 
     void* alloc(size_t size);
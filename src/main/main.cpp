@@ -36,6 +36,7 @@ static const char USAGE_STRING[] =
     "  check             check if the specified profiling event is available\n"
     "  status            print profiling status\n"
     "  meminfo           print profiler memory stats\n"
+    "  metrics           print profiler self-metrics in OpenMetrics format\n"
     "  list              list profiling events supported by the target JVM\n"
     "  load              load agent library (jattach action)\n"
     "  jcmd              run JVM diagnostic command (jattach action)\n"
@@ -65,13 +66,20 @@ static const char USAGE_STRING[] =
     "  --reverse         generate stack-reversed FlameGraph / Call tree\n"
     "\n"
     "  --loop time       run profiler in a loop\n"
+    "  --history time    keep samples of the last <time> for dumping a time window\n"
+    "  --from ts         dump samples recorded after ts (millis since epoch or -time)\n"
+    "  --to ts           dump samples recorded before ts\n"
+    "  --delta           dump only changes since the previous delta dump\n"
+    "  --tracemem size   limit memory of call trace storage\n"
     "  --alloc bytes     allocation profiling interval in bytes\n"
     "  --live            build allocation profile from live objects only\n"
     "  --lock duration   lock profiling threshold in nanoseconds\n"
     "  --wall interval   wall clock profiling interval\n"
+    "  --walltimers n    number of wall clock timer threads with fixed per-thread rate\n"
     "  --total           accumulate the total value (time, bytes, etc.)\n"
     "  --all-user        only include user-mode events\n"
     "  --sched           group threads by scheduling policy\n"
+    "  --batch           aggregate samples in per-stripe buffers\n"
     "  --cstack mode     how to traverse C stack: fp|dwarf|lbr|vm|no\n"
     "  --signal num      use alternative signal for cpu or wall clock profiling\n"
     "  --clock source    clock source for JFR timestamps: tsc|monotonic\n"
@@ -398,7 +406,7 @@ int main(int argc, const char** argv) {
         String arg = args.next();
 
         if (arg == "start" || arg == "resume" || arg == "stop" || arg == "dump" || arg == "check" ||
-            arg == "status" || arg == "meminfo" || arg == "list" || arg == "collect") {
+            arg == "status" || arg == "meminfo" || arg == "metrics" || arg == "list" || arg == "collect") {
             action = arg;
 
         } else if (arg == "load" || arg == "jcmd" || arg == "threaddump" || arg == "dumpheap" || arg == "inspectheap") {
@@ -480,14 +488,15 @@ int main(int argc, const char** argv) {
                                                       .replace('>', "&gt;")
                                                       .replace(',', "&#44;");
 
-        } else if (arg == "--width" || arg == "--height" || arg == "--minwidth") {
+        } else if (arg == "--width" || arg == "--height" || arg == "--minwidth" || arg == "--from" || arg == "--to") {
             format << "," << (arg.str() + 2) << "=" << args.next();
 
-        } else if (arg == "--reverse" || arg == "--samples" || arg == "--total" || arg == "--sched" || arg == "--live") {
+        } else if (arg == "--reverse" || arg == "--samples" || arg == "--total" || arg == "--sched" || arg == "--live" ||
+                   arg == "--delta" || arg == "--batch") {
             format << "," << (arg.str() + 2);
 
-        } else if (arg == "--alloc" || arg == "--lock" || arg == "--wall" ||
-                   arg == "--chunksize" || arg == "--chunktime" ||
+        } else if (arg == "--alloc" || arg == "--lock" || arg == "--wall" || arg == "--walltimers" ||
+                   arg == "--chunksize" || arg == "--chunktime" || arg == "--history" || arg == "--tracemem" ||
                    arg == "--cstack" || arg == "--signal" || arg == "--clock" || arg == "--begin" || arg == "--end") {
             params << "," << (arg.str() + 2) << "=" << args.next();
 
@@ -218,6 +218,18 @@ ThreadState OS::threadState(int thread_id) {
     return state;
 }
 
+// CPU time of the given thread in nanoseconds, or of the current thread if thread_id is 0.
+// Async signal safe; returns 0 if the thread does not exist
+u64 OS::threadCpuTime(int thread_id) {
+    // Per-thread CPU clock as encoded by MAKE_THREAD_CPUCLOCK(tid, CPUCLOCK_SCHED) in the kernel
+    clockid_t clock = thread_id == 0 ? CLOCK_THREAD_CPUTIME_ID : (~(clockid_t)thread_id << 3) | 6;
+    struct timespec ts;
+    if (clock_gettime(clock, &ts) != 0) {
+        return 0;
+    }
+    return (u64)ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
 ThreadList* OS::listThreads() {
     return new LinuxThreadList();
 }
@@ -187,6 +187,16 @@ ThreadState OS::threadState(int thread_id) {
     return info.run_state == TH_STATE_RUNNING ? THREAD_RUNNING : THREAD_SLEEPING;
 }
 
+u64 OS::threadCpuTime(int thread_id) {
+    struct thread_basic_info info;
+    mach_msg_type_number_t size = sizeof(info);
+    if (thread_info((thread_act_t)(thread_id == 0 ? threadId() : thread_id), THREAD_BASIC_INFO, (thread_info_t)&info, &size) != 0) {
+        return 0;
+    }
+    return ((u64)info.user_time.seconds + info.system_time.seconds) * 1000000000 +
+           ((u64)info.user_time.microseconds + info.system_time.microseconds) * 1000;
+}
+
 ThreadList* OS::listThreads() {
     return new MacThreadList();
 }
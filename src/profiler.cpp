@@ -84,6 +84,18 @@ static bool sortByCounter(const NamedMethodSample& a, const NamedMethodSample& b
 }
 
 
+// Snapshot dictionaries start over only when they are large enough for it to pay off
+const u32 SNAPSHOT_RESET_MIN_TRACES = 65536;
+
+// Approximate memory taken by an entry of a snapshot dictionary, including the tree node
+static inline size_t snapshotTraceSize() {
+    return 4 * sizeof(void*) + sizeof(std::pair<CallTrace* const, u32>);
+}
+
+static inline size_t snapshotFrameSize(const std::string& name) {
+    return 4 * sizeof(void*) + sizeof(std::pair<const std::pair<std::string, int>, u32>) + name.capacity();
+}
+
 static inline bool isVTableStub(const char* name) {
     return name[0] && strcmp(name + 1, "table stub") == 0;
 }
@@ -633,6 +645,8 @@ u64 Profiler::recordSample(void* ucontext, u64 counter, EventType event_type, Ev
         return 0;
     }
 
+    u64 start_ticks = TSC::ticks();
+
     ASGCT_CallFrame* frames = _calltrace_buffer[lock_index]->_asgct_frames;
     jvmtiFrameInfo* jvmti_frames = _calltrace_buffer[lock_index]->_jvmti_frames;
 
@@ -687,9 +701,16 @@ u64 Profiler::recordSample(void* ucontext, u64 counter, EventType event_type, Ev
         num_frames += makeFrame(frames + num_frames, BCI_ERROR, OS::schedPolicy(0));
     }
 
-    u32 call_trace_id = _call_trace_storage.put(num_frames, frames, counter);
+    StagingBuffer* stage = _stage_samples ? _staging_buffer[lock_index] : NULL;
+    u32 call_trace_id = _call_trace_storage.put(num_frames, frames, counter, stage);
+    if (_history.enabled() && counter != 0) {
+        _history.add(call_trace_id, counter);
+    }
     _jfr.recordEvent(lock_index, tid, call_trace_id, event_type, event);
 
+    // The stripe is owned by this thread, no atomic update needed
+    _sample_ticks[lock_index].ticks += TSC::ticks() - start_ticks;
+
     _locks[lock_index].unlock();
     return (u64)tid << 32 | call_trace_id;
 }
@@ -704,6 +725,9 @@ void Profiler::recordExternalSample(u64 counter, int tid, EventType event_type,
         num_frames += makeFrame(frames + num_frames, BCI_ERROR, OS::schedPolicy(tid));
     }
 
+    // External samples come from ordinary threads, which can wait for compaction to complete.
+    // The shared lock keeps call_trace_id valid until it is recorded
+    _compaction_lock.lockShared();
     u32 call_trace_id = _call_trace_storage.put(num_frames, frames, counter);
 
     u32 lock_index = getLockIndex(tid);
@@ -713,15 +737,21 @@ void Profiler::recordExternalSample(u64 counter, int tid, EventType event_type,
     {
         // Too many concurrent signals already
         atomicInc(_failures[-ticks_skipped]);
+        _compaction_lock.unlockShared();
         return;
     }
 
+    if (_history.enabled() && counter != 0) {
+        _history.add(call_trace_id, counter);
+    }
     _jfr.recordEvent(lock_index, tid, call_trace_id, event_type, event);
 
     _locks[lock_index].unlock();
+    _compaction_lock.unlockShared();
 }
 
 void Profiler::recordExternalSample(u64 counter, int tid, EventType event_type, Event* event, u32 call_trace_id) {
+    _compaction_lock.lockShared();
     _call_trace_storage.add(call_trace_id, counter);
 
     u32 lock_index = getLockIndex(tid);
@@ -729,12 +759,47 @@ void Profiler::recordExternalSample(u64 counter, int tid, EventType event_type,
         !_locks[lock_index = (lock_index + 1) % CONCURRENCY_LEVEL].tryLock() &&
         !_locks[lock_index = (lock_index + 2) % CONCURRENCY_LEVEL].tryLock())
     {
+        _compaction_lock.unlockShared();
         return;
     }
 
+    if (_history.enabled() && counter != 0) {
+        _history.add(call_trace_id, counter);
+    }
     _jfr.recordEvent(lock_index, tid, call_trace_id, event_type, event);
 
     _locks[lock_index].unlock();
+    _compaction_lock.unlockShared();
+}
+
+// Records a sample of a thread whose stack is known to be the same as in the sample
+// that produced call_trace_id. Fails if the trace has been evicted in the meantime,
+// or if IDs have started over since the given generation of call trace storage
+bool Profiler::recordRepeatedSample(u64 counter, int tid, EventType event_type, Event* event, u32 call_trace_id, u32 generation) {
+    u32 lock_index = getLockIndex(tid);
+    if (!_locks[lock_index].tryLock() &&
+        !_locks[lock_index = (lock_index + 1) % CONCURRENCY_LEVEL].tryLock() &&
+        !_locks[lock_index = (lock_index + 2) % CONCURRENCY_LEVEL].tryLock())
+    {
+        atomicInc(_total_samples);
+        atomicInc(_failures[-ticks_skipped]);
+        return true;
+    }
+
+    if (_call_trace_storage.generation() != generation || _call_trace_storage.findTrace(call_trace_id) == NULL) {
+        _locks[lock_index].unlock();
+        return false;
+    }
+
+    atomicInc(_total_samples);
+    _call_trace_storage.add(call_trace_id, counter);
+    if (_history.enabled() && counter != 0) {
+        _history.add(call_trace_id, counter);
+    }
+    _jfr.recordEvent(lock_index, tid, call_trace_id, event_type, event);
+
+    _locks[lock_index].unlock();
+    return true;
 }
 
 void Profiler::recordEventOnly(EventType event_type, Event* event) {
@@ -1030,6 +1095,15 @@ Error Profiler::checkJvmCapabilities() {
     return Error::OK;
 }
 
+// Fixed-rate timers are implemented only by the wall clock engine in wall mode, i.e. with event=wall
+static Error checkWallTimers(Arguments& args, Engine* engine) {
+    if (args._wall_timers > 0 && args._wall < 0 &&
+        !(args._event != NULL && engine == &wall_clock && strcmp(args._event, EVENT_WALL) == 0)) {
+        return Error("walltimers is supported only with wall clock profiling");
+    }
+    return Error::OK;
+}
+
 Error Profiler::start(Arguments& args, bool reset) {
     MutexLocker ml(_state_lock);
     if (_state > IDLE) {
@@ -1051,6 +1125,9 @@ Error Profiler::start(Arguments& args, bool reset) {
         return Error("Only JFR output supports multiple events");
     } else if (!VM::loaded() && (_event_mask & (EM_ALLOC | EM_LOCK))) {
         return Error("Profiling event is not supported with non-Java processes");
+    } else if (args._trace_mem > 0 && args._live) {
+        // Live objects keep IDs of their allocation traces that may be evicted
+        return Error("tracemem is not compatible with live");
     }
 
     if (args._fdtransfer) {
@@ -1062,16 +1139,27 @@ Error Profiler::start(Arguments& args, bool reset) {
     // Save the arguments for shutdown or restart
     args.save();
 
+    lockAll();
+    _history.init(args._history);
+    _trace_mem_limit = args._trace_mem;
+    unlockAll();
+
     if (reset || _start_time == 0) {
         // Reset counters
         _total_samples = 0;
         memset(_failures, 0, sizeof(_failures));
+        _sample_time = 0;
+        memset(_sample_ticks, 0, sizeof(_sample_ticks));
+        _compaction_dropped = 0;
 
         // Reset dictionaries and bitmaps
         lockAll();
+        drainStagedSamples(true);
         _class_map.clear();
         _thread_filter.clear();
         _call_trace_storage.clear();
+        _history.clear();
+        resetSnapshot();
         // Make sure frame structure is consistent throughout the entire recording
         _add_event_frame = args._output != OUTPUT_JFR;
         _add_thread_frame = args._threads && args._output != OUTPUT_JFR;
@@ -1099,6 +1187,15 @@ Error Profiler::start(Arguments& args, bool reset) {
         }
     }
 
+    if (args._batch) {
+        for (int i = 0; i < CONCURRENCY_LEVEL; i++) {
+            if (_staging_buffer[i] == NULL && (_staging_buffer[i] = (StagingBuffer*)calloc(1, sizeof(StagingBuffer))) == NULL) {
+                return Error("Not enough memory to allocate staging buffers");
+            }
+        }
+    }
+    _stage_samples = args._batch;
+
     _features = args._features;
     if (VM::hotspot_version() < 8) {
         _features.java_anchor = 0;
@@ -1119,6 +1216,11 @@ Error Profiler::start(Arguments& args, bool reset) {
         return Error("Cannot start wall clock with the selected event");
     }
 
+    error = checkWallTimers(args, _engine);
+    if (error) {
+        return error;
+    }
+
     _cstack = args._cstack;
     if (_cstack == CSTACK_DWARF && !DWARF_SUPPORTED) {
         return Error("DWARF unwinding is not supported on this platform");
@@ -1178,7 +1280,13 @@ Error Profiler::start(Arguments& args, bool reset) {
     _start_time = time(NULL);
     _epoch++;
 
-    if (args._timeout != 0 || args._output == OUTPUT_JFR) {
+    if (_history.enabled()) {
+        lockAll();
+        _history.rotate(OS::micros() / 1000);
+        unlockAll();
+    }
+
+    if (args._timeout != 0 || args._output == OUTPUT_JFR || _history.enabled() || _trace_mem_limit > 0 || _stage_samples) {
         _stop_time = addTimeout(_start_time, args._timeout);
         startTimer();
     }
@@ -1230,6 +1338,8 @@ Error Profiler::stop(bool restart) {
 
     // Acquire all spinlocks to avoid race with remaining signals
     lockAll();
+    drainStagedSamples(true);
+    foldSampleTime();
     _jfr.stop();
     unlockAll();
 
@@ -1266,6 +1376,11 @@ Error Profiler::check(Arguments& args) {
             return Error("Cannot start wall clock with the selected event");
         }
 
+        error = checkWallTimers(args, _engine);
+        if (error) {
+            return error;
+        }
+
         if (args._cstack == CSTACK_DWARF && !DWARF_SUPPORTED) {
             return Error("DWARF unwinding is not supported on this platform");
         } else if (args._cstack == CSTACK_LBR && _engine != &perf_events) {
@@ -1287,62 +1402,294 @@ Error Profiler::flushJfr() {
     updateJavaThreadNames();
     updateNativeThreadNames();
 
+    // Choose traces to evict before stopping the sampling threads
+    CompactionPlan plan;
+    bool compact = planCompaction(plan);
+
     lockAll();
+    drainStagedSamples(true);
     _jfr.flush();
+    // The new chunk does not refer to any call traces yet
+    if (compact) {
+        compactCallTraces(plan);
+    }
     unlockAll();
 
     return Error::OK;
 }
 
-Error Profiler::dump(Writer& out, Arguments& args) {
-    MutexLocker ml(_state_lock);
-    if (_state != IDLE && _state != RUNNING) {
-        return Error("Profiler has not started");
+// Called by the timer thread once a second
+void Profiler::limitTraceMemory() {
+    {
+        MutexLocker ml(_state_lock);
+        if (_state != RUNNING || _call_trace_storage.usedMemory() <= _trace_mem_limit) {
+            return;
+        }
+
+        if (!_jfr.active()) {
+            CompactionPlan plan;
+            if (planCompaction(plan)) {
+                lockAll();
+                compactCallTraces(plan);
+                unlockAll();
+            }
+            return;
+        }
     }
 
-    if (_state == RUNNING) {
-        updateJavaThreadNames();
-        updateNativeThreadNames();
+    // Events of the current JFR chunk refer to call trace IDs that compaction is going to change,
+    // so finish the chunk early and compact the storage in between
+    flushJfr();
+}
+
+// Chooses call traces to evict when the storage exceeds tracemem limit; sampling goes on meanwhile.
+// Must be called under _state_lock, which is then held until compactCallTraces()
+bool Profiler::planCompaction(CompactionPlan& plan) {
+    if (_trace_mem_limit == 0 || _call_trace_storage.usedMemory() <= _trace_mem_limit) {
+        return false;
+    }
+
+    // Leave enough room for new traces so that compaction does not happen too often
+    _call_trace_storage.planCompaction(_trace_mem_limit / 2, plan);
+    return true;
+}
+
+// Evicts call traces chosen by planCompaction(). Must be called under _state_lock and lockAll()
+void Profiler::compactCallTraces(CompactionPlan& plan) {
+    // Staged samples point to the tables that are about to be replaced
+    drainStagedSamples(true);
+
+    // Signals that come while all locks are held are dropped
+    u64 skipped = _failures[-ticks_skipped];
+    u32 generation = _call_trace_storage.generation();
+
+    // ID and address maps are only needed to update history and snapshot references
+    std::map<u32, u32> id_map;
+    std::map<CallTrace*, CallTrace*> trace_map;
+    // Shared holders only try stripe locks, which are all held here, so they release the lock soon
+    _compaction_lock.lock();
+    bool compacted = _call_trace_storage.compact(plan, _history.enabled() ? &id_map : NULL,
+                                                 _snapshot_traces.empty() ? NULL : &trace_map);
+    _compaction_lock.unlock();
+    if (!compacted) {
+        Log::warn("Failed to compact call trace storage");
+        return;
+    }
+
+    _history.remap(id_map);
+
+    // Survivors keep their snapshot IDs
+    if (!_snapshot_traces.empty()) {
+        std::map<CallTrace*, u32> snapshot_traces;
+        for (std::map<CallTrace*, u32>::const_iterator it = _snapshot_traces.begin(); it != _snapshot_traces.end(); ++it) {
+            std::map<CallTrace*, CallTrace*>::const_iterator moved = trace_map.find(it->first);
+            if (moved != trace_map.end()) {
+                snapshot_traces[moved->second] = it->second;
+            }
+        }
+        _snapshot_memory -= (_snapshot_traces.size() - snapshot_traces.size()) * snapshotTraceSize();
+        _snapshot_traces.swap(snapshot_traces);
+    }
+
+    // JFR has just started a new chunk or is not active, so it holds no call trace IDs here.
+    // Wall clock checks the generation before reusing an ID of the previous sample
+    if (_call_trace_storage.generation() != generation) {
+        Log::debug("Call trace IDs are exhausted and start over");
+    }
+
+    skipped = _failures[-ticks_skipped] - skipped;
+    _compaction_dropped += skipped;
+    Log::debug("Call trace storage compacted to %lld bytes, %lld traces evicted in total",
+               (long long)_call_trace_storage.usedMemory(), (long long)_call_trace_storage.evicted());
+    if (skipped > 0) {
+        Log::warn("%lld samples dropped while compacting call trace storage, consider a larger tracemem",
+                  (long long)skipped);
+    }
+}
+
+// Samples are collected and their call traces are copied under _state_lock;
+// the profile is then rendered and written without holding the lock,
+// so that a slow consumer does not block the timer thread or other commands.
+Error Profiler::dump(Writer& out, Arguments& args) {
+    SampleCopy copy;
+    DumpState state;
+    FrameName* fn;
+    {
+        MutexLocker ml(_state_lock);
+        if (_state != IDLE && _state != RUNNING) {
+            return Error("Profiler has not started");
+        }
+
+        if (args.hasTimeRange()) {
+            if (!_history.enabled()) {
+                return Error("Sample history is disabled; start profiler with history option");
+            } else if (args._output == OUTPUT_JFR) {
+                return Error("Time range is not supported for JFR output");
+            }
+        }
+
+        if (args._delta) {
+            if (args.hasTimeRange()) {
+                return Error("Delta dump is not compatible with time range");
+            } else if (args._output == OUTPUT_JFR) {
+                return Error("Delta dump is not supported for JFR output");
+            }
+        }
+
+        if (_state == RUNNING) {
+            updateJavaThreadNames();
+            updateNativeThreadNames();
+        }
+
+        drainStagedSamples(false);
+
+        int style;
+        switch (args._output) {
+            case OUTPUT_COLLAPSED:
+                style = args._style | STYLE_NO_SEMICOLON;
+                break;
+            case OUTPUT_FLAMEGRAPH:
+            case OUTPUT_TREE:
+                style = args._style & ~STYLE_ANNOTATE;
+                break;
+            case OUTPUT_TEXT:
+                style = args._style | STYLE_DOTTED;
+                break;
+            case OUTPUT_JFR:
+                if (_state == RUNNING) {
+                    lockAll();
+                    drainStagedSamples(true);
+                    _jfr.flush();
+                    unlockAll();
+                }
+                return Error::OK;
+            default:
+                return Error("No output format selected");
+        }
+
+        collectSamples(args, copy.samples);
+        if (!copy.copyTraces()) {
+            return Error("Not enough memory to dump profile");
+        }
+        fn = new FrameName(args, style, _epoch, _thread_names_lock, _thread_names);
+
+        state.engine = activeEngine();
+        state.add_thread_frame = _add_thread_frame;
+        state.add_sched_frame = _add_sched_frame;
+        state.total_samples = _total_samples;
+        memcpy(state.failures, _failures, sizeof(_failures));
     }
 
     switch (args._output) {
         case OUTPUT_COLLAPSED:
-            dumpCollapsed(out, args);
+            dumpCollapsed(out, args, *fn, copy.samples);
             break;
         case OUTPUT_FLAMEGRAPH:
-            dumpFlameGraph(out, args, false);
+            dumpFlameGraph(out, args, false, state, *fn, copy.samples);
             break;
         case OUTPUT_TREE:
-            dumpFlameGraph(out, args, true);
+            dumpFlameGraph(out, args, true, state, *fn, copy.samples);
             break;
-        case OUTPUT_TEXT:
-            dumpText(out, args);
+        default:
+            dumpText(out, args, state, *fn, copy.samples);
             break;
-        case OUTPUT_JFR:
-            if (_state == RUNNING) {
-                lockAll();
-                _jfr.flush();
-                unlockAll();
+    }
+
+    delete fn;
+    return Error::OK;
+}
+
+// Frames of a trace that has been reported once are not reported again:
+// a consumer is expected to remember traces and frame names by their IDs.
+// Both dictionaries are reset together with CallTraceStorage.
+Error Profiler::snapshot(SampleSnapshot& snapshot) {
+    MutexLocker ml(_state_lock);
+    if (_state != IDLE && _state != RUNNING) {
+        return Error("Profiler has not started");
+    }
+
+    if (_state == RUNNING) {
+        updateJavaThreadNames();
+        updateNativeThreadNames();
+    }
+
+    drainStagedSamples(false);
+
+    Arguments args;
+    FrameName fn(args, 0, _epoch, _thread_names_lock, _thread_names);
+
+    // IDs of evicted traces are not reused. Once they make up the majority,
+    // the dictionaries start over, which the consumer sees as first_new_trace == 0
+    if (_snapshot_next_trace >= SNAPSHOT_RESET_MIN_TRACES && _snapshot_traces.size() * 2 < _snapshot_next_trace) {
+        resetSnapshot();
+    }
+
+    // Samples of the same trace may reside in several generations of the hash table
+    std::map<u64, CallTraceSample> samples;
+    _call_trace_storage.collectSamples(samples);
+
+    snapshot.first_new_trace = _snapshot_next_trace;
+    snapshot.first_new_frame = _snapshot_frames.size();
+    snapshot.frame_offsets.push_back(0);
+
+    for (std::map<u64, CallTraceSample>::const_iterator it = samples.begin(); it != samples.end(); ++it) {
+        CallTrace* trace = it->second.trace;
+        if (it->second.samples == 0) continue;
+
+        std::map<CallTrace*, u32>::iterator trace_it = _snapshot_traces.find(trace);
+        if (trace_it == _snapshot_traces.end()) {
+            trace_it = _snapshot_traces.insert(std::make_pair(trace, _snapshot_next_trace++)).first;
+            _snapshot_memory += snapshotTraceSize();
+
+            for (int j = 0; j < trace->num_frames; j++) {
+                FrameTypeId type = fn.type(trace->frames[j]);
+                std::pair<std::string, int> key(fn.name(trace->frames[j]), type);
+
+                std::map<std::pair<std::string, int>, u32>::iterator frame_it = _snapshot_frames.find(key);
+                if (frame_it == _snapshot_frames.end()) {
+                    frame_it = _snapshot_frames.insert(std::make_pair(key, (u32)_snapshot_frames.size())).first;
+                    _snapshot_memory += snapshotFrameSize(key.first);
+                    snapshot.frame_names.push_back(key.first);
+                    snapshot.frame_types.push_back(type);
+                }
+                snapshot.frames.push_back(frame_it->second);
             }
-            break;
-        default:
-            return Error("No output format selected");
+            snapshot.frame_offsets.push_back(snapshot.frames.size());
+        }
+
+        snapshot.trace_ids.push_back(trace_it->second);
+        snapshot.samples.push_back(it->second.samples);
+        snapshot.counters.push_back(it->second.counter);
     }
 
     return Error::OK;
 }
 
-void Profiler::printUsedMemory(Writer& out) {
-    size_t call_trace_storage = _call_trace_storage.usedMemory();
-    size_t flight_recording = _jfr.usedMemory();
-    size_t dictionaries = _class_map.usedMemory() + _symbol_map.usedMemory() + _thread_filter.usedMemory();
+void Profiler::resetSnapshot() {
+    _snapshot_traces.clear();
+    _snapshot_frames.clear();
+    _snapshot_next_trace = 0;
+    _snapshot_memory = 0;
+}
 
-    size_t code_cache = _runtime_stubs.usedMemory();
+MemoryUsage Profiler::usedMemory() {
+    MemoryUsage usage;
+    usage.call_trace_storage = _call_trace_storage.usedMemory() + _history.usedMemory();
+    usage.flight_recording = _jfr.usedMemory();
+    usage.dictionaries = _class_map.usedMemory() + _symbol_map.usedMemory() + _thread_filter.usedMemory();
+
+    usage.code_cache = _runtime_stubs.usedMemory();
     int native_lib_count = _native_libs.count();
     for (int i = 0; i < native_lib_count; i++) {
-        code_cache += _native_libs[i]->usedMemory();
+        usage.code_cache += _native_libs[i]->usedMemory();
     }
-    code_cache += native_lib_count * sizeof(CodeCache);
+    usage.code_cache += native_lib_count * sizeof(CodeCache);
+    usage.snapshots = _snapshot_memory;
+    return usage;
+}
+
+void Profiler::printUsedMemory(Writer& out) {
+    MemoryUsage usage = usedMemory();
 
     char buf[1024];
     const size_t KB = 1024;
@@ -1351,13 +1698,96 @@ void Profiler::printUsedMemory(Writer& out) {
              "  Flight recording: %7zu KB\n"
              "      Dictionaries: %7zu KB\n"
              "        Code cache: %7zu KB\n"
+             "         Snapshots: %7zu KB\n"
              "------------------------------\n"
              "             Total: %7zu KB\n",
-             call_trace_storage / KB, flight_recording / KB, dictionaries / KB, code_cache / KB,
-             (call_trace_storage + flight_recording + dictionaries + code_cache) / KB);
+             usage.call_trace_storage / KB, usage.flight_recording / KB, usage.dictionaries / KB,
+             usage.code_cache / KB, usage.snapshots / KB, usage.total() / KB);
     out << buf;
 }
 
+// Exposition format: https://github.com/OpenObservability/OpenMetrics/blob/main/specification/OpenMetrics.md
+void Profiler::printMetrics(Writer& out) {
+    MemoryUsage usage = usedMemory();
+    char buf[256];
+
+    out << "# TYPE asprof_running gauge\n"
+           "# HELP asprof_running Whether the profiler is active\n";
+    out << "asprof_running " << (_state == RUNNING ? 1 : 0) << "\n";
+
+    out << "# TYPE asprof_samples counter\n"
+           "# HELP asprof_samples Samples taken since the profiler start\n";
+    out.write(buf, snprintf(buf, sizeof(buf), "asprof_samples_total %llu\n", _total_samples));
+
+    // Only reasons that have occurred are listed, as in the text output
+    out << "# TYPE asprof_failed_samples counter\n"
+           "# HELP asprof_failed_samples Samples without a valid Java stack trace or dropped\n";
+    for (int i = 0; i < ASGCT_FAILURE_TYPES; i++) {
+        const char* reason = asgctError(-i);
+        if (reason != NULL && _failures[i] > 0) {
+            out.write(buf, snprintf(buf, sizeof(buf), "asprof_failed_samples_total{reason=\"%s\"} %llu\n",
+                                    reason, _failures[i]));
+        }
+    }
+
+    out << "# TYPE asprof_call_trace_storage_overflow counter\n"
+           "# HELP asprof_call_trace_storage_overflow Samples not recorded because call trace storage is full\n";
+    out.write(buf, snprintf(buf, sizeof(buf), "asprof_call_trace_storage_overflow_total %llu\n",
+                            _call_trace_storage.overflow()));
+
+    out << "# TYPE asprof_call_trace_storage_evicted counter\n"
+           "# HELP asprof_call_trace_storage_evicted Call traces evicted to keep storage within tracemem limit\n";
+    out.write(buf, snprintf(buf, sizeof(buf), "asprof_call_trace_storage_evicted_total %llu\n",
+                            _call_trace_storage.evicted()));
+
+    out << "# TYPE asprof_call_trace_storage_compaction_dropped_samples counter\n"
+           "# HELP asprof_call_trace_storage_compaction_dropped_samples Samples dropped while call trace storage was being compacted\n";
+    out.write(buf, snprintf(buf, sizeof(buf), "asprof_call_trace_storage_compaction_dropped_samples_total %llu\n",
+                            _compaction_dropped));
+
+    // Beware of locale-sensitive conversion of floating point numbers
+    out << "# TYPE asprof_sample_time_seconds counter\n"
+           "# UNIT asprof_sample_time_seconds seconds\n"
+           "# HELP asprof_sample_time_seconds Time spent in recordSample while holding a lock stripe, i.e. walking and storing stack traces\n";
+    u64 sample_time = sampleTime();
+    out.write(buf, snprintf(buf, sizeof(buf), "asprof_sample_time_seconds_total %llu.%09llu\n",
+                            sample_time / 1000000000, sample_time % 1000000000));
+
+    out << "# TYPE asprof_jfr_buffer_flushes counter\n"
+           "# HELP asprof_jfr_buffer_flushes Recording buffers written to the JFR file\n";
+    out.write(buf, snprintf(buf, sizeof(buf), "asprof_jfr_buffer_flushes_total %llu\n", _jfr.bufferFlushes()));
+
+    out << "# TYPE asprof_memory_bytes gauge\n"
+           "# UNIT asprof_memory_bytes bytes\n"
+           "# HELP asprof_memory_bytes Native memory used by the profiler\n";
+    out.write(buf, snprintf(buf, sizeof(buf), "asprof_memory_bytes{area=\"call_trace_storage\"} %zu\n"
+                                              "asprof_memory_bytes{area=\"flight_recording\"} %zu\n"
+                                              "asprof_memory_bytes{area=\"dictionaries\"} %zu\n"
+                                              "asprof_memory_bytes{area=\"code_cache\"} %zu\n"
+                                              "asprof_memory_bytes{area=\"snapshots\"} %zu\n",
+                            usage.call_trace_storage, usage.flight_recording, usage.dictionaries, usage.code_cache,
+                            usage.snapshots));
+
+    out << "# EOF\n";
+}
+
+// Sample time is accumulated per lock stripe in TSC ticks and summed up only when requested
+u64 Profiler::sampleTime() {
+    u64 ticks = 0;
+    for (int i = 0; i < CONCURRENCY_LEVEL; i++) {
+        ticks += _sample_ticks[i].ticks;
+    }
+    u64 frequency = TSC::frequency();
+    return _sample_time + ticks / frequency * NANOTIME_FREQ + ticks % frequency * NANOTIME_FREQ / frequency;
+}
+
+// The next recording may switch TSC on or off, so convert ticks of the current one to nanoseconds.
+// Must be called with all spinlocks held
+void Profiler::foldSampleTime() {
+    _sample_time = sampleTime();
+    memset(_sample_ticks, 0, sizeof(_sample_ticks));
+}
+
 void Profiler::lockAll() {
     for (int i = 0; i < CONCURRENCY_LEVEL; i++) _locks[i].lock();
 }
@@ -1366,6 +1796,18 @@ void Profiler::unlockAll() {
     for (int i = 0; i < CONCURRENCY_LEVEL; i++) _locks[i].unlock();
 }
 
+// Adds samples aggregated in staging buffers to the shared call trace storage.
+// Each buffer is drained under its lock, unless the caller already holds all locks
+void Profiler::drainStagedSamples(bool locked) {
+    for (int i = 0; i < CONCURRENCY_LEVEL; i++) {
+        if (_staging_buffer[i] != NULL) {
+            if (!locked) _locks[i].lock();
+            _call_trace_storage.drain(_staging_buffer[i]);
+            if (!locked) _locks[i].unlock();
+        }
+    }
+}
+
 void Profiler::switchThreadEvents(jvmtiEventMode mode) {
     if (_thread_events_state != mode && VM::loaded()) {
         jvmtiEnv* jvmti = VM::jvmti();
@@ -1375,23 +1817,46 @@ void Profiler::switchThreadEvents(jvmtiEventMode mode) {
     }
 }
 
+// Samples of the whole profiling session, of the requested time window from the history,
+// or increments since the previous delta dump
+void Profiler::collectSamples(Arguments& args, std::vector<CallTraceSample>& samples) {
+    std::map<u64, CallTraceSample> map;
+    if (args._delta) {
+        _call_trace_storage.collectDelta(map);
+    } else if (args.hasTimeRange()) {
+        // Signal handlers keep recording while the history is read
+        _history.collectSamples(_call_trace_storage, args._from, args._to != 0 ? args._to : (u64)-1, map);
+    } else {
+        std::vector<CallTraceSample*> values;
+        _call_trace_storage.collectSamples(values);
+        samples.reserve(values.size());
+        for (std::vector<CallTraceSample*>::const_iterator it = values.begin(); it != values.end(); ++it) {
+            CallTraceSample s = **it;
+            s.trace = (*it)->acquireTrace();
+            samples.push_back(s);
+        }
+        return;
+    }
+
+    samples.reserve(map.size());
+    for (std::map<u64, CallTraceSample>::const_iterator it = map.begin(); it != map.end(); ++it) {
+        samples.push_back(it->second);
+    }
+}
+
 /*
  * Dump stacks in FlameGraph input format:
  * 
  * <frame>;<frame>;...;<topmost frame> <count>
  */
-void Profiler::dumpCollapsed(Writer& out, Arguments& args) {
-    FrameName fn(args, args._style | STYLE_NO_SEMICOLON, _epoch, _thread_names_lock, _thread_names);
+void Profiler::dumpCollapsed(Writer& out, Arguments& args, FrameName& fn, std::vector<CallTraceSample>& samples) {
     char buf[32];
 
-    std::vector<CallTraceSample*> samples;
-    _call_trace_storage.collectSamples(samples);
-
-    for (std::vector<CallTraceSample*>::const_iterator it = samples.begin(); it != samples.end(); ++it) {
-        CallTrace* trace = (*it)->acquireTrace();
+    for (std::vector<CallTraceSample>::const_iterator it = samples.begin(); it != samples.end(); ++it) {
+        CallTrace* trace = it->trace;
         if (trace == NULL || excludeTrace(&fn, trace)) continue;
 
-        u64 counter = args._counter == COUNTER_SAMPLES ? (*it)->samples : (*it)->counter;
+        u64 counter = args._counter == COUNTER_SAMPLES ? it->samples : it->counter;
         if (counter == 0) continue;
 
         for (int j = trace->num_frames - 1; j >= 0; j--) {
@@ -1407,10 +1872,11 @@ void Profiler::dumpCollapsed(Writer& out, Arguments& args) {
     }
 }
 
-void Profiler::dumpFlameGraph(Writer& out, Arguments& args, bool tree) {
+void Profiler::dumpFlameGraph(Writer& out, Arguments& args, bool tree, const DumpState& state, FrameName& fn,
+                              std::vector<CallTraceSample>& samples) {
     char title[64];
     if (args._title == NULL) {
-        Engine* active_engine = activeEngine();
+        Engine* active_engine = state.engine;
         if (args._counter == COUNTER_SAMPLES) {
             strcpy(title, active_engine->title());
         } else {
@@ -1420,94 +1886,91 @@ void Profiler::dumpFlameGraph(Writer& out, Arguments& args, bool tree) {
 
     FlameGraph flamegraph(args._title == NULL ? title : args._title, args._counter, args._minwidth, args._reverse);
 
-    {
-        FrameName fn(args, args._style & ~STYLE_ANNOTATE, _epoch, _thread_names_lock, _thread_names);
-
-        std::vector<CallTraceSample*> samples;
-        _call_trace_storage.collectSamples(samples);
-
-        for (std::vector<CallTraceSample*>::const_iterator it = samples.begin(); it != samples.end(); ++it) {
-            CallTrace* trace = (*it)->acquireTrace();
-            if (trace == NULL || excludeTrace(&fn, trace)) continue;
+    for (std::vector<CallTraceSample>::const_iterator it = samples.begin(); it != samples.end(); ++it) {
+        CallTrace* trace = it->trace;
+        if (trace == NULL || excludeTrace(&fn, trace)) continue;
 
-            u64 counter = args._counter == COUNTER_SAMPLES ? (*it)->samples : (*it)->counter;
-            if (counter == 0) continue;
+        u64 counter = args._counter == COUNTER_SAMPLES ? it->samples : it->counter;
+        if (counter == 0) continue;
 
-            int num_frames = trace->num_frames;
+        int num_frames = trace->num_frames;
 
-            Trie* f = flamegraph.root();
-            if (args._reverse) {
-                // Thread frames always come first
-                if (_add_sched_frame) {
-                    const char* frame_name = fn.name(trace->frames[--num_frames]);
-                    f = flamegraph.addChild(f, frame_name, FRAME_NATIVE, counter);
-                }
-                if (_add_thread_frame) {
-                    const char* frame_name = fn.name(trace->frames[--num_frames]);
-                    f = flamegraph.addChild(f, frame_name, FRAME_NATIVE, counter);
-                }
+        Trie* f = flamegraph.root();
+        if (args._reverse) {
+            // Thread frames always come first
+            if (state.add_sched_frame) {
+                const char* frame_name = fn.name(trace->frames[--num_frames]);
+                f = flamegraph.addChild(f, frame_name, FRAME_NATIVE, counter);
+            }
+            if (state.add_thread_frame) {
+                const char* frame_name = fn.name(trace->frames[--num_frames]);
+                f = flamegraph.addChild(f, frame_name, FRAME_NATIVE, counter);
+            }
 
-                for (int j = 0; j < num_frames; j++) {
-                    const char* frame_name = fn.name(trace->frames[j]);
-                    FrameTypeId frame_type = fn.type(trace->frames[j]);
-                    f = flamegraph.addChild(f, frame_name, frame_type, counter);
-                }
-            } else {
-                for (int j = num_frames - 1; j >= 0; j--) {
-                    const char* frame_name = fn.name(trace->frames[j]);
-                    FrameTypeId frame_type = fn.type(trace->frames[j]);
-                    f = flamegraph.addChild(f, frame_name, frame_type, counter);
-                }
+            for (int j = 0; j < num_frames; j++) {
+                const char* frame_name = fn.name(trace->frames[j]);
+                FrameTypeId frame_type = fn.type(trace->frames[j]);
+                f = flamegraph.addChild(f, frame_name, frame_type, counter);
+            }
+        } else {
+            for (int j = num_frames - 1; j >= 0; j--) {
+                const char* frame_name = fn.name(trace->frames[j]);
+                FrameTypeId frame_type = fn.type(trace->frames[j]);
+                f = flamegraph.addChild(f, frame_name, frame_type, counter);
             }
-            f->_total += counter;
-            f->_self += counter;
         }
+        f->_total += counter;
+        f->_self += counter;
     }
 
     flamegraph.dump(out, tree);
 }
 
-void Profiler::dumpText(Writer& out, Arguments& args) {
-    FrameName fn(args, args._style | STYLE_DOTTED, _epoch, _thread_names_lock, _thread_names);
+void Profiler::dumpText(Writer& out, Arguments& args, const DumpState& state, FrameName& fn,
+                        std::vector<CallTraceSample>& collected) {
     char buf[1024] = {0};
 
     std::vector<CallTraceSample> samples;
     u64 total_counter = 0;
     {
-        std::map<u64, CallTraceSample> map;
-        _call_trace_storage.collectSamples(map);
+        // Samples of the same trace may come from several generations of the hash table
+        std::map<CallTrace*, CallTraceSample> map;
+        for (std::vector<CallTraceSample>::const_iterator it = collected.begin(); it != collected.end(); ++it) {
+            if (it->trace != NULL) {
+                map[it->trace] += *it;
+            }
+        }
         samples.reserve(map.size());
 
-        for (std::map<u64, CallTraceSample>::const_iterator it = map.begin(); it != map.end(); ++it) {
+        for (std::map<CallTrace*, CallTraceSample>::const_iterator it = map.begin(); it != map.end(); ++it) {
             CallTrace* trace = it->second.trace;
             u64 counter = it->second.counter;
-            if (trace == NULL || counter == 0) continue;
+            if (counter == 0) continue;
 
             total_counter += counter;
             if (trace->num_frames == 0 || excludeTrace(&fn, trace)) continue;
             samples.push_back(it->second);
         }
     }
-
     // Print summary
     snprintf(buf, sizeof(buf) - 1,
             "--- Execution profile ---\n"
             "Total samples       : %lld\n",
-            _total_samples);
+            state.total_samples);
     out << buf;
 
-    double spercent = 100.0 / _total_samples;
+    double spercent = 100.0 / state.total_samples;
     for (int i = 1; i < ASGCT_FAILURE_TYPES; i++) {
         const char* err_string = asgctError(-i);
-        if (err_string != NULL && _failures[i] > 0) {
-            snprintf(buf, sizeof(buf), "%-20s: %lld (%.2f%%)\n", err_string, _failures[i], _failures[i] * spercent);
+        if (err_string != NULL && state.failures[i] > 0) {
+            snprintf(buf, sizeof(buf), "%-20s: %lld (%.2f%%)\n", err_string, state.failures[i], state.failures[i] * spercent);
             out << buf;
         }
     }
     out << "\n";
 
     double cpercent = 100.0 / total_counter;
-    const char* units_str = activeEngine()->units();
+    const char* units_str = state.engine->units();
 
     // Print top call stacks
     if (args._dump_traces > 0) {
@@ -1630,7 +2093,8 @@ void Profiler::stopTimer() {
 void Profiler::timerLoop(void* timer_id) {
     u64 current_micros = OS::micros();
     u64 stop_micros = _stop_time * 1000000ULL;
-    u64 sleep_until = _jfr.active() ? current_micros + 1000000 : stop_micros;
+    u64 sleep_until = _jfr.active() || _history.enabled() || _trace_mem_limit > 0 || _stage_samples
+                      ? current_micros + 1000000 : stop_micros;
 
     while (true) {
         {
@@ -1647,10 +2111,23 @@ void Profiler::timerLoop(void* timer_id) {
             return;
         }
 
+        // Prepare history buckets for the upcoming periods; skipped while a dump reads the history
+        if (_history.needsRotation(current_micros / 1000)) {
+            lockAll();
+            _history.rotate(current_micros / 1000);
+            unlockAll();
+        }
+
+        if (_stage_samples) {
+            drainStagedSamples(false);
+        }
+
         bool need_switch_chunk = _jfr.timerTick(current_micros, _gc_id);
         if (need_switch_chunk) {
             // Flush under profiler state lock
             flushJfr();
+        } else if (_trace_mem_limit > 0) {
+            limitTraceMemory();
         }
 
         sleep_until = current_micros + 1000000;
@@ -1708,6 +2185,11 @@ Error Profiler::runInternal(Arguments& args, Writer& out) {
             printUsedMemory(out);
             break;
         }
+        case ACTION_METRICS: {
+            MutexLocker ml(_state_lock);
+            printMetrics(out);
+            break;
+        }
         case ACTION_LIST: {
             out << "Basic events:\n";
             out << "  " << EVENT_CPU << "\n";
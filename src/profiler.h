@@ -19,6 +19,7 @@
 #include "flightRecorder.h"
 #include "log.h"
 #include "mutex.h"
+#include "sampleHistory.h"
 #include "spinLock.h"
 #include "threadFilter.h"
 #include "trap.h"
@@ -31,12 +32,61 @@ const int RESERVED_FRAMES   = 4;
 const int CONCURRENCY_LEVEL = 16;
 
 
+// Time spent in recordSample under one lock stripe
+struct SampleTicks {
+    u64 ticks;
+    // To avoid false sharing
+    char _padding[56];
+};
+
+// Profiler state used for rendering a dump after _state_lock is released;
+// a concurrent start may change the engine and the options in the meantime
+struct DumpState {
+    Engine* engine;
+    bool add_thread_frame;
+    bool add_sched_frame;
+    u64 total_samples;
+    u64 failures[ASGCT_FAILURE_TYPES];
+};
+
+
 union CallTraceBuffer {
     ASGCT_CallFrame _asgct_frames[1];
     jvmtiFrameInfo _jvmti_frames[1];
 };
 
 
+// Contents of CallTraceStorage in a form suitable for passing to Java as primitive arrays.
+// Trace and frame IDs are dense and stay the same between snapshots,
+// so that only newly seen traces and frame names need to be transferred.
+struct SampleSnapshot {
+    std::vector<jint> trace_ids;
+    std::vector<jlong> samples;
+    std::vector<jlong> counters;
+    // Frames of traces [first_new_trace, first_new_trace + frame_offsets.size() - 1)
+    jint first_new_trace;
+    std::vector<jint> frame_offsets;
+    std::vector<jint> frames;
+    // Names and types of frames [first_new_frame, first_new_frame + frame_names.size())
+    jint first_new_frame;
+    std::vector<std::string> frame_names;
+    std::vector<jbyte> frame_types;
+};
+
+
+struct MemoryUsage {
+    size_t call_trace_storage;
+    size_t flight_recording;
+    size_t dictionaries;
+    size_t code_cache;
+    size_t snapshots;
+
+    size_t total() const {
+        return call_trace_storage + flight_recording + dictionaries + code_cache + snapshots;
+    }
+};
+
+
 class FrameName;
 class NMethod;
 class StackContext;
@@ -62,6 +112,12 @@ class Profiler {
     Dictionary _symbol_map;
     ThreadFilter _thread_filter;
     CallTraceStorage _call_trace_storage;
+    SampleHistory _history;
+    std::map<CallTrace*, u32> _snapshot_traces;
+    std::map<std::pair<std::string, int>, u32> _snapshot_frames;
+    u32 _snapshot_next_trace;
+    size_t _snapshot_memory;
+    size_t _trace_mem_limit;
     FlightRecorder _jfr;
     Engine* _engine;
     Engine* _alloc_engine;
@@ -76,9 +132,15 @@ class Profiler {
 
     u64 _total_samples;
     u64 _failures[ASGCT_FAILURE_TYPES];
+    u64 _sample_time;
+    SampleTicks _sample_ticks[CONCURRENCY_LEVEL];
+    u64 _compaction_dropped;
 
     SpinLock _locks[CONCURRENCY_LEVEL];
+    SpinLock _compaction_lock;
     CallTraceBuffer* _calltrace_buffer[CONCURRENCY_LEVEL];
+    StagingBuffer* _staging_buffer[CONCURRENCY_LEVEL];
+    bool _stage_samples;
     int _max_stack_depth;
     StackWalkFeatures _features;
     CStack _cstack;
@@ -133,6 +195,11 @@ class Profiler {
     void startTimer();
     void stopTimer();
     void timerLoop(void* timer_id);
+    void limitTraceMemory();
+    void drainStagedSamples(bool locked);
+    bool planCompaction(CompactionPlan& plan);
+    void compactCallTraces(CompactionPlan& plan);
+    void resetSnapshot();
 
     static void jvmtiTimerEntry(jvmtiEnv* jvmti, JNIEnv* jni, void* arg) {
         instance()->timerLoop(arg);
@@ -145,10 +212,15 @@ class Profiler {
 
     void lockAll();
     void unlockAll();
+    u64 sampleTime();
+    void foldSampleTime();
 
-    void dumpCollapsed(Writer& out, Arguments& args);
-    void dumpFlameGraph(Writer& out, Arguments& args, bool tree);
-    void dumpText(Writer& out, Arguments& args);
+    void collectSamples(Arguments& args, std::vector<CallTraceSample>& samples);
+    void dumpCollapsed(Writer& out, Arguments& args, FrameName& fn, std::vector<CallTraceSample>& samples);
+    void dumpFlameGraph(Writer& out, Arguments& args, bool tree, const DumpState& state, FrameName& fn,
+                        std::vector<CallTraceSample>& samples);
+    void dumpText(Writer& out, Arguments& args, const DumpState& state, FrameName& fn,
+                  std::vector<CallTraceSample>& samples);
 
     static Profiler* const _instance;
 
@@ -159,12 +231,17 @@ class Profiler {
         _end_trap(3),
         _thread_filter(),
         _call_trace_storage(),
+        _history(),
+        _snapshot_next_trace(0),
+        _snapshot_memory(0),
+        _trace_mem_limit(0),
         _jfr(),
         _start_time(0),
         _epoch(0),
         _gc_id(0),
         _timer_id(NULL),
         _max_stack_depth(0),
+        _stage_samples(false),
         _thread_events_state(JVMTI_DISABLE),
         _stubs_lock(),
         _runtime_stubs("[stubs]"),
@@ -175,6 +252,7 @@ class Profiler {
 
         for (int i = 0; i < CONCURRENCY_LEVEL; i++) {
             _calltrace_buffer[i] = NULL;
+            _staging_buffer[i] = NULL;
         }
     }
 
@@ -183,6 +261,7 @@ class Profiler {
     }
 
     u64 total_samples() { return _total_samples; }
+    u32 traceGeneration() { return _call_trace_storage.generation(); }
     long uptime()       { return time(NULL) - _start_time; }
 
     Dictionary* classMap() { return &_class_map; }
@@ -198,12 +277,16 @@ class Profiler {
     Error stop(bool restart = false);
     Error flushJfr();
     Error dump(Writer& out, Arguments& args);
+    Error snapshot(SampleSnapshot& snapshot);
+    MemoryUsage usedMemory();
     void printUsedMemory(Writer& out);
+    void printMetrics(Writer& out);
     void switchThreadEvents(jvmtiEventMode mode);
     int convertNativeTrace(int native_frames, const void** callchain, ASGCT_CallFrame* frames);
     u64 recordSample(void* ucontext, u64 counter, EventType event_type, Event* event);
     void recordExternalSample(u64 counter, int tid, EventType event_type, Event* event, int num_frames, ASGCT_CallFrame* frames);
     void recordExternalSample(u64 counter, int tid, EventType event_type, Event* event, u32 call_trace_id);
+    bool recordRepeatedSample(u64 counter, int tid, EventType event_type, Event* event, u32 call_trace_id, u32 generation);
     void recordEventOnly(EventType event_type, Event* event);
     void writeLog(LogLevel level, const char* message);
     void writeLog(LogLevel level, const char* message, size_t len);
@@ -0,0 +1,336 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include "sampleHistory.h"
+#include "os.h"
+
+
+static const u32 TABLE_INITIAL_CAPACITY = 1024;
+static const u32 TARGET_BUCKETS = 60;
+// Buckets for the next periods are prepared in advance
+static const u32 BUCKETS_AHEAD = 2;
+
+
+struct HistorySample {
+    u64 samples;
+    u64 counter;
+};
+
+class HistoryTable {
+  private:
+    HistoryTable* _prev;
+    u32 _capacity;
+    volatile u32 _size;
+
+    static size_t getSize(u32 capacity) {
+        size_t size = sizeof(HistoryTable) + (sizeof(u32) + sizeof(HistorySample)) * capacity;
+        return (size + OS::page_mask) & ~OS::page_mask;
+    }
+
+  public:
+    static HistoryTable* allocate(HistoryTable* prev, u32 capacity) {
+        HistoryTable* table = (HistoryTable*)OS::safeAlloc(getSize(capacity));
+        if (table != NULL) {
+            table->_prev = prev;
+            table->_capacity = capacity;
+            table->_size = 0;
+        }
+        return table;
+    }
+
+    HistoryTable* destroy() {
+        HistoryTable* prev = _prev;
+        OS::safeFree(this, getSize(_capacity));
+        return prev;
+    }
+
+    size_t usedMemory() {
+        return getSize(_capacity);
+    }
+
+    HistoryTable* prev() {
+        return _prev;
+    }
+
+    u32 capacity() {
+        return _capacity;
+    }
+
+    u32 incSize() {
+        return __sync_add_and_fetch(&_size, 1);
+    }
+
+    u32* keys() {
+        return (u32*)(this + 1);
+    }
+
+    HistorySample* values() {
+        return (HistorySample*)(keys() + _capacity);
+    }
+
+    // Keeps the largest table to avoid growing it again in the next period
+    void clear() {
+        while (_prev != NULL) {
+            _prev = _prev->destroy();
+        }
+        memset(keys(), 0, (sizeof(u32) + sizeof(HistorySample)) * _capacity);
+        _size = 0;
+    }
+};
+
+
+SampleHistory::~SampleHistory() {
+    init(0);
+}
+
+void SampleHistory::init(long history_seconds) {
+    u64 bucket_millis = 0;
+    u32 bucket_count = 0;
+    if (history_seconds > 0) {
+        bucket_millis = (history_seconds + TARGET_BUCKETS - 1) / TARGET_BUCKETS * 1000;
+        bucket_count = (history_seconds * 1000 + bucket_millis - 1) / bucket_millis + 1 + BUCKETS_AHEAD;
+    }
+
+    if (bucket_millis == _bucket_millis && bucket_count == _bucket_count) {
+        // Keep collected history when resuming with the same settings
+        return;
+    }
+
+    if (_buckets != NULL) {
+        for (u32 i = 0; i < _bucket_count; i++) {
+            HistoryTable* table = _buckets[i].table;
+            while (table != NULL) {
+                table = table->destroy();
+            }
+        }
+        free(_buckets);
+        _buckets = NULL;
+    }
+
+    _bucket_millis = bucket_millis;
+    _bucket_count = bucket_count;
+    _lost = 0;
+    if (bucket_count > 0) {
+        _buckets = (HistoryBucket*)calloc(bucket_count, sizeof(HistoryBucket));
+    }
+}
+
+void SampleHistory::clear() {
+    if (_buckets != NULL) {
+        for (u32 i = 0; i < _bucket_count; i++) {
+            resetBucket(&_buckets[i], 0);
+        }
+    }
+    _lost = 0;
+}
+
+size_t SampleHistory::usedMemory() {
+    size_t bytes = 0;
+    if (_buckets != NULL) {
+        bytes += _bucket_count * sizeof(HistoryBucket);
+        for (u32 i = 0; i < _bucket_count; i++) {
+            for (HistoryTable* table = _buckets[i].table; table != NULL; table = table->prev()) {
+                bytes += table->usedMemory();
+            }
+        }
+    }
+    return bytes;
+}
+
+void SampleHistory::resetBucket(HistoryBucket* bucket, u64 period) {
+    storeRelease(bucket->period, 0);
+
+    HistoryTable* table = bucket->table;
+    if (table == NULL) {
+        if (period == 0 || (table = HistoryTable::allocate(NULL, TABLE_INITIAL_CAPACITY)) == NULL) {
+            return;
+        }
+    } else {
+        table->clear();
+    }
+
+    bucket->table = table;
+    storeRelease(bucket->period, period);
+}
+
+bool SampleHistory::needsRotation(u64 current_millis) {
+    if (_buckets == NULL) {
+        return false;
+    }
+
+    u64 period = current_millis / _bucket_millis;
+    for (u32 i = 0; i <= BUCKETS_AHEAD; i++) {
+        if (_buckets[(period + i) % _bucket_count].period != period + i) {
+            return true;
+        }
+    }
+    return false;
+}
+
+// Must be called when no samples are recorded concurrently, i.e. under Profiler::lockAll().
+// Returns false without waiting if buckets are being read; the caller retries later,
+// which is fine since buckets are prepared BUCKETS_AHEAD periods in advance
+bool SampleHistory::rotate(u64 current_millis) {
+    if (_buckets == NULL) {
+        return true;
+    }
+
+    if (!_rotation_lock.tryLock()) {
+        return false;
+    }
+
+    u64 period = current_millis / _bucket_millis;
+    for (u32 i = 0; i <= BUCKETS_AHEAD; i++) {
+        HistoryBucket* bucket = &_buckets[(period + i) % _bucket_count];
+        if (bucket->period != period + i) {
+            resetBucket(bucket, period + i);
+        }
+    }
+
+    _rotation_lock.unlock();
+    return true;
+}
+
+void SampleHistory::add(u32 call_trace_id, u64 counter) {
+    u64 period = OS::micros() / 1000 / _bucket_millis;
+    HistoryBucket* bucket = &_buckets[period % _bucket_count];
+    if (loadAcquire(bucket->period) != period) {
+        // The timer has not prepared the bucket in time
+        atomicInc(_lost);
+        return;
+    }
+
+    HistoryTable* table = __atomic_load_n(&bucket->table, __ATOMIC_ACQUIRE);
+    u32* keys = table->keys();
+    u32 capacity = table->capacity();
+    u32 slot = call_trace_id & (capacity - 1);
+    u32 step = 0;
+
+    while (keys[slot] != call_trace_id) {
+        if (keys[slot] == 0) {
+            if (!__sync_bool_compare_and_swap(&keys[slot], 0, call_trace_id)) {
+                continue;
+            }
+
+            // New records go to a larger table once the load factor exceeds 0.75;
+            // the previous tables are still visited when collecting samples
+            if (table->incSize() == capacity * 3 / 4) {
+                HistoryTable* new_table = HistoryTable::allocate(table, capacity * 2);
+                if (new_table != NULL) {
+                    __sync_bool_compare_and_swap(&bucket->table, table, new_table);
+                }
+            }
+            break;
+        }
+
+        if (++step >= capacity) {
+            atomicInc(_lost);
+            return;
+        }
+        slot = (slot + step) & (capacity - 1);
+    }
+
+    HistorySample& s = table->values()[slot];
+    atomicInc(s.samples);
+    atomicInc(s.counter, counter);
+}
+
+// Replaces call trace IDs after CallTraceStorage::compact(); samples of IDs not in the map are dropped.
+// Must be called when no samples are recorded concurrently, i.e. under Profiler::lockAll()
+void SampleHistory::remap(const std::map<u32, u32>& id_map) {
+    if (_buckets == NULL) {
+        return;
+    }
+
+    std::map<u32, HistorySample> samples;
+    for (u32 i = 0; i < _bucket_count; i++) {
+        HistoryBucket* bucket = &_buckets[i];
+        if (bucket->table == NULL) {
+            continue;
+        }
+
+        // Several old IDs may turn into one, e.g. when traces are evicted
+        samples.clear();
+        for (HistoryTable* table = bucket->table; table != NULL; table = table->prev()) {
+            u32* keys = table->keys();
+            HistorySample* values = table->values();
+            u32 capacity = table->capacity();
+
+            for (u32 slot = 0; slot < capacity; slot++) {
+                std::map<u32, u32>::const_iterator it;
+                if (keys[slot] != 0 && (it = id_map.find(keys[slot])) != id_map.end()) {
+                    HistorySample& s = samples[it->second];
+                    s.samples += values[slot].samples;
+                    s.counter += values[slot].counter;
+                }
+            }
+        }
+
+        HistoryTable* table = bucket->table;
+        table->clear();
+
+        for (std::map<u32, HistorySample>::const_iterator it = samples.begin(); it != samples.end(); ++it) {
+            u32* keys = table->keys();
+            u32 capacity = table->capacity();
+            u32 slot = it->first & (capacity - 1);
+            for (u32 step = 1; keys[slot] != 0; step++) {
+                slot = (slot + step) & (capacity - 1);
+            }
+            keys[slot] = it->first;
+            table->values()[slot] = it->second;
+
+            if (table->incSize() == capacity * 3 / 4) {
+                HistoryTable* new_table = HistoryTable::allocate(table, capacity * 2);
+                if (new_table == NULL) {
+                    atomicInc(_lost, samples.size());
+                    break;
+                }
+                bucket->table = table = new_table;
+            }
+        }
+    }
+}
+
+// Aggregates samples of all buckets that overlap [from_millis, to_millis].
+// The map is keyed by CallTrace address, since the same trace may have different IDs
+// in different generations of CallTraceStorage tables.
+// Samples are recorded concurrently; only rotation is held off while buckets are read.
+void SampleHistory::collectSamples(CallTraceStorage& storage, u64 from_millis, u64 to_millis,
+                                   std::map<u64, CallTraceSample>& map) {
+    if (_buckets == NULL) {
+        return;
+    }
+
+    _rotation_lock.lock();
+
+    for (u32 i = 0; i < _bucket_count; i++) {
+        u64 period = loadAcquire(_buckets[i].period);
+        if (period == 0 || (period + 1) * _bucket_millis <= from_millis || period * _bucket_millis > to_millis) {
+            continue;
+        }
+
+        for (HistoryTable* table = _buckets[i].table; table != NULL; table = table->prev()) {
+            u32* keys = table->keys();
+            HistorySample* values = table->values();
+            u32 capacity = table->capacity();
+
+            for (u32 slot = 0; slot < capacity; slot++) {
+                if (keys[slot] == 0 || values[slot].samples == 0) continue;
+
+                CallTrace* trace = storage.findTrace(keys[slot]);
+                if (trace != NULL) {
+                    CallTraceSample& s = map[(u64)(uintptr_t)trace];
+                    s.trace = trace;
+                    s.samples += values[slot].samples;
+                    s.counter += values[slot].counter;
+                }
+            }
+        }
+    }
+
+    _rotation_lock.unlock();
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+#ifndef _SAMPLEHISTORY_H
+#define _SAMPLEHISTORY_H
+
+#include <map>
+#include "arch.h"
+#include "callTraceStorage.h"
+#include "spinLock.h"
+
+
+class HistoryTable;
+
+struct HistoryBucket {
+    u64 period;
+    HistoryTable* table;
+};
+
+// Time-bucketed ring of call trace counters for continuous profiling.
+// Every bucket aggregates samples of one period of time; the oldest bucket
+// is recycled by the timer thread ahead of time, so that recording a sample
+// never needs to reset a bucket. This makes it possible to dump an arbitrary
+// recent time window without stopping the profiler or resetting CallTraceStorage.
+// A reader and the timer thread exclude each other with _rotation_lock, so that
+// reading a time window does not block recording samples. Other changes of the
+// buckets (init, clear, remap) are made under Profiler::_state_lock, which a reader holds.
+class SampleHistory {
+  private:
+    u32 _bucket_count;
+    u64 _bucket_millis;
+    HistoryBucket* _buckets;
+    u64 _lost;
+    SpinLock _rotation_lock;
+
+    void resetBucket(HistoryBucket* bucket, u64 period);
+
+  public:
+    SampleHistory() : _bucket_count(0), _bucket_millis(0), _buckets(NULL), _lost(0) {
+    }
+
+    ~SampleHistory();
+
+    bool enabled() {
+        return _buckets != NULL;
+    }
+
+    u64 lost() {
+        return _lost;
+    }
+
+    void init(long history_seconds);
+    void clear();
+    size_t usedMemory();
+
+    bool needsRotation(u64 current_millis);
+    bool rotate(u64 current_millis);
+
+    void add(u32 call_trace_id, u64 counter);
+    void remap(const std::map<u32, u32>& id_map);
+    void collectSamples(CallTraceStorage& storage, u64 from_millis, u64 to_millis, std::map<u64, CallTraceSample>& map);
+};
+
+#endif // _SAMPLEHISTORY_H
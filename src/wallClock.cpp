@@ -22,10 +22,23 @@ const int THREADS_PER_TICK = 8;
 // Smaller intervals are practically unusable due to large overhead.
 const long MIN_INTERVAL = 100000;
 
+// Size of the direct-mapped table of idle threads indexed by thread ID
+const u32 IDLE_THREADS_SIZE = 65536;
+
+// CPU time a sleeping thread may consume after its stack has been walked in the signal handler:
+// return from the handler and restart of the interrupted syscall
+const u64 IDLE_CPU_SLACK = 10000;
+
+// A thread may run within the slack and fall asleep elsewhere, so its saved stack trace
+// is refreshed by a real signal after this many intervals at the latest
+const u64 IDLE_MAX_REPEATS = 16;
+
 
 long WallClock::_interval;
 int WallClock::_signal;
 bool WallClock::_sample_idle_threads;
+int WallClock::_timer_count;
+IdleThread* WallClock::_idle_threads = NULL;
 
 ThreadState WallClock::getThreadState(void* ucontext) {
     StackFrame frame(ucontext);
@@ -51,7 +64,78 @@ ThreadState WallClock::getThreadState(void* ucontext) {
 void WallClock::signalHandler(int signo, siginfo_t* siginfo, void* ucontext) {
     ExecutionEvent event(TSC::ticks());
     event._thread_state = _sample_idle_threads ? getThreadState(ucontext) : THREAD_UNKNOWN;
-    Profiler::instance()->recordSample(ucontext, _interval, EXECUTION_SAMPLE, &event);
+    // Taken before the sample, so that a call trace ID issued in the next generation is never trusted
+    u32 generation = Profiler::instance()->traceGeneration();
+    u64 trace = Profiler::instance()->recordSample(ucontext, _interval, EXECUTION_SAMPLE, &event);
+    if (_timer_count > 0 && trace != 0) {
+        saveIdleThread(trace, event._thread_state, generation);
+    }
+}
+
+// Remembers the call trace of a sleeping thread together with its CPU time,
+// so that the next samples can reuse the trace until the thread runs again
+void WallClock::saveIdleThread(u64 trace, ThreadState state, u32 generation) {
+    int tid = (int)(trace >> 32);
+    IdleThread* t = &_idle_threads[tid & (IDLE_THREADS_SIZE - 1)];
+    if (state != THREAD_SLEEPING && t->tid != tid) {
+        return;
+    }
+
+    // Another thread with the same hash may be updating the entry; skip it then
+    u32 version = t->version;
+    if ((version & 1) != 0 || !__sync_bool_compare_and_swap(&t->version, version, version + 1)) {
+        return;
+    }
+
+    if (state == THREAD_SLEEPING) {
+        t->tid = tid;
+        t->call_trace_id = (u32)trace;
+        t->generation = generation;
+        t->observed = false;
+        t->cpu_time = OS::threadCpuTime(0);
+        t->sample_time = OS::nanotime();
+    } else {
+        t->tid = 0;
+    }
+    __atomic_store_n(&t->version, version + 2, __ATOMIC_RELEASE);
+}
+
+// Records a sample of a sleeping thread without interrupting it, if the thread
+// has not run since its previous sample, i.e. its stack trace has not changed
+bool WallClock::recordIdleSample(int thread_id) {
+    IdleThread* t = &_idle_threads[thread_id & (IDLE_THREADS_SIZE - 1)];
+    u32 version = __atomic_load_n(&t->version, __ATOMIC_ACQUIRE);
+    if ((version & 1) != 0 || t->tid != thread_id) {
+        return false;
+    }
+
+    u32 call_trace_id = t->call_trace_id;
+    u32 generation = t->generation;
+    bool observed = t->observed;
+    u64 cpu_time = t->cpu_time;
+    u64 sample_time = t->sample_time;
+    __atomic_thread_fence(__ATOMIC_ACQUIRE);
+    if (t->version != version || OS::nanotime() - sample_time >= _interval * IDLE_MAX_REPEATS) {
+        return false;
+    }
+
+    // The first time after the signal, allow for the tail of the handler.
+    // Later on, the thread must not have consumed any CPU time at all.
+    u64 current_cpu_time = OS::threadCpuTime(thread_id);
+    if (observed ? current_cpu_time != cpu_time
+                 : current_cpu_time < cpu_time || current_cpu_time - cpu_time > IDLE_CPU_SLACK) {
+        return false;
+    }
+
+    if (!observed && __sync_bool_compare_and_swap(&t->version, version, version + 1)) {
+        t->observed = true;
+        t->cpu_time = current_cpu_time;
+        __atomic_store_n(&t->version, version + 2, __ATOMIC_RELEASE);
+    }
+
+    ExecutionEvent event(TSC::ticks());
+    event._thread_state = THREAD_SLEEPING;
+    return Profiler::instance()->recordRepeatedSample(_interval, thread_id, EXECUTION_SAMPLE, &event, call_trace_id, generation);
 }
 
 long WallClock::adjustInterval(long interval, int thread_count) {
@@ -72,12 +156,29 @@ Error WallClock::start(Arguments& args) {
 
     _signal = args._signal == 0 ? OS::getProfilingSignal(1)
                                 : ((args._signal >> 8) > 0 ? args._signal >> 8 : args._signal);
+    _timer_count = _sample_idle_threads ? args._wall_timers : 0;
+    if (_timer_count > 0) {
+        // The table is never released, since a late signal handler may still write to it
+        if (_idle_threads == NULL && (_idle_threads = (IdleThread*)OS::safeAlloc(IDLE_THREADS_SIZE * sizeof(IdleThread))) == NULL) {
+            return Error("Not enough memory for wall clock timers");
+        }
+        // Call trace IDs of the previous session may be no longer valid
+        memset(_idle_threads, 0, IDLE_THREADS_SIZE * sizeof(IdleThread));
+    }
+
     OS::installSignalHandler(_signal, signalHandler);
 
     _running = true;
+    _started_timers = 0;
+    _registered_timers = 0;
+    memset((void*)_timer_tids, 0, sizeof(_timer_tids));
 
-    if (pthread_create(&_thread, NULL, threadEntry, this) != 0) {
-        return Error("Unable to create timer thread");
+    int thread_count = _timer_count > 0 ? _timer_count : 1;
+    for (_thread_count = 0; _thread_count < thread_count; _thread_count++) {
+        if (pthread_create(&_threads[_thread_count], NULL, threadEntry, this) != 0) {
+            stop();
+            return Error("Unable to create timer thread");
+        }
     }
 
     return Error::OK;
@@ -85,11 +186,21 @@ Error WallClock::start(Arguments& args) {
 
 void WallClock::stop() {
     _running = false;
-    pthread_kill(_thread, WAKEUP_SIGNAL);
-    pthread_join(_thread, NULL);
+    for (int i = 0; i < _thread_count; i++) {
+        pthread_kill(_threads[i], WAKEUP_SIGNAL);
+    }
+    for (int i = 0; i < _thread_count; i++) {
+        pthread_join(_threads[i], NULL);
+    }
+    _thread_count = 0;
 }
 
 void WallClock::timerLoop() {
+    if (_timer_count > 0) {
+        fixedRateLoop(__sync_fetch_and_add(&_started_timers, 1));
+        return;
+    }
+
     int self = OS::threadId();
     ThreadFilter* thread_filter = Profiler::instance()->threadFilter();
     bool thread_filter_enabled = thread_filter->enabled();
@@ -143,3 +254,65 @@ void WallClock::timerLoop() {
 
     delete thread_list;
 }
+
+// Every timer thread samples its own subset of threads once per interval, no matter
+// how many threads there are. Sleeping threads that have not run since their previous sample
+// are not interrupted by a signal; their previous call trace is recorded instead.
+void WallClock::fixedRateLoop(int index) {
+    // Start sampling only when thread IDs of all timers are known, so that they never signal each other
+    _timer_tids[index] = OS::threadId();
+    __sync_fetch_and_add(&_registered_timers, 1);
+    while (_running && _registered_timers < _timer_count) {
+        OS::sleep(MIN_INTERVAL);
+    }
+
+    ThreadFilter* thread_filter = Profiler::instance()->threadFilter();
+    bool thread_filter_enabled = thread_filter->enabled();
+
+    ThreadList* thread_list = OS::listThreads();
+    u64 next_cycle_time = OS::nanotime();
+
+    while (_running) {
+        if (!_enabled) {
+            OS::sleep(_interval);
+            next_cycle_time = OS::nanotime();
+            continue;
+        }
+
+        int signals = 0;
+        for (int thread_id; (thread_id = thread_list->next()) != -1; ) {
+            if (thread_id % _timer_count != index || isTimerThread(thread_id) ||
+                (thread_filter_enabled && !thread_filter->accept(thread_id))) {
+                continue;
+            }
+
+            if (!recordIdleSample(thread_id) && OS::sendSignalToThread(thread_id, _signal) &&
+                ++signals % THREADS_PER_TICK == 0) {
+                // The same throttling as in the default mode
+                OS::sleep(MIN_INTERVAL);
+            }
+        }
+        thread_list->rewind();
+
+        next_cycle_time += _interval;
+        u64 current_time = OS::nanotime();
+        if (next_cycle_time > current_time) {
+            OS::sleep(next_cycle_time - current_time);
+        } else {
+            // Not enough timer threads to keep up; skip the missed cycles instead of catching up
+            next_cycle_time = current_time;
+        }
+    }
+
+    delete thread_list;
+}
+
+// A signal would interrupt the sleep of another timer thread and make it run an extra cycle
+bool WallClock::isTimerThread(int thread_id) {
+    for (int i = 0; i < _timer_count; i++) {
+        if (_timer_tids[i] == thread_id) {
+            return true;
+        }
+    }
+    return false;
+}
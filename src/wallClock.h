@@ -13,16 +13,36 @@
 #include "os.h"
 
 
+// The last sample of a sleeping thread. Written by the thread itself in the signal handler
+// and then by the timer thread that owns it; odd version means the entry is being updated
+struct IdleThread {
+    volatile u32 version;
+    int tid;
+    u32 call_trace_id;
+    u32 generation;
+    bool observed;
+    u64 cpu_time;
+    u64 sample_time;
+};
+
 class WallClock : public Engine {
   private:
     static long _interval;
     static int _signal;
     static bool _sample_idle_threads;
+    static int _timer_count;
+    static IdleThread* _idle_threads;
 
     volatile bool _running;
-    pthread_t _thread;
+    volatile int _started_timers;
+    volatile int _registered_timers;
+    int _thread_count;
+    pthread_t _threads[MAX_WALL_TIMERS];
+    volatile int _timer_tids[MAX_WALL_TIMERS];
 
     void timerLoop();
+    void fixedRateLoop(int index);
+    bool isTimerThread(int thread_id);
 
     static void* threadEntry(void* wall_clock) {
         ((WallClock*)wall_clock)->timerLoop();
@@ -35,6 +55,9 @@ class WallClock : public Engine {
 
     static long adjustInterval(long interval, int thread_count);
 
+    static void saveIdleThread(u64 trace, ThreadState state, u32 generation);
+    static bool recordIdleSample(int thread_id);
+
   public:
     const char* title() {
         return _sample_idle_threads ? "Wall clock profile" : "CPU profile";
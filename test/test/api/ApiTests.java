@@ -26,4 +26,35 @@ public class ApiTests {
         assert out.contains("BusyLoops.method2");
         assert !out.contains("BusyLoops.method3");
     }
+
+    @Test(mainClass = DumpToChannel.class, jvmArgs = "-Djava.library.path=build/lib", output = true)
+    public void dumpToChannel(TestProcess p) throws Exception {
+        Output out = p.waitForExit(TestProcess.STDOUT);
+        assert out.contains("stream=true");
+        assert out.contains("channel=true");
+        assert out.contains("callback=true");
+        assert out.contains("buffer=true");
+        assert out.contains("overflow=true");
+        assert out.contains("file=rejected");
+    }
+
+    @Test(mainClass = DumpDelta.class, jvmArgs = "-Djava.library.path=build/lib", output = true)
+    public void delta(TestProcess p) throws Exception {
+        Output out = p.waitForExit(TestProcess.STDOUT);
+        assert out.contains("first=1000,0");
+        assert out.contains("second=500,300");
+        assert out.contains("third=0,0");
+        assert out.contains("total=1500,300");
+    }
+
+    @Test(mainClass = SnapshotTwice.class, jvmArgs = "-Djava.library.path=build/lib", output = true)
+    public void snapshotTwice(TestProcess p) throws Exception {
+        Output out = p.waitForExit(TestProcess.STDOUT);
+        assert out.contains("first=0,0");
+        assert out.contains("phase1=100");
+        assert out.contains("continued=true");
+        assert out.contains("resent=false");
+        assert out.contains("known=true");
+        assert out.contains("phase1=150 phase2=30");
+    }
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package test.api;
+
+import one.profiler.AsyncProfiler;
+
+public class DumpDelta {
+    static long sink;
+
+    // Every call is recorded by the instrumented event
+    static void tick() {
+        sink++;
+    }
+
+    static void phase1(int count) {
+        for (int i = 0; i < count; i++) {
+            tick();
+        }
+    }
+
+    static void phase2(int count) {
+        for (int i = 0; i < count; i++) {
+            tick();
+        }
+    }
+
+    static long samples(String collapsed, String frame) {
+        long total = 0;
+        for (String line : collapsed.split("\n")) {
+            if (line.contains(frame)) {
+                total += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+            }
+        }
+        return total;
+    }
+
+    static void print(String name, String collapsed) {
+        System.out.println(name + "=" + samples(collapsed, "DumpDelta.phase1;") + "," + samples(collapsed, "DumpDelta.phase2;"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        AsyncProfiler profiler = AsyncProfiler.getInstance();
+        profiler.execute("start,event=test.api.DumpDelta.tick,interval=1");
+
+        phase1(1000);
+        print("first", profiler.execute("collapsed,delta"));
+
+        phase1(500);
+        phase2(300);
+        print("second", profiler.execute("collapsed,delta"));
+
+        print("third", profiler.execute("collapsed,delta"));
+        print("total", profiler.execute("collapsed"));
+
+        profiler.stop();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package test.api;
+
+import one.profiler.AsyncProfiler;
+import one.profiler.Events;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class DumpToChannel {
+
+    // Stacks of different depth make the profile larger than one output chunk
+    static long recurse(int depth) {
+        if (depth == 0) {
+            long result = 0;
+            for (int i = 0; i < 100_000; i++) {
+                result += Integer.toString(i).hashCode();
+            }
+            return result;
+        }
+        return recurse(depth - 1) + 1;
+    }
+
+    // Calls the profiler from another thread while the dump is being written
+    static class CallbackChannel implements WritableByteChannel {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean callbackCompleted;
+
+        @Override
+        public int write(ByteBuffer src) {
+            if (out.size() == 0) {
+                Thread t = new Thread(() -> {
+                    try {
+                        AsyncProfiler.getInstance().execute("status");
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                t.start();
+                try {
+                    t.join(10_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                callbackCompleted = !t.isAlive();
+            }
+
+            int bytes = src.remaining();
+            byte[] b = new byte[bytes];
+            src.get(b);
+            out.write(b, 0, bytes);
+            return bytes;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        AsyncProfiler profiler = AsyncProfiler.getInstance();
+        profiler.start(Events.CPU, 1_000_000);
+
+        long end = System.nanoTime() + 3_000_000_000L;
+        while (System.nanoTime() < end) {
+            recurse(ThreadLocalRandom.current().nextInt(300));
+        }
+
+        profiler.stop();
+
+        byte[] expected = profiler.execute("collapsed").getBytes(StandardCharsets.UTF_8);
+        System.out.println("size=" + expected.length);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        profiler.dump("collapsed", stream);
+        System.out.println("stream=" + Arrays.equals(expected, stream.toByteArray()));
+
+        CallbackChannel channel = new CallbackChannel();
+        profiler.dump("collapsed", channel);
+        System.out.println("channel=" + Arrays.equals(expected, channel.out.toByteArray()));
+        System.out.println("callback=" + channel.callbackCompleted);
+
+        ByteBuffer buf = ByteBuffer.allocate(expected.length + 100);
+        int bytes = profiler.dump("collapsed", buf);
+        System.out.println("buffer=" + (bytes == expected.length && Arrays.equals(expected, Arrays.copyOf(buf.array(), bytes))));
+
+        try {
+            profiler.dump("collapsed", ByteBuffer.allocate(expected.length / 2));
+            System.out.println("overflow=false");
+        } catch (BufferOverflowException e) {
+            System.out.println("overflow=true");
+        }
+
+        try {
+            profiler.dump("collapsed,file=profile.txt", new ByteArrayOutputStream());
+            System.out.println("file=accepted");
+        } catch (IllegalArgumentException e) {
+            System.out.println("file=rejected");
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package test.api;
+
+import one.profiler.AsyncProfiler;
+import one.profiler.Snapshot;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class SnapshotTwice {
+    static long sink;
+
+    // Every call is recorded by the instrumented event
+    static void tick() {
+        sink++;
+    }
+
+    static void phase1(int count) {
+        for (int i = 0; i < count; i++) {
+            tick();
+        }
+    }
+
+    static void phase2(int count) {
+        for (int i = 0; i < count; i++) {
+            tick();
+        }
+    }
+
+    // Dictionaries of a consumer that receives only new traces and frames
+    static final Map<Integer, String> frameNames = new HashMap<>();
+    static final Map<Integer, String> traces = new HashMap<>();
+
+    // Returns true if a frame that has been reported before is sent again
+    static boolean update(Snapshot s) {
+        boolean resent = false;
+        for (int i = 0; i < s.newFrameCount(); i++) {
+            String frame = s.frameNames[i] + "_[" + s.frameTypes[i] + "]";
+            resent |= frameNames.containsValue(frame);
+            frameNames.put(s.firstNewFrame + i, frame);
+        }
+        for (int i = 0; i < s.newTraceCount(); i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = s.frameOffsets[i]; j < s.frameOffsets[i + 1]; j++) {
+                sb.append(frameNames.get(s.frames[j])).append(';');
+            }
+            traces.put(s.firstNewTrace + i, sb.toString());
+        }
+        return resent;
+    }
+
+    static long samples(Snapshot s, String frame) {
+        long total = 0;
+        for (int i = 0; i < s.traceIds.length; i++) {
+            if (traces.get(s.traceIds[i]).contains(frame)) {
+                total += s.samples[i];
+            }
+        }
+        return total;
+    }
+
+    public static void main(String[] args) throws Exception {
+        AsyncProfiler profiler = AsyncProfiler.getInstance();
+        profiler.execute("start,event=test.api.SnapshotTwice.tick,interval=1");
+
+        phase1(100);
+        Snapshot s1 = profiler.snapshot();
+        update(s1);
+        System.out.println("first=" + s1.firstNewTrace + "," + s1.firstNewFrame);
+        System.out.println("phase1=" + samples(s1, "phase1"));
+
+        phase1(50);
+        phase2(30);
+        Snapshot s2 = profiler.snapshot();
+        boolean resent = update(s2);
+        System.out.println("continued=" + (s2.firstNewTrace == s1.firstNewTrace + s1.newTraceCount() &&
+                                           s2.firstNewFrame == s1.firstNewFrame + s1.newFrameCount()));
+        System.out.println("resent=" + resent);
+        System.out.println("known=" + (s2.traceIds.length - s2.newTraceCount() >= s1.traceIds.length));
+        System.out.println("phase1=" + samples(s2, "phase1") + " phase2=" + samples(s2, "phase2"));
+
+        profiler.stop();
+    }
+}
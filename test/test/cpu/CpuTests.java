@@ -18,4 +18,12 @@ public class CpuTests {
         Output out = p.readFile("%f");
         assert out.contains("java/util/stream/SpinedBuffer\\.accept");
     }
+
+    @Test(mainClass = TimeWindow.class, jvmArgs = "-Djava.library.path=build/lib", output = true)
+    public void timeWindow(TestProcess p) throws Exception {
+        Output out = p.waitForExit(TestProcess.STDOUT);
+        assert out.contains("full: early=true late=true");
+        assert out.contains("from: early=false late=true");
+        assert out.contains("to: early=true late=false");
+    }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package test.cpu;
+
+import one.profiler.AsyncProfiler;
+
+/**
+ * Loads CPU in two phases separated by a pause, then dumps time windows
+ * of the sample history that cover only one of the phases.
+ */
+public class TimeWindow {
+    static long sink;
+
+    static void spin(long millis) {
+        long end = System.nanoTime() + millis * 1_000_000;
+        while (System.nanoTime() < end) {
+            sink += Long.toString(sink).hashCode();
+        }
+    }
+
+    static void earlyPhase() {
+        spin(1000);
+    }
+
+    static void latePhase() {
+        spin(1000);
+    }
+
+    static void print(String window, String collapsed) {
+        System.out.println(window + ": early=" + collapsed.contains("TimeWindow.earlyPhase") +
+                " late=" + collapsed.contains("TimeWindow.latePhase"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        AsyncProfiler profiler = AsyncProfiler.getInstance();
+        profiler.execute("start,event=cpu,interval=1ms,history=60s");
+
+        earlyPhase();
+        Thread.sleep(1500);
+        // Samples are kept in one-second buckets, so leave enough gap on both sides
+        long middle = System.currentTimeMillis();
+        Thread.sleep(1500);
+        latePhase();
+
+        print("full", profiler.execute("collapsed"));
+        print("from", profiler.execute("collapsed,from=-2s"));
+        print("to", profiler.execute("collapsed,to=" + middle));
+
+        profiler.stop();
+    }
+}
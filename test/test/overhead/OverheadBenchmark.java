@@ -0,0 +1,237 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package test.overhead;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of profiling by running each {@link Workload}
+ * without the agent and with the agent in different configurations.
+ * <p>
+ * Usage: make overhead [OVERHEAD_ARGS="options"], where options are
+ * <pre>
+ *   --workloads cpu,alloc,lock,threads   workloads to run
+ *   --profile LABEL=ARGS                 agent configuration, e.g. cpu-1ms=event=cpu,interval=1ms;
+ *                                        may be repeated, replaces the default set
+ *   --warmup SECONDS                     warmup before measurement, default 5
+ *   --duration SECONDS                   measurement time, default 10
+ *   --runs N                             repeat every measurement N times and take the median, default 3
+ *   --output FILE                        write results to the file instead of stdout
+ * </pre>
+ * Results are printed as JSON lines, one per workload and configuration.
+ * throughputLoss and p99Increase are relative to the baseline run of the same workload.
+ */
+public class OverheadBenchmark {
+    private static final String BASELINE = "baseline";
+
+    private static final String[][] DEFAULT_PROFILES = {
+            {"cpu-10ms", "event=cpu,interval=10ms"},
+            {"cpu-1ms", "event=cpu,interval=1ms"},
+            {"cpu-depth64", "event=cpu,interval=10ms,jstackdepth=64"},
+            {"cpu-cstack-no", "event=cpu,interval=10ms,cstack=no"},
+            {"cpu-cstack-dwarf", "event=cpu,interval=10ms,cstack=dwarf"},
+            {"itimer-10ms", "event=itimer,interval=10ms"},
+            {"ctimer-10ms", "event=ctimer,interval=10ms"},
+            {"wall-10ms", "event=wall,interval=10ms"},
+            {"alloc", "event=alloc"},
+            {"lock", "event=lock"},
+    };
+
+    private final List<String> workloads = new ArrayList<>(Arrays.asList("cpu", "alloc", "lock", "threads"));
+    private final Map<String, String> profiles = new LinkedHashMap<>();
+    private double warmup = 5;
+    private double duration = 10;
+    private int runs = 3;
+    private PrintStream out = System.out;
+
+    private OverheadBenchmark(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            String value = i + 1 < args.length ? args[++i] : "";
+            switch (arg) {
+                case "--workloads":
+                    workloads.clear();
+                    workloads.addAll(Arrays.asList(value.split(",")));
+                    break;
+                case "--profile":
+                    int p = value.indexOf('=');
+                    profiles.put(value.substring(0, p), value.substring(p + 1));
+                    break;
+                case "--warmup":
+                    warmup = Double.parseDouble(value);
+                    break;
+                case "--duration":
+                    duration = Double.parseDouble(value);
+                    break;
+                case "--runs":
+                    runs = Integer.parseInt(value);
+                    break;
+                case "--output":
+                    out = new PrintStream(new FileOutputStream(value), true, "UTF-8");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        if (profiles.isEmpty()) {
+            for (String[] profile : DEFAULT_PROFILES) {
+                profiles.put(profile[0], profile[1]);
+            }
+        }
+    }
+
+    private static int defaultThreads(String workload) {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        switch (workload) {
+            case "lock":
+                return Math.max(4, cpus * 2);
+            case "threads":
+                return 1000;
+            default:
+                return cpus;
+        }
+    }
+
+    private void run() throws Exception {
+        for (String workload : workloads) {
+            Map<String, String> baseline = measure(workload, null);
+            report(workload, BASELINE, "", baseline, baseline);
+
+            for (Map.Entry<String, String> profile : profiles.entrySet()) {
+                Map<String, String> result = measure(workload, profile.getValue());
+                report(workload, profile.getKey(), profile.getValue(), result, baseline);
+            }
+        }
+        out.flush();
+    }
+
+    // Runs the workload several times and returns the run with the median throughput
+    private Map<String, String> measure(String workload, String agentArgs) throws Exception {
+        List<Map<String, String>> results = new ArrayList<>();
+        for (int i = 0; i < runs; i++) {
+            results.add(runWorkload(workload, agentArgs));
+        }
+        results.sort((a, b) -> Double.compare(number(a, "opsPerSec"), number(b, "opsPerSec")));
+        return results.get(results.size() / 2);
+    }
+
+    private Map<String, String> runWorkload(String workload, String agentArgs) throws Exception {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(System.getProperty("java.home") + "/bin/java");
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add("-Xms1g");
+        cmd.add("-Xmx1g");
+        // The agent enables DebugNonSafepoints; do the same for the baseline to compare equal code
+        cmd.add("-XX:+UnlockDiagnosticVMOptions");
+        cmd.add("-XX:+DebugNonSafepoints");
+        if (agentArgs != null) {
+            String ext = System.getProperty("os.name").toLowerCase().contains("mac") ? "dylib" : "so";
+            cmd.add("-agentpath:build/lib/libasyncProfiler." + ext + "=start," + agentArgs + ",file=" + nullDevice());
+        }
+        cmd.add(Workload.class.getName());
+        cmd.add(workload);
+        cmd.add(Integer.toString(defaultThreads(workload)));
+        cmd.add(Double.toString(warmup));
+        cmd.add(Double.toString(duration));
+        if (agentArgs != null) {
+            cmd.add("profiled");
+        }
+
+        System.err.println("Running " + workload + (agentArgs != null ? " with " + agentArgs : " without agent"));
+        Process p = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+        Map<String, String> result = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                if (line.startsWith("RESULT ")) {
+                    for (String pair : line.substring(7).split(" ")) {
+                        int eq = pair.indexOf('=');
+                        result.put(pair.substring(0, eq), pair.substring(eq + 1));
+                    }
+                }
+            }
+        }
+
+        if (!p.waitFor((long) (warmup + duration) + 60, TimeUnit.SECONDS)) {
+            p.destroyForcibly();
+            result.put("error", "timeout");
+        } else if (result.isEmpty()) {
+            result.put("error", "exit code " + p.exitValue());
+        }
+        return result;
+    }
+
+    private static String nullDevice() {
+        return new File("/dev/null").exists() ? "/dev/null" : "NUL";
+    }
+
+    private void report(String workload, String label, String agentArgs,
+                        Map<String, String> result, Map<String, String> baseline) {
+        StringBuilder sb = new StringBuilder("{");
+        appendString(sb, "workload", workload);
+        appendString(sb, "profile", label);
+        appendString(sb, "agentArgs", agentArgs);
+
+        String error = result.containsKey("error") ? result.get("error") : baseline.get("error");
+        if (error != null) {
+            appendString(sb, "error", error);
+        } else {
+            double opsPerSec = number(result, "opsPerSec");
+            double p99 = number(result, "p99us");
+            double seconds = number(result, "seconds");
+            appendNumber(sb, "threads", number(result, "threads"));
+            appendNumber(sb, "opsPerSec", opsPerSec);
+            appendNumber(sb, "p50us", number(result, "p50us"));
+            appendNumber(sb, "p99us", p99);
+            appendNumber(sb, "samplesPerSec", seconds > 0 ? number(result, "samples") / seconds : 0);
+            appendNumber(sb, "throughputLoss", 1 - opsPerSec / number(baseline, "opsPerSec"));
+            appendNumber(sb, "p99Increase", p99 / number(baseline, "p99us") - 1);
+        }
+
+        sb.setCharAt(sb.length() - 1, '}');
+        out.println(sb);
+    }
+
+    private static double number(Map<String, String> result, String key) {
+        String value = result.get(key);
+        return value == null ? Double.NaN : Double.parseDouble(value);
+    }
+
+    private static void appendString(StringBuilder sb, String key, String value) {
+        sb.append('"').append(key).append("\":\"").append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",");
+    }
+
+    private static void appendNumber(StringBuilder sb, String key, double value) {
+        sb.append('"').append(key).append("\":");
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            sb.append("null");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sb.append((long) value);
+        } else {
+            sb.append(Math.round(value * 1e4) / 1e4);
+        }
+        sb.append(',');
+    }
+
+    public static void main(String[] args) throws Exception {
+        new OverheadBenchmark(args).run();
+    }
+}
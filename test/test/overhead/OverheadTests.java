@@ -0,0 +1,29 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package test.overhead;
+
+import one.profiler.test.Output;
+import one.profiler.test.Test;
+import one.profiler.test.TestProcess;
+
+/**
+ * Quick check that workloads of {@link OverheadBenchmark} run and report results.
+ * The benchmark itself is too long for regular tests; run it with 'make overhead'.
+ */
+public class OverheadTests {
+
+    @Test(mainClass = Workload.class, args = "cpu 2 0.5 1 profiled", agentArgs = "start,event=cpu,interval=1ms,file=%f", output = true)
+    public void cpu(TestProcess p) throws Exception {
+        Output out = p.waitForExit(TestProcess.STDOUT);
+        assert out.contains("RESULT workload=cpu threads=2 ops=[1-9][0-9]* .* samples=[1-9][0-9]*$");
+    }
+
+    @Test(mainClass = Workload.class, args = "threads 200 0.5 1", output = true)
+    public void threads(TestProcess p) throws Exception {
+        Output out = p.waitForExit(TestProcess.STDOUT);
+        assert out.contains("RESULT workload=threads threads=200 ops=[1-9][0-9]* ");
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright The async-profiler authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package test.overhead;
+
+import one.profiler.AsyncProfiler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Standard load for measuring profiler overhead.
+ * Usage: Workload cpu|alloc|lock|threads THREADS WARMUP_SECONDS DURATION_SECONDS [profiled]
+ * <p>
+ * Every thread runs short operations in a loop. After the warmup,
+ * operations are counted and timed for the given duration,
+ * then a single line with the results is printed:
+ * <pre>
+ * RESULT workload=cpu threads=8 ops=123456 seconds=10.000 opsPerSec=12345.6 p50us=40.1 p99us=95.3 samples=999
+ * </pre>
+ * With 'profiled' argument, the number of samples collected during the measurement
+ * is read from the profiler loaded with -agentpath.
+ */
+public class Workload extends Thread {
+    private static final int WARMUP = 0;
+    private static final int MEASURE = 1;
+    private static final int DONE = 2;
+
+    private static volatile int phase = WARMUP;
+
+    private static final Object sharedLock = new Object();
+    private static long sharedCounter;
+
+    private final String workload;
+    private final Histogram histogram = new Histogram();
+    private long ops;
+    private Object[] retained = new Object[256];
+    private long sink;
+
+    Workload(String workload, int id) {
+        super(workload + "-" + id);
+        this.workload = workload;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        int currentPhase;
+        while ((currentPhase = phase) != DONE) {
+            long start = System.nanoTime();
+            operation();
+            long end = System.nanoTime();
+
+            if (currentPhase == MEASURE) {
+                histogram.record(end - start);
+                ops++;
+            }
+
+            if (workload.equals("threads")) {
+                // Most threads of a typical server are idle most of the time
+                LockSupport.parkNanos(10_000_000);
+            }
+        }
+    }
+
+    private void operation() {
+        switch (workload) {
+            case "cpu":
+            case "threads":
+                sink += compute(workload.equals("cpu") ? 20_000 : 2_000);
+                break;
+            case "alloc":
+                allocate(64);
+                break;
+            case "lock":
+                synchronized (sharedLock) {
+                    sharedCounter += compute(500);
+                }
+                sink += compute(500);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown workload: " + workload);
+        }
+    }
+
+    private static long compute(int iterations) {
+        long x = ThreadLocalRandom.current().nextLong();
+        for (int i = 0; i < iterations; i++) {
+            x ^= x << 13;
+            x ^= x >>> 7;
+            x ^= x << 17;
+        }
+        return x;
+    }
+
+    private void allocate(int count) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < count; i++) {
+            // Keep some objects alive, so that allocations are not eliminated and survive young GC
+            Object obj = random.nextBoolean() ? new byte[16 + random.nextInt(4096)] : new ArrayList<>(random.nextInt(64));
+            retained[random.nextInt(retained.length)] = obj;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String workload = args[0];
+        int threadCount = Integer.parseInt(args[1]);
+        long warmupMillis = (long) (Double.parseDouble(args[2]) * 1000);
+        long durationMillis = (long) (Double.parseDouble(args[3]) * 1000);
+        boolean profiled = args.length > 4 && args[4].equals("profiled");
+
+        // Compile the operation first, otherwise a thousand threads running it
+        // in the interpreter may saturate CPU before the JIT compiler gets a chance
+        Workload warmer = new Workload(workload, 0);
+        for (int i = 0; i < 10_000; i++) {
+            warmer.operation();
+        }
+
+        List<Workload> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            Workload t = new Workload(workload, i);
+            threads.add(t);
+            t.start();
+        }
+
+        Thread.sleep(warmupMillis);
+        long startSamples = profiled ? AsyncProfiler.getInstance().getSamples() : 0;
+        long startTime = System.nanoTime();
+        phase = MEASURE;
+
+        Thread.sleep(durationMillis);
+        phase = DONE;
+        long endTime = System.nanoTime();
+        long endSamples = profiled ? AsyncProfiler.getInstance().getSamples() : 0;
+
+        Histogram total = new Histogram();
+        long ops = 0;
+        for (Workload t : threads) {
+            t.join();
+            total.add(t.histogram);
+            ops += t.ops;
+        }
+
+        double seconds = (endTime - startTime) / 1e9;
+        System.out.printf("RESULT workload=%s threads=%d ops=%d seconds=%.3f opsPerSec=%.1f p50us=%.1f p99us=%.1f samples=%d%n",
+                workload, threadCount, ops, seconds, ops / seconds,
+                total.percentile(0.50) / 1e3, total.percentile(0.99) / 1e3, endSamples - startSamples);
+        System.exit(0);
+    }
+
+    /**
+     * Log-linear histogram of nanosecond latencies with 1/16 relative precision.
+     */
+    static class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long total;
+
+        void record(long value) {
+            counts[bucket(Math.max(value, 0))]++;
+            total++;
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+        }
+
+        // Returns the upper bound of the bucket that contains the given percentile
+        long percentile(double p) {
+            long threshold = (long) Math.ceil(total * p);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if ((seen += counts[i]) >= threshold && seen > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+            return ((sub + 1) << shift) - 1;
+        }
+    }
+}